@@ -0,0 +1,162 @@
+package chocopy.common.analysis;
+
+import java.util.List;
+
+import chocopy.common.astnodes.*;
+
+/**
+ * An implementation of {@link NodeAnalyzer} that visits every node
+ * of a tree in source order and returns null.
+ *
+ * Sub-classes override the analyze methods for the nodes they are
+ * interested in, and invoke the overridden method from this class
+ * (`super.analyze(node)`) to continue the walk into the children.
+ * Type annotations are not visited.
+ */
+public class TreeWalker extends AbstractNodeAnalyzer<Void> {
+
+    /** Visit each of NODES in order. */
+    protected void walk(List<? extends Node> nodes) {
+        for (Node node : nodes) {
+            node.dispatch(this);
+        }
+    }
+
+    /** Visit NODE, if it is non-null. */
+    protected void walk(Node node) {
+        if (node != null) {
+            node.dispatch(this);
+        }
+    }
+
+    @Override
+    public Void analyze(Program node) {
+        walk(node.declarations);
+        walk(node.statements);
+        return null;
+    }
+
+    @Override
+    public Void analyze(ClassDef node) {
+        walk(node.declarations);
+        return null;
+    }
+
+    @Override
+    public Void analyze(FuncDef node) {
+        walk(node.params);
+        walk(node.declarations);
+        walk(node.statements);
+        return null;
+    }
+
+    @Override
+    public Void analyze(TypedVar node) {
+        walk(node.identifier);
+        return null;
+    }
+
+    @Override
+    public Void analyze(VarDef node) {
+        walk(node.var);
+        walk(node.value);
+        return null;
+    }
+
+    @Override
+    public Void analyze(AssignStmt node) {
+        walk(node.targets);
+        walk(node.value);
+        return null;
+    }
+
+    @Override
+    public Void analyze(ExprStmt node) {
+        walk(node.expr);
+        return null;
+    }
+
+    @Override
+    public Void analyze(IfStmt node) {
+        walk(node.condition);
+        walk(node.thenBody);
+        walk(node.elseBody);
+        return null;
+    }
+
+    @Override
+    public Void analyze(WhileStmt node) {
+        walk(node.condition);
+        walk(node.body);
+        return null;
+    }
+
+    @Override
+    public Void analyze(ForStmt node) {
+        walk(node.identifier);
+        walk(node.iterable);
+        walk(node.body);
+        return null;
+    }
+
+    @Override
+    public Void analyze(ReturnStmt node) {
+        walk(node.value);
+        return null;
+    }
+
+    @Override
+    public Void analyze(BinaryExpr node) {
+        walk(node.left);
+        walk(node.right);
+        return null;
+    }
+
+    @Override
+    public Void analyze(UnaryExpr node) {
+        walk(node.operand);
+        return null;
+    }
+
+    @Override
+    public Void analyze(IfExpr node) {
+        walk(node.condition);
+        walk(node.thenExpr);
+        walk(node.elseExpr);
+        return null;
+    }
+
+    @Override
+    public Void analyze(CallExpr node) {
+        walk(node.function);
+        walk(node.args);
+        return null;
+    }
+
+    @Override
+    public Void analyze(MethodCallExpr node) {
+        walk(node.method);
+        walk(node.args);
+        return null;
+    }
+
+    @Override
+    public Void analyze(MemberExpr node) {
+        walk(node.object);
+        walk(node.member);
+        return null;
+    }
+
+    @Override
+    public Void analyze(IndexExpr node) {
+        walk(node.list);
+        walk(node.index);
+        return null;
+    }
+
+    @Override
+    public Void analyze(ListExpr node) {
+        walk(node.elements);
+        return null;
+    }
+}
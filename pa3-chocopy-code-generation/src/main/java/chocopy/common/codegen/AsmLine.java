@@ -0,0 +1,352 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed line of emitted assembly code.
+ *
+ * Passes that rewrite code after emission (scheduling, layout, and so
+ * on) work on these rather than on raw text.  A line holds at most one
+ * label definition and at most one instruction or directive, plus an
+ * optional comment; any of these may be missing.  The original text is
+ * kept, so that lines that are not rewritten are output unchanged.
+ */
+public class AsmLine {
+
+    /** The original text of the line. */
+    public final String text;
+
+    /** The label defined on this line, or null. */
+    public final String label;
+
+    /** The mnemonic of the instruction or directive, or null. */
+    public final String op;
+
+    /** The operands of the instruction or directive. */
+    public final List<String> args;
+
+    /** Matches a label definition at the start of a line. */
+    private static final Pattern LABEL_PATN =
+        Pattern.compile("^([^\\s:#]+):+");
+
+    /** Matches a memory operand of the form OFFSET(REG). */
+    private static final Pattern MEM_PATN =
+        Pattern.compile("^(.*)\\((\\w+)\\)$");
+
+    /** Instructions of the form OP RD, RS1, RS2. */
+    private static final Set<String> REG_REG_OPS = new HashSet<>(Arrays.asList(
+        "add", "sub", "mul", "mulh", "mulhu", "div", "divu", "rem", "remu",
+        "xor", "and", "or", "sll", "srl", "sra", "slt", "sltu"));
+
+    /** Instructions of the form OP RD, RS, IMM. */
+    private static final Set<String> REG_IMM_OPS = new HashSet<>(Arrays.asList(
+        "addi", "xori", "andi", "ori", "slli", "srli", "srai", "slti",
+        "sltiu"));
+
+    /** Instructions of the form OP RD, RS. */
+    private static final Set<String> REG_OPS = new HashSet<>(Arrays.asList(
+        "mv", "seqz", "snez", "neg", "not"));
+
+    /** Instructions of the form OP RD, IMM-OR-LABEL. */
+    private static final Set<String> IMM_OPS = new HashSet<>(Arrays.asList(
+        "li", "la", "lui", "auipc"));
+
+    /** Load instructions. */
+    private static final Set<String> LOAD_OPS = new HashSet<>(Arrays.asList(
+        "lw", "lb", "lbu", "lh", "lhu"));
+
+    /** Store instructions. */
+    private static final Set<String> STORE_OPS = new HashSet<>(Arrays.asList(
+        "sw", "sb", "sh"));
+
+    /** Conditional branches comparing two registers. */
+    private static final Set<String> BRANCH2_OPS = new HashSet<>(Arrays.asList(
+        "beq", "bne", "blt", "bge", "bltu", "bgeu"));
+
+    /** Conditional branches comparing one register with zero. */
+    private static final Set<String> BRANCH1_OPS = new HashSet<>(Arrays.asList(
+        "beqz", "bnez", "bltz", "bgtz", "blez", "bgez"));
+
+    /** The opposite of each conditional branch. */
+    private static final Map<String, String> INVERSES = new HashMap<>();
+
+    static {
+        String[] pairs = {
+            "beq", "bne", "blt", "bge", "bltu", "bgeu",
+            "beqz", "bnez", "bltz", "bgez", "bgtz", "blez"
+        };
+        for (int i = 0; i < pairs.length; i += 2) {
+            INVERSES.put(pairs[i], pairs[i + 1]);
+            INVERSES.put(pairs[i + 1], pairs[i]);
+        }
+    }
+
+    /** Registers that a call may read: arguments and the stack. */
+    private static final List<String> CALL_USES = Arrays.asList(
+        "a0", "a1", "a2", "a3", "a4", "a5", "a6", "a7", "sp", "fp", "gp");
+
+    /** A parsed form of TEXT. */
+    public AsmLine(String text) {
+        this.text = text;
+        String rest = text.trim();
+        int comment = commentStart(rest);
+        if (comment >= 0) {
+            rest = rest.substring(0, comment).trim();
+        }
+        Matcher m = LABEL_PATN.matcher(rest);
+        if (m.find()) {
+            label = m.group(1);
+            rest = rest.substring(m.end()).trim();
+        } else {
+            label = null;
+        }
+        if (rest.isEmpty()) {
+            op = null;
+            args = Collections.emptyList();
+        } else {
+            String[] parts = rest.split("\\s+", 2);
+            op = parts[0];
+            if (parts.length < 2 || op.equals(".string")) {
+                args = parts.length < 2 ? Collections.emptyList()
+                    : Collections.singletonList(parts[1]);
+            } else {
+                List<String> result = new ArrayList<>();
+                for (String arg : parts[1].split(",")) {
+                    result.add(arg.trim());
+                }
+                args = result;
+            }
+        }
+    }
+
+    /** Return the index of the comment in LINE, or -1, ignoring '#'
+     *  characters inside string literals. */
+    static int commentStart(String line) {
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i += 1) {
+            char c = line.charAt(i);
+            if (c == '\\' && quoted) {
+                i += 1;
+            } else if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '#' && !quoted) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Return LINES, parsed. */
+    public static List<AsmLine> parse(List<String> lines) {
+        List<AsmLine> result = new ArrayList<>();
+        for (String line : lines) {
+            result.add(new AsmLine(line));
+        }
+        return result;
+    }
+
+    /** Return the texts of LINES. */
+    public static List<String> texts(List<AsmLine> lines) {
+        List<String> result = new ArrayList<>();
+        for (AsmLine line : lines) {
+            result.add(line.text);
+        }
+        return result;
+    }
+
+    /** Return true iff this line holds an instruction (as opposed to a
+     *  directive, or nothing at all). */
+    public boolean isInsn() {
+        return op != null && !op.startsWith(".");
+    }
+
+    /** Return true iff this line holds a directive. */
+    public boolean isDirective() {
+        return op != null && op.startsWith(".");
+    }
+
+    /** Return true iff this line holds a load. */
+    public boolean isLoad() {
+        return LOAD_OPS.contains(op);
+    }
+
+    /** Return true iff this line holds a store. */
+    public boolean isStore() {
+        return STORE_OPS.contains(op);
+    }
+
+    /** Return true iff this line holds a conditional branch. */
+    public boolean isBranch() {
+        return BRANCH1_OPS.contains(op) || BRANCH2_OPS.contains(op);
+    }
+
+    /** Return true iff this line holds an unconditional jump that does
+     *  not return (`j`, `jr`, `ret`). */
+    public boolean isJump() {
+        return "j".equals(op) || "jr".equals(op) || "ret".equals(op);
+    }
+
+    /** Return true iff this line holds a call or a system call. */
+    public boolean isCall() {
+        return "jal".equals(op) || "jalr".equals(op) || "ecall".equals(op);
+    }
+
+    /** Return true iff this line ends a basic block: it is a branch,
+     *  a jump, or a call (after which registers are not preserved). */
+    public boolean endsBlock() {
+        return isBranch() || isJump() || isCall();
+    }
+
+    /** Return the label that this branch, jump or call targets, or null if
+     *  it has none (or this is not a control transfer). */
+    public String target() {
+        if (isBranch() || "j".equals(op) || "jal".equals(op)) {
+            return args.get(args.size() - 1);
+        }
+        return null;
+    }
+
+    /** Return the comment on this line, without the '#', or null if it
+     *  has none. */
+    public String comment() {
+        int start = commentStart(text);
+        return start < 0 ? null : text.substring(start + 1).trim();
+    }
+
+    /** Return a branch that is taken exactly when this conditional branch
+     *  is not, and then goes to TARGET, with comment COMMENT. */
+    public AsmLine inverted(String target, String comment) {
+        List<String> operands = new ArrayList<>(args);
+        operands.set(operands.size() - 1, target);
+        return insnLine(INVERSES.get(op) + " " + String.join(", ", operands),
+                        comment);
+    }
+
+    /** Return the registers written by this instruction. */
+    public Set<String> defs() {
+        Set<String> result = new HashSet<>();
+        if (op == null) {
+            return result;
+        }
+        if (REG_REG_OPS.contains(op) || REG_IMM_OPS.contains(op)
+            || REG_OPS.contains(op) || IMM_OPS.contains(op)
+            || LOAD_OPS.contains(op)) {
+            result.add(args.get(0));
+        } else if (isStore() && args.size() == 3) {
+            result.add(args.get(2));
+        } else if ("jal".equals(op) || "jalr".equals(op)) {
+            result.add(args.size() == 2 ? args.get(0) : "ra");
+            if (args.size() == 1) {
+                /* A call clobbers all caller-saved registers. */
+                result.addAll(Arrays.asList("a0", "a1", "a2", "a3", "a4",
+                                            "a5", "a6", "a7", "t0", "t1",
+                                            "t2", "t3", "t4", "t5", "t6",
+                                            "gp"));
+            }
+        } else if ("ecall".equals(op)) {
+            result.add("a0");
+        }
+        result.remove("zero");
+        return result;
+    }
+
+    /** Return the registers read by this instruction. */
+    public Set<String> uses() {
+        Set<String> result = new HashSet<>();
+        if (op == null) {
+            return result;
+        }
+        if (REG_REG_OPS.contains(op)) {
+            result.add(args.get(1));
+            result.add(args.get(2));
+        } else if (REG_IMM_OPS.contains(op) || REG_OPS.contains(op)) {
+            result.add(args.get(1));
+        } else if (isLoad()) {
+            addBase(result, args.get(1));
+        } else if (isStore()) {
+            result.add(args.get(0));
+            addBase(result, args.get(1));
+        } else if (BRANCH2_OPS.contains(op)) {
+            result.add(args.get(0));
+            result.add(args.get(1));
+        } else if (BRANCH1_OPS.contains(op)) {
+            result.add(args.get(0));
+        } else if ("jr".equals(op)) {
+            result.add(args.get(0));
+        } else if ("ret".equals(op)) {
+            result.add("ra");
+        } else if ("jal".equals(op) || "jalr".equals(op)) {
+            if ("jalr".equals(op)) {
+                result.add(args.get(args.size() == 1 ? 0 : 1));
+            }
+            result.addAll(CALL_USES);
+        } else if ("ecall".equals(op)) {
+            result.add("a0");
+            result.add("a1");
+        }
+        result.remove("zero");
+        return result;
+    }
+
+    /** Add to REGS the base register of memory operand ARG, if any. */
+    private static void addBase(Set<String> regs, String arg) {
+        Matcher m = MEM_PATN.matcher(arg);
+        if (m.matches()) {
+            regs.add(m.group(2));
+        }
+    }
+
+    /** Return the base register of this load or store, or null if it
+     *  addresses a label. */
+    public String memBase() {
+        Matcher m = MEM_PATN.matcher(args.get(1));
+        return m.matches() ? m.group(2) : null;
+    }
+
+    /** Return the offset (or, for label-addressed accesses, the label) of
+     *  this load or store, as written. */
+    public String memOffset() {
+        Matcher m = MEM_PATN.matcher(args.get(1));
+        return m.matches() ? m.group(1).trim() : args.get(1);
+    }
+
+    /** Return the number of bytes accessed by this load or store. */
+    public int memSize() {
+        switch (op) {
+        case "lb": case "lbu": case "sb":
+            return 1;
+        case "lh": case "lhu": case "sh":
+            return 2;
+        default:
+            return 4;
+        }
+    }
+
+    /** Return a line defining LABEL. */
+    public static AsmLine labelLine(String label) {
+        return new AsmLine(label + ":");
+    }
+
+    /** Return a line holding instruction INSN with comment COMMENT (null
+     *  if none), formatted as by {@link RiscVBackend#emitInsn}. */
+    public static AsmLine insnLine(String insn, String comment) {
+        if (comment == null) {
+            return new AsmLine("  " + insn);
+        }
+        return new AsmLine(String.format("  %-40s # %s", insn, comment));
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
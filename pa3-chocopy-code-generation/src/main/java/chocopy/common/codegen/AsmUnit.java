@@ -0,0 +1,113 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A contiguous piece of emitted assembly text.
+ *
+ * A unit begins at a global label (or at a segment directive) and
+ * extends up to the next one.  Units are the granularity at which
+ * whole-program passes keep, drop or reorder code and data: a function
+ * body, a runtime routine, a prototype, a dispatch table, a global
+ * variable and a constant each form a unit of their own.
+ */
+public class AsmUnit {
+
+    /** The global label that starts this unit, or null for units that
+     *  start with a segment directive. */
+    public final String name;
+
+    /** True iff this unit lies in the data segment. */
+    public final boolean data;
+
+    /** The lines of this unit, without line terminators. */
+    public final List<String> lines = new ArrayList<>();
+
+    /** A unit named NAME (null if anonymous), in the data segment iff
+     *  DATA. */
+    public AsmUnit(String name, boolean data) {
+        this.name = name;
+        this.data = data;
+    }
+
+    /** Return the units making up the assembly text TEXT, in order. */
+    public static List<AsmUnit> split(String text) {
+        List<AsmUnit> units = new ArrayList<>();
+        AsmUnit unit = new AsmUnit(null, false);
+        units.add(unit);
+        for (String line : text.split("\r?\n", -1)) {
+            String insn = line.trim();
+            if (insn.equals(".data") || insn.equals(".text")) {
+                unit = new AsmUnit(null, insn.equals(".data"));
+                units.add(unit);
+            } else if (insn.startsWith(".globl ")) {
+                unit = new AsmUnit(insn.substring(7).trim(), unit.data);
+                units.add(unit);
+            }
+            unit.lines.add(line);
+        }
+        return units;
+    }
+
+    /** Return the concatenated text of UNITS. */
+    public static String join(List<AsmUnit> units) {
+        StringBuilder result = new StringBuilder();
+        boolean first = true;
+        for (AsmUnit unit : units) {
+            for (String line : unit.lines) {
+                if (!first) {
+                    result.append(System.lineSeparator());
+                }
+                result.append(line);
+                first = false;
+            }
+        }
+        return result.toString();
+    }
+
+    /** Return the operand of instruction or directive LINE with its
+     *  comment removed, or null if LINE holds no operands that can
+     *  name a label (blank lines, label definitions, strings). */
+    static String operands(String line) {
+        String insn = line.trim();
+        if (insn.isEmpty() || insn.startsWith("#")
+            || insn.startsWith(".globl") || insn.startsWith(".string")) {
+            return null;
+        }
+        int comment = insn.indexOf('#');
+        if (comment >= 0) {
+            insn = insn.substring(0, comment).trim();
+        }
+        if (insn.endsWith(":")) {
+            return null;
+        }
+        return insn;
+    }
+
+    /** Return the set of symbols referenced by the instructions and
+     *  directives of this unit.  The result is a superset of the labels
+     *  referenced: it also contains mnemonics and register names. */
+    public Set<String> getReferences() {
+        Set<String> refs = new HashSet<>();
+        for (String line : lines) {
+            String insn = operands(line);
+            if (insn == null) {
+                continue;
+            }
+            for (String token : insn.split("[\\s,()]+")) {
+                if (!token.isEmpty()) {
+                    refs.add(token);
+                }
+            }
+        }
+        return refs;
+    }
+
+    @Override
+    public String toString() {
+        return name == null ? "<anonymous>" : name;
+    }
+}
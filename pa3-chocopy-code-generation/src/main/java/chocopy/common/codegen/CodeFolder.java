@@ -0,0 +1,197 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Whole-program folding of identical code and read-only data.
+ *
+ * Two code units are identical if their instructions are the same once
+ * the labels they define are numbered in order of definition, references
+ * to their own global label are made alike, and references to folded
+ * units are replaced by references to the units they were folded into.
+ * Comments and blank lines do not count.  All but the first of a set of
+ * identical units are dropped, and their global labels are defined as
+ * aliases at the start of the first.  Since folding some units may make
+ * their callers identical, folding repeats until nothing changes.
+ *
+ * Data units are folded the same way, but only those named as read-only
+ * (such as dispatch tables), as other data may be assigned.  A unit is
+ * never folded if code or data elsewhere refers to one of its local
+ * labels (as a jump table does), or if it is code that may fall through
+ * into the unit after it.
+ */
+public class CodeFolder {
+
+    /** Matches a symbol in an operand. */
+    private static final Pattern SYMBOL_PATN =
+        Pattern.compile("[A-Za-z_$.@][\\w$.@]*");
+
+    /** Return UNITS, with identical code units and identical units named
+     *  in READONLY folded, in their original order. */
+    public static List<AsmUnit> fold(List<AsmUnit> units,
+                                     Collection<String> readOnly) {
+        Map<AsmUnit, Set<String>> locals = new HashMap<>();
+        Map<String, AsmUnit> owners = new HashMap<>();
+        for (AsmUnit unit : units) {
+            if (unit.name == null) {
+                continue;
+            }
+            Set<String> defined = new HashSet<>();
+            for (AsmLine line : AsmLine.parse(unit.lines)) {
+                if (line.label != null && !line.label.equals(unit.name)) {
+                    defined.add(line.label);
+                    owners.put(line.label, unit);
+                }
+            }
+            locals.put(unit, defined);
+        }
+
+        Set<AsmUnit> candidates = new HashSet<>();
+        for (AsmUnit unit : units) {
+            if (unit.name != null && (unit.data ? readOnly.contains(unit.name)
+                                      : endsInJump(unit))) {
+                candidates.add(unit);
+            }
+        }
+        for (AsmUnit unit : units) {
+            for (String ref : unit.getReferences()) {
+                AsmUnit owner = owners.get(ref);
+                if (owner != null && owner != unit) {
+                    candidates.remove(owner);
+                }
+            }
+        }
+
+        /* The unit into which each folded unit was folded, by name. */
+        Map<String, AsmUnit> folded = new HashMap<>();
+        Map<AsmUnit, List<String>> aliases = new HashMap<>();
+        boolean changed;
+        do {
+            changed = false;
+            Map<String, AsmUnit> byKey = new HashMap<>();
+            for (AsmUnit unit : units) {
+                if (!candidates.contains(unit)
+                    || folded.containsKey(unit.name)) {
+                    continue;
+                }
+                String key = canonicalForm(unit, locals.get(unit), folded);
+                AsmUnit first = byKey.putIfAbsent(key, unit);
+                if (first != null) {
+                    folded.put(unit.name, first);
+                    aliases.computeIfAbsent(first, k -> new ArrayList<>())
+                        .add(unit.name);
+                    List<String> inherited = aliases.remove(unit);
+                    if (inherited != null) {
+                        for (String name : inherited) {
+                            folded.put(name, first);
+                        }
+                        aliases.get(first).addAll(inherited);
+                    }
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        List<AsmUnit> result = new ArrayList<>();
+        for (AsmUnit unit : units) {
+            if (unit.name != null && folded.containsKey(unit.name)) {
+                continue;
+            }
+            if (aliases.containsKey(unit)) {
+                addAliases(unit, aliases.get(unit));
+            }
+            result.add(unit);
+        }
+        return result;
+    }
+
+    /** Return true iff the last instruction of UNIT is an unconditional
+     *  jump, so that it cannot fall through into the next unit. */
+    private static boolean endsInJump(AsmUnit unit) {
+        AsmLine last = null;
+        for (AsmLine line : AsmLine.parse(unit.lines)) {
+            if (line.isInsn()) {
+                last = line;
+            }
+        }
+        return last != null && last.isJump();
+    }
+
+    /** Return the text of UNIT, whose local labels are LOCALS, with its
+     *  labels and references renamed as described above, where FOLDED
+     *  maps the names of folded units to the units they were folded
+     *  into. */
+    private static String canonicalForm(AsmUnit unit, Set<String> locals,
+                                        Map<String, AsmUnit> folded) {
+        Map<String, String> numbering = new HashMap<>();
+        List<AsmLine> lines = AsmLine.parse(unit.lines);
+        for (AsmLine line : lines) {
+            if (line.label != null && locals.contains(line.label)) {
+                numbering.put(line.label, "@" + numbering.size());
+            }
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (AsmLine line : lines) {
+            if (line.label != null) {
+                result.append(line.label.equals(unit.name) ? "@self"
+                              : numbering.get(line.label)).append(":\n");
+            }
+            if (line.op == null || line.op.equals(".globl")) {
+                continue;
+            }
+            result.append(line.op);
+            for (String arg : line.args) {
+                result.append(' ');
+                if (line.op.equals(".string")) {
+                    result.append(arg);
+                    continue;
+                }
+                Matcher m = SYMBOL_PATN.matcher(arg);
+                StringBuffer renamed = new StringBuffer();
+                while (m.find()) {
+                    String symbol = m.group();
+                    if (numbering.containsKey(symbol)) {
+                        symbol = numbering.get(symbol);
+                    } else if (symbol.equals(unit.name)) {
+                        symbol = "@self";
+                    } else if (folded.containsKey(symbol)) {
+                        symbol = folded.get(symbol).name;
+                    }
+                    m.appendReplacement(renamed,
+                                        Matcher.quoteReplacement(symbol));
+                }
+                m.appendTail(renamed);
+                result.append(renamed);
+            }
+            result.append('\n');
+        }
+        return result.toString();
+    }
+
+    /** Define NAMES as global labels at the start of UNIT, which follow
+     *  the definition of its own label. */
+    private static void addAliases(AsmUnit unit, List<String> names) {
+        int start = 0;
+        while (start < unit.lines.size()
+               && !unit.name.equals(new AsmLine(unit.lines.get(start))
+                                    .label)) {
+            start += 1;
+        }
+        List<String> definitions = new ArrayList<>();
+        for (String name : names) {
+            definitions.add(".globl " + name);
+            definitions.add(name + ":");
+        }
+        unit.lines.addAll(Math.min(start + 1, unit.lines.size()),
+                          definitions);
+    }
+}
@@ -1,13 +1,21 @@
 package chocopy.common.codegen;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import chocopy.common.analysis.SymbolTable;
+import chocopy.common.analysis.TreeWalker;
 import chocopy.common.analysis.types.SymbolType;
 import chocopy.common.analysis.types.ValueType;
 import chocopy.common.astnodes.BooleanLiteral;
@@ -17,9 +25,11 @@ import chocopy.common.astnodes.FuncDef;
 import chocopy.common.astnodes.GlobalDecl;
 import chocopy.common.astnodes.IntegerLiteral;
 import chocopy.common.astnodes.Literal;
+import chocopy.common.astnodes.MethodCallExpr;
 import chocopy.common.astnodes.NonLocalDecl;
 import chocopy.common.astnodes.Program;
 import chocopy.common.astnodes.Stmt;
+import chocopy.common.astnodes.StringLiteral;
 import chocopy.common.astnodes.TypedVar;
 import chocopy.common.astnodes.VarDef;
 import chocopy.common.analysis.AbstractNodeAnalyzer;
@@ -69,10 +79,32 @@ public abstract class CodeGenBase {
     /** A counter used to generate unique local label names. */
     protected int nextLabelSuffix = 0;
 
+    /** The labels generated so far for the body of a function. */
+    private static class LabelScope {
+        /** The index of the function in functions. */
+        final int function;
+        /** The number of labels generated. */
+        int count;
+
+        /** The scope of the function at index FUNCTION in functions. */
+        LabelScope(int function) {
+            this.function = function;
+        }
+    }
+
+    /** The scope of the function body being emitted by each thread, if
+     *  any.  See generateLocalLabel. */
+    private final ThreadLocal<LabelScope> labelScope = new ThreadLocal<>();
+
     /** Predefined classes. The list "class" is a fake class; we use it only
-     *  to emit a prototype object for empty lists. */
+     *  to emit a prototype object for empty lists.  So is the [bool] list
+     *  "class", for lists of type [bool], which hold one byte rather than
+     *  one word per element, and the pointer list "class", for lists whose
+     *  elements are pointers (see holdsPointers), which the garbage
+     *  collector must tell apart from lists of ints. */
     protected ClassInfo
-        objectClass, intClass, boolClass, strClass, listClass;
+        objectClass, intClass, boolClass, strClass, listClass, boolListClass,
+        pointerListClass;
 
     /** Predefined functions. */
     protected FuncInfo printFunc, lenFunc, inputFunc;
@@ -95,6 +127,51 @@ public abstract class CodeGenBase {
      */
     protected final List<FuncInfo> functions = new ArrayList<>();
 
+    /**
+     * The functions whose bodies come from the runtime library.  Since
+     * emitting one may create constants, they are emitted one at a time
+     * by the thread running generate.
+     */
+    protected final Set<FuncInfo> libraryFunctions = new HashSet<>();
+
+    /**
+     * The names of methods invoked somewhere in the program.  Dispatch
+     * table slots of other methods are left empty, so that their bodies
+     * are not kept alive by the dispatch table alone.
+     */
+    protected final Set<String> invokedMethods = new HashSet<>();
+
+    /** Execution counts from a previous run, or null if none are
+     *  available. */
+    protected Profile profile;
+
+    /** True iff the program counts its calls and the outcomes of its
+     *  conditions, and writes them as a profile (see Profile) after its
+     *  output when it exits normally. */
+    protected boolean instrument;
+
+    /** The layout applied to the code emitted, or null (the default) if
+     *  routines are to be left in the order emitted. */
+    protected CodeLayout layout;
+
+    /** The scheduler applied to the code emitted, or null (the default)
+     *  if the code is to be left in the order emitted. */
+    protected InstructionScheduler scheduler;
+
+    /** True iff code size is to be minimized rather than running time:
+     *  frames are set up and torn down by shared routines, and repeated
+     *  instruction sequences are outlined (see SequenceOutliner). */
+    protected boolean optimizeSize;
+
+    /** The number of iterations of a counted loop run between tests of
+     *  its condition, where 1 (the default) leaves loops as they are. */
+    protected int unrollFactor = 1;
+
+    /** The most function bodies emitted at once, each by a thread of its
+     *  own, where 1 (the default) emits them all on the thread running
+     *  generate, without a pool. */
+    protected int threads = 1;
+
     /** Label for built-in routine: alloc. */
     protected final Label objectAllocLabel = new Label("alloc");
 
@@ -107,12 +184,46 @@ public abstract class CodeGenBase {
     /** Label for built-in routine: heap.init. */
     protected final Label heapInitLabel = new Label("heap.init");
 
+    /** Label for built-in routine: gc.collect. */
+    protected final Label gcCollectLabel = new Label("gc.collect");
+
+    /** Label for built-in routine: memcpy. */
+    protected final Label memcpyLabel = new Label("memcpy");
+
+    /** Label for built-in routine: memset. */
+    protected final Label memsetLabel = new Label("memset");
+
+    /** Label for the preallocated boxes of small ints. */
+    protected final Label intCacheLabel = new Label("int.cache");
+
     /** Error codes. */
     protected final int ERROR_ARG = 1, ERROR_DIV_ZERO = 2, ERROR_OOB = 3,
         ERROR_NONE = 4, ERROR_OOM = 5, ERROR_NYI = 6;
 
-    /** Size of heap memory. */
-    protected final int HEAP_SIZE_BYTES = 1024 * 1024 * 32;
+    /** Default initial size of heap memory, shared equally by the two
+     *  semispaces of the garbage collector, which grows it as needed. */
+    public static final int DEFAULT_HEAP_SIZE_BYTES = 1024 * 1024;
+
+    /** Default limit on the growth of heap memory, which is also the
+     *  largest limit allowed. */
+    public static final int DEFAULT_MAX_HEAP_SIZE_BYTES = 1024 * 1024 * 1024;
+
+    /** Initial size of heap memory, a multiple of 8KB so that each
+     *  semispace is a multiple of 4KB. */
+    protected int heapSizeBytes = DEFAULT_HEAP_SIZE_BYTES;
+
+    /** The most heap memory the garbage collector may obtain. */
+    protected int maxHeapSizeBytes = DEFAULT_MAX_HEAP_SIZE_BYTES;
+
+    /** The most ints whose boxes may be preallocated. */
+    public static final int MAX_INT_CACHE_SIZE = 1 << 16;
+
+    /** The range of ints boxed as shared objects preallocated at
+     *  intCacheLabel rather than on the heap, empty (the default) if
+     *  intCacheHigh is less than intCacheLow.  Since `is` compares boxes,
+     *  two equal ints boxed separately are `is` each other iff they are
+     *  in this range. */
+    protected int intCacheLow = 0, intCacheHigh = -1;
 
     /** Ecall numbers for intrinsic routines. */
     protected final int
@@ -176,7 +287,27 @@ public abstract class CodeGenBase {
      * where the name does not matter in general.
      */
     protected Label generateLocalLabel() {
-        return new Label(String.format("label_%d", getNextLabelSuffix()));
+        return generateLabel("label");
+    }
+
+    /**
+     * Return a fresh label named PREFIX followed by `_` and a suffix
+     * unique amongst labels generated by this method.
+     *
+     * Labels generated while emitting a function body are numbered
+     * separately for each function, and their suffixes include the
+     * index of the function, so that their names do not depend on the
+     * order in which function bodies are emitted.
+     */
+    protected Label generateLabel(String prefix) {
+        LabelScope scope = labelScope.get();
+        if (scope == null) {
+            return new Label(String.format("%s_%d", prefix,
+                                           getNextLabelSuffix()));
+        }
+        scope.count += 1;
+        return new Label(String.format("%s_%d_%d", prefix, scope.function,
+                                       scope.count - 1));
     }
 
     /**
@@ -186,10 +317,20 @@ public abstract class CodeGenBase {
      * emitting DATA section (globals, constants, prototypes, etc)
      * as well as the the CODE section (predefined functions, built-in
      * routines, and user-defined functions).
+     *
+     * Everything is emitted, and then units of code and data that
+     * cannot be reached from `main` are dropped (see {@link TreeShaker}).
+     * Identical routines and dispatch tables are then folded together
+     * (see {@link CodeFolder}).
+     * When optimizing for size, repeated instruction sequences are then
+     * outlined.  The remaining code is then laid out and scheduled, if a
+     * layout and a scheduler are set.
      */
     public void generate(Program program) {
         analyzeProgram(program);
+        collectInvokedMethods(program);
 
+        backend.startCapture();
         backend.startData();
 
         for (ClassInfo classInfo : this.classes) {
@@ -211,32 +352,385 @@ public abstract class CodeGenBase {
 
         Label mainLabel = new Label("main");
         backend.emitGlobalLabel(mainLabel);
-        backend.emitLUI(A0, HEAP_SIZE_BYTES >> 12,
+        backend.emitLUI(A0, heapSizeBytes >> 12,
                         "Initialize heap size (in multiples of 4KB)");
-        backend.emitADD(S11, S11, A0, "Save heap size");
         backend.emitJAL(heapInitLabel, "Call heap.init routine");
         backend.emitMV(GP, A0, "Initialize heap pointer");
         backend.emitMV(S10, GP, "Set beginning of heap");
+        backend.emitLUI(S11, heapSizeBytes / 2 >> 12,
+                        "Semispace size (in multiples of 4KB)");
         backend.emitADD(S11, S10, S11,
-                        "Set end of heap (= start of heap + heap size)");
+                        "Set end of heap (= start of heap + semispace size)");
         backend.emitMV(RA, ZERO, "No normal return from main program.");
         backend.emitMV(FP, ZERO, "No preceding frame.");
 
         emitTopLevel(program.statements);
 
-        for (FuncInfo funcInfo : this.functions) {
-            funcInfo.emitBody();
-        }
+        emitFunctionBodies();
 
         emitStdFunc("alloc");
         emitStdFunc("alloc2");
         emitStdFunc("abort");
         emitStdFunc("heap.init");
+        emitStdFunc("gc.collect");
+        emitStdFunc("memcpy");
+        emitStdFunc("memset");
 
         emitCustomCode();
 
         backend.startData();
         emitConstants();
+
+        List<AsmUnit> units = AsmUnit.split(backend.endCapture());
+        units = TreeShaker.shake(units,
+                                 Collections.singleton(mainLabel.toString()));
+        List<String> dispatchTables = new ArrayList<>();
+        for (ClassInfo classInfo : classes) {
+            if (classInfo.getDispatchTableLabel() != null) {
+                dispatchTables.add(
+                    classInfo.getDispatchTableLabel().toString());
+            }
+        }
+        units = CodeFolder.fold(units, dispatchTables);
+        if (optimizeSize) {
+            units = SequenceOutliner.outline(units);
+        }
+        if (layout != null) {
+            if (profile != null) {
+                applyProfile(layout);
+            }
+            units = layout.layout(units);
+        }
+        if (scheduler != null) {
+            scheduler.schedule(units);
+        }
+        List<StackMap> stackMaps = StackMap.extract(units);
+        Set<String> kept = new HashSet<>();
+        for (AsmUnit unit : units) {
+            kept.add(unit.name);
+            for (String line : unit.lines) {
+                backend.emit(line);
+            }
+        }
+        if (kept.contains(gcCollectLabel.toString())) {
+            emitCollectorTables(stackMaps, kept);
+        }
+    }
+
+    /**
+     * Emit the tables read by the garbage collector, gc.collect, for
+     * a program whose units left after the passes of generate are named
+     * KEPT, and whose calls that may collect garbage are described by
+     * STACKMAPS, in increasing order of return address:
+     *   gc.tospace: the address of the semispace not in use, or 0 until
+     *     the first collection, when it is the one following the heap.
+     *   gc.maxheap: the most bytes of heap memory, counting both
+     *     semispaces, to which the collector may grow the heap.
+     *   gc.globals: the number of global variables holding pointers,
+     *     followed by their addresses.
+     *   gc.layouts: indexed by type tag, the address of the layout of
+     *     objects with that tag: the number of their attributes holding
+     *     pointers followed by their offsets, or -1 for a list whose
+     *     elements are pointers.  It is preceded by the entries for the
+     *     negative tags of lists.
+     *   gc.stackmaps: the number of maps, followed by the return address
+     *     of each and the address of its record (see StackMap.getRecord).
+     * Records are shared by the entries that describe the same layout.
+     */
+    protected void emitCollectorTables(List<StackMap> stackMaps,
+                                       Set<String> kept) {
+        backend.startData();
+        Label toSpace = new Label("gc.tospace");
+        backend.emitGlobalLabel(toSpace);
+        backend.emitWordLiteral(0, "Semispace not in use");
+        backend.emitGlobalLabel(new Label("gc.maxheap"));
+        backend.emitWordLiteral(maxHeapSizeBytes, "Most bytes of heap memory");
+
+        List<GlobalVarInfo> roots = new ArrayList<>();
+        for (GlobalVarInfo global : globalVars) {
+            if (holdsPointers(global.getVarType())
+                && kept.contains(global.getLabel().toString())) {
+                roots.add(global);
+            }
+        }
+        backend.emitGlobalLabel(new Label("gc.globals"));
+        backend.emitWordLiteral(roots.size(),
+                                "Number of global variables holding pointers");
+        for (GlobalVarInfo global : roots) {
+            backend.emitWordAddress(global.getLabel(),
+                                    "Global var: " + global.getVarName());
+        }
+
+        Map<List<Integer>, Label> records = new LinkedHashMap<>();
+        int minTag = 0, maxTag = 0;
+        Map<Integer, ClassInfo> byTag = new HashMap<>();
+        for (ClassInfo classInfo : classes) {
+            byTag.put(classInfo.getTypeTag(), classInfo);
+            minTag = Math.min(minTag, classInfo.getTypeTag());
+            maxTag = Math.max(maxTag, classInfo.getTypeTag());
+        }
+        for (int tag = minTag; tag <= maxTag; tag += 1) {
+            if (tag == 0) {
+                backend.emitGlobalLabel(new Label("gc.layouts"));
+            }
+            ClassInfo classInfo = byTag.get(tag);
+            List<Integer> layout = getPointerLayout(classInfo);
+            Label record = records.computeIfAbsent(
+                layout, k -> new Label("gc.layout." + records.size()));
+            backend.emitWordAddress(record, classInfo == null
+                                    ? "Layout for unused type tag " + tag
+                                    : "Layout for class: "
+                                      + classInfo.getClassName());
+        }
+        emitRecords(records);
+
+        records.clear();
+        backend.emitGlobalLabel(new Label("gc.stackmaps"));
+        backend.emitWordLiteral(stackMaps.size(), "Number of stack maps");
+        for (StackMap map : stackMaps) {
+            Label record = records.computeIfAbsent(
+                map.getRecord(),
+                k -> new Label("gc.stackmap." + records.size()));
+            backend.emitInsn(String.format(".word %s", map.label),
+                             "Return address");
+            backend.emitWordAddress(record, null);
+        }
+        emitRecords(records);
+    }
+
+    /** Return the layout of objects of the class described by CLASSINFO
+     *  (null for none) in the form read by gc.collect: see
+     *  emitCollectorTables.  The attributes of the built-in classes,
+     *  whose types are null, hold no pointers. */
+    protected List<Integer> getPointerLayout(ClassInfo classInfo) {
+        List<Integer> result = new ArrayList<>();
+        if (classInfo == pointerListClass) {
+            result.add(-1);
+            return result;
+        }
+        result.add(0);
+        if (classInfo == null || classInfo == listClass
+            || classInfo == boolListClass) {
+            return result;
+        }
+        for (AttrInfo attr : classInfo.getAttributes()) {
+            if (attr.getVarType() != null
+                && holdsPointers(attr.getVarType())) {
+                result.add(getAttrOffset(classInfo, attr.getVarName()));
+            }
+        }
+        result.set(0, result.size() - 1);
+        return result;
+    }
+
+    /** Emit each of RECORDS, a sequence of words, at its label. */
+    private void emitRecords(Map<List<Integer>, Label> records) {
+        for (Map.Entry<List<Integer>, Label> e : records.entrySet()) {
+            backend.emitGlobalLabel(e.getValue());
+            for (int word : e.getKey()) {
+                backend.emitWordLiteral(word, null);
+            }
+        }
+    }
+
+    /** Return true iff values of TYPE are represented by pointers to
+     *  objects (or None), as are values of all types but int and
+     *  bool. */
+    protected static boolean holdsPointers(SymbolType type) {
+        return !SymbolType.INT_TYPE.equals(type)
+            && !SymbolType.BOOL_TYPE.equals(type);
+    }
+
+    /** Use the execution counts in PROFILE (null if none) to guide
+     *  code generation. */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /** Make the program write a profile of its run iff INSTRUMENT. */
+    public void setInstrument(boolean instrument) {
+        this.instrument = instrument;
+    }
+
+    /** Weigh the routines in LAYOUT by their call counts in the profile;
+     *  those never called are cold. */
+    protected void applyProfile(CodeLayout layout) {
+        for (FuncInfo funcInfo : functions) {
+            long count = profile.getCallCount(funcInfo.getFuncName());
+            String label = funcInfo.getCodeLabel().toString();
+            if (count == 0) {
+                layout.addColdRoutine(label);
+            } else if (count > 0) {
+                layout.setCallCount(label, count);
+            }
+        }
+    }
+
+    /** Reorder the routines emitted by generate by a hot/cold layout
+     *  (see CodeLayout) iff LAYOUT, and otherwise leave them in the order
+     *  emitted. */
+    public void setLayout(boolean layout) {
+        this.layout = layout
+            ? new CodeLayout(Collections.singleton(abortLabel.toString()))
+            : null;
+    }
+
+    /** Use SCHEDULER to reorder the code emitted by generate, or leave
+     *  it in the order emitted if SCHEDULER is null. */
+    public void setScheduler(InstructionScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /** Minimize code size rather than running time iff OPTIMIZESIZE. */
+    public void setOptimizeSize(boolean optimizeSize) {
+        this.optimizeSize = optimizeSize;
+    }
+
+    /** Emit up to THREADS function bodies at once, where THREADS must
+     *  be positive. */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                "Thread count must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /** Start programs with INITIALBYTES of heap memory, a positive
+     *  multiple of 8KB, and let them grow it to at most MAXBYTES, which
+     *  must lie between INITIALBYTES and DEFAULT_MAX_HEAP_SIZE_BYTES. */
+    public void setHeapSize(int initialBytes, int maxBytes) {
+        if (initialBytes <= 0 || initialBytes % 8192 != 0) {
+            throw new IllegalArgumentException(
+                "Heap size must be a positive multiple of 8KB: "
+                + initialBytes);
+        }
+        if (maxBytes < initialBytes
+            || maxBytes > DEFAULT_MAX_HEAP_SIZE_BYTES) {
+            throw new IllegalArgumentException(
+                "Maximum heap size must lie between " + initialBytes
+                + " and " + DEFAULT_MAX_HEAP_SIZE_BYTES + ": " + maxBytes);
+        }
+        this.heapSizeBytes = initialBytes;
+        this.maxHeapSizeBytes = maxBytes;
+    }
+
+    /** Preallocate the boxes of the ints from LOW to HIGH, which must
+     *  number at most MAX_INT_CACHE_SIZE, or of none if HIGH is less
+     *  than LOW.  This changes the value of `is` on those ints (see
+     *  intCacheLow). */
+    public void setIntCache(int low, int high) {
+        if ((long) high - low >= MAX_INT_CACHE_SIZE) {
+            throw new IllegalArgumentException(
+                "Int cache must hold at most " + MAX_INT_CACHE_SIZE
+                + " ints: " + low + ".." + high);
+        }
+        this.intCacheLow = low;
+        this.intCacheHigh = high;
+    }
+
+    /** Unroll counted loops by FACTOR, which must be positive. */
+    public void setUnrollFactor(int factor) {
+        if (factor < 1) {
+            throw new IllegalArgumentException(
+                "Unroll factor must be positive: " + factor);
+        }
+        this.unrollFactor = factor;
+    }
+
+    /** Record in invokedMethods the names of all methods invoked
+     *  anywhere in PROGRAM, plus the implicitly invoked __init__. */
+    protected void collectInvokedMethods(Program program) {
+        invokedMethods.add("__init__");
+        program.dispatch(new TreeWalker() {
+            @Override
+            public Void analyze(MethodCallExpr node) {
+                invokedMethods.add(node.method.member.name);
+                return super.analyze(node);
+            }
+        });
+    }
+
+    /**
+     * Emit the bodies of all functions, in order.
+     *
+     * Each body other than those from the runtime library is emitted
+     * into a buffer of its own, up to `threads` at once on a pool that
+     * lives only as long as this call, and the buffers are then emitted
+     * in order.  The constants for their string
+     * literals are created beforehand (see internConstants), so that
+     * their labels do not depend on the order in which bodies are
+     * emitted either.
+     */
+    protected void emitFunctionBodies() {
+        for (FuncInfo funcInfo : functions) {
+            internConstants(funcInfo);
+        }
+
+        String[] bodies = new String[functions.size()];
+        List<Callable<String>> tasks = new ArrayList<>();
+        List<Integer> taskFunctions = new ArrayList<>();
+        for (int i = 0; i < functions.size(); i++) {
+            int index = i;
+            if (threads == 1
+                || libraryFunctions.contains(functions.get(index))) {
+                bodies[index] = emitFunctionBody(index);
+            } else {
+                tasks.add(() -> emitFunctionBody(index));
+                taskFunctions.add(index);
+            }
+        }
+        if (!tasks.isEmpty()) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                List<Future<String>> results = pool.invokeAll(tasks);
+                for (int i = 0; i < results.size(); i++) {
+                    bodies[taskFunctions.get(i)] = results.get(i).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        for (String body : bodies) {
+            backend.emitLines(body);
+        }
+    }
+
+    /** Return the text of the body of the function at index INDEX in
+     *  functions, with its labels in a scope of its own. */
+    private String emitFunctionBody(int index) {
+        labelScope.set(new LabelScope(index));
+        try {
+            return backend.capture(functions.get(index)::emitBody);
+        } finally {
+            labelScope.remove();
+        }
+    }
+
+    /** Create the constants used by the body of FUNCINFO, as it would
+     *  when emitted: by default, those for its string literals. */
+    protected void internConstants(FuncInfo funcInfo) {
+        TreeWalker walker = new TreeWalker() {
+            @Override
+            public Void analyze(StringLiteral node) {
+                constants.getStrConstant(node.value);
+                return null;
+            }
+        };
+        for (Stmt stmt : funcInfo.getStatements()) {
+            stmt.dispatch(walker);
+        }
     }
 
     /** Create descriptors and symbols for builtin classes and methods. */
@@ -247,6 +741,7 @@ public abstract class CodeGenBase {
         objectInit.addParam(makeStackVarInfo("self", SymbolType.OBJECT_TYPE,
                                              null, objectInit));
         functions.add(objectInit);
+        libraryFunctions.add(objectInit);
 
         objectClass = makeClassInfo("object", getNextTypeTag(), null);
         objectClass.addMethod(objectInit);
@@ -275,6 +770,20 @@ public abstract class CodeGenBase {
                                             new IntegerLiteral(null, null, 0)));
         classes.add(listClass);
         listClass.dispatchTableLabel = null;
+
+        boolListClass = makeClassInfo(".boollist", -2, objectClass);
+        boolListClass.addAttribute(
+            makeAttrInfo("__len__", SymbolType.INT_TYPE,
+                         new IntegerLiteral(null, null, 0)));
+        classes.add(boolListClass);
+        boolListClass.dispatchTableLabel = null;
+
+        pointerListClass = makeClassInfo(".pointerlist", -3, objectClass);
+        pointerListClass.addAttribute(
+            makeAttrInfo("__len__", SymbolType.INT_TYPE,
+                         new IntegerLiteral(null, null, 0)));
+        classes.add(pointerListClass);
+        pointerListClass.dispatchTableLabel = null;
     }
 
     /** Create descriptors and symbols for builtin functions. */
@@ -284,6 +793,7 @@ public abstract class CodeGenBase {
         printFunc.addParam(makeStackVarInfo("arg", SymbolType.OBJECT_TYPE,
                                             null, printFunc));
         functions.add(printFunc);
+        libraryFunctions.add(printFunc);
         globalSymbols.put(printFunc.getBaseName(), printFunc);
 
         lenFunc = makeFuncInfo("len", 0, SymbolType.INT_TYPE,
@@ -291,11 +801,13 @@ public abstract class CodeGenBase {
         lenFunc.addParam(makeStackVarInfo("arg", SymbolType.OBJECT_TYPE,
                                           null, lenFunc));
         functions.add(lenFunc);
+        libraryFunctions.add(lenFunc);
         globalSymbols.put(lenFunc.getBaseName(), lenFunc);
 
         inputFunc = makeFuncInfo("input", 0, SymbolType.STR_TYPE,
                                  globalSymbols, null, this::emitStdFunc);
         functions.add(inputFunc);
+        libraryFunctions.add(inputFunc);
         globalSymbols.put(inputFunc.getBaseName(), inputFunc);
     }
 
@@ -776,6 +1288,21 @@ public abstract class CodeGenBase {
                                     "Constant value of attribute: __int__");
             alignObject();
         }
+
+        if (intCacheLow <= intCacheHigh) {
+            backend.emitGlobalLabel(intCacheLabel);
+            for (long value = intCacheLow; value <= intCacheHigh; value++) {
+                backend.emitWordLiteral(intClass.getTypeTag(),
+                                        "Type tag for class: int");
+                backend.emitWordLiteral(
+                    intClass.attributes.size() + HEADER_SIZE, "Object size");
+                backend.emitWordAddress(intClass.getDispatchTableLabel(),
+                                        "Pointer to dispatch table");
+                backend.emitWordLiteral((int) value,
+                                        "Preallocated value of attribute: "
+                                        + "__int__");
+            }
+        }
     }
 
 
@@ -790,7 +1317,11 @@ public abstract class CodeGenBase {
             String cmnt = String.format("Implementation for method: %s.%s",
                                         classInfo.getClassName(),
                                         method.getBaseName());
-            backend.emitWordAddress(method.getCodeLabel(), cmnt);
+            if (invokedMethods.contains(method.getBaseName())) {
+                backend.emitWordAddress(method.getCodeLabel(), cmnt);
+            } else {
+                backend.emitWordAddress(null, "(never invoked) " + cmnt);
+            }
         }
     }
 
@@ -870,8 +1401,17 @@ public abstract class CodeGenBase {
      *  directory LIB, or null if it does not exist. LIB must end in
      *  '/'. */
     protected String getStandardLibraryCode(String name, String lib) {
+        LibraryRoutine routine = getStandardLibraryRoutine(name, lib);
+        return routine == null ? null : routine.getSource();
+    }
+
+    /** Return the routine for function NAME from directory LIB, or null
+     *  if it does not exist.  LIB must end in '/'.  Each routine is read
+     *  once per JVM (see {@link LibraryRoutine}). */
+    protected LibraryRoutine getStandardLibraryRoutine(String name,
+                                                       String lib) {
         String simpleName = name.replace("$", "") + ".s";
-        return getResourceFileAsString(lib + simpleName);
+        return LibraryRoutine.get(lib + simpleName);
     }
 
     /** Emit label and body for the function LABEL, taking the
@@ -883,12 +1423,12 @@ public abstract class CodeGenBase {
     /** Emit label and body for the function LABEL, taking the
      *  source from SOURCEFILE.s in directory LIB (must end in '/'). */
     protected void emitStdFunc(Label label, String sourceFile, String lib) {
-        String source = getStandardLibraryCode(sourceFile, lib);
-        if (source == null) {
+        LibraryRoutine routine = getStandardLibraryRoutine(sourceFile, lib);
+        if (routine == null) {
             throw fatal("Code for %s is missing.", sourceFile);
         }
         backend.emitGlobalLabel(label);
-        backend.emit(convertLiterals(source));
+        backend.emit(routine.bind(constants::getStrConstant));
     }
 
     /** Emit label and body for the function LABEL, taking the
@@ -921,23 +1461,4 @@ public abstract class CodeGenBase {
         emitStdFunc(funcInfo, LIBRARY_CODE_DIR);
     }
 
-    /** Pattern matching STRING["..."]. */
-    private static final Pattern STRING_LITERAL_PATN =
-        Pattern.compile("STRING\\[\"(.*?)\"\\]");
-
-    /** Return result of converting STRING["..."] notations in SOURCE to
-     *  labels of string constants, adding those constants to the pool. */
-    private String convertLiterals(String source) {
-        Matcher matcher = STRING_LITERAL_PATN.matcher(source);
-        StringBuffer result = new StringBuffer();
-        while (matcher.find()) {
-            String r = constants.getStrConstant(matcher.group(1)).toString();
-            matcher.appendReplacement(result,
-                                      pad(r, ' ',
-                                          matcher.end(0) - matcher.start(0),
-                                          false));
-        }
-        return matcher.appendTail(result).toString();
-    }
-
 }
@@ -0,0 +1,359 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A hot/cold layout of the text segment.
+ *
+ * Routines that only report an error and abort (such as `abort` and the
+ * `error.*` handlers) are cold: they are moved to the end of the text
+ * segment.  So are blocks of code within other routines that end by
+ * jumping to a cold routine.  When such a block was reached by falling
+ * through a conditional branch, the branch is inverted to go to the cold
+ * block instead, so that the hot path falls through.
+ *
+ * The remaining routines are ordered by call-graph affinity: routines
+ * that call each other at many sites are placed next to each other, by
+ * greedily merging chains of routines along the heaviest call edges
+ * first.  The first routine (`main`) stays first.  Edges are weighed by
+ * the number of call sites, or by call counts from a profile.
+ */
+public class CodeLayout {
+
+    /** Routines known to be cold. */
+    private final Set<String> coldRoots = new HashSet<>();
+
+    /** The weight of call edges into routines, by callee, overriding
+     *  the number of call sites.  See setCallCount. */
+    private final Map<String, Long> callCounts = new HashMap<>();
+
+    /** A layout in which the routines named COLDROOTS are cold. */
+    public CodeLayout(Collection<String> coldRoots) {
+        this.coldRoots.addAll(coldRoots);
+    }
+
+    /** Weigh the call edges into the routine labeled ROUTINE by COUNT,
+     *  the number of times it was called in a profiled run, in place of
+     *  the number of call sites. */
+    public void setCallCount(String routine, long count) {
+        callCounts.put(routine, count);
+    }
+
+    /** Treat the routine labeled ROUTINE as cold. */
+    public void addColdRoutine(String routine) {
+        coldRoots.add(routine);
+    }
+
+    /** Return UNITS, with each run of routines in the text segment laid
+     *  out as described above. */
+    public List<AsmUnit> layout(List<AsmUnit> units) {
+        List<AsmUnit> result = new ArrayList<>();
+        List<AsmUnit> run = new ArrayList<>();
+        for (AsmUnit unit : units) {
+            if (unit.name != null && !unit.data) {
+                run.add(unit);
+            } else {
+                result.addAll(layoutRun(run));
+                run.clear();
+                result.add(unit);
+            }
+        }
+        result.addAll(layoutRun(run));
+        return result;
+    }
+
+    /** Return the consecutive routines RUN, laid out. */
+    private List<AsmUnit> layoutRun(List<AsmUnit> run) {
+        if (run.isEmpty()) {
+            return run;
+        }
+        Set<String> cold = coldUnits(run);
+        List<AsmUnit> hot = new ArrayList<>();
+        List<AsmUnit> coldUnits = new ArrayList<>();
+        AsmUnit outlined = new AsmUnit(null, false);
+        boolean enteredByFallthrough = true;
+        for (AsmUnit unit : run) {
+            if (cold.contains(unit.name) && !enteredByFallthrough) {
+                coldUnits.add(unit);
+            } else {
+                hot.add(unit);
+                outlineColdBlocks(unit, cold, outlined.lines);
+            }
+            enteredByFallthrough = fallsThrough(unit);
+        }
+
+        List<AsmUnit> result = orderByAffinity(hot);
+        result.addAll(coldUnits);
+        if (!outlined.lines.isEmpty()) {
+            result.add(outlined);
+        }
+        return result;
+    }
+
+    /** Return the names of the cold routines in RUN: those in coldRoots,
+     *  and those that contain no branches or returns and end by jumping
+     *  to a cold routine. */
+    private Set<String> coldUnits(List<AsmUnit> run) {
+        Set<String> cold = new HashSet<>(coldRoots);
+        boolean changed;
+        do {
+            changed = false;
+            for (AsmUnit unit : run) {
+                if (!cold.contains(unit.name) && endsInColdJump(unit, cold)) {
+                    cold.add(unit.name);
+                    changed = true;
+                }
+            }
+        } while (changed);
+        return cold;
+    }
+
+    /** Return true iff UNIT has no branches or returns and ends by
+     *  jumping to a member of COLD. */
+    private boolean endsInColdJump(AsmUnit unit, Set<String> cold) {
+        AsmLine last = null;
+        for (AsmLine line : AsmLine.parse(unit.lines)) {
+            if (line.isBranch() || "jr".equals(line.op)
+                || "ret".equals(line.op)) {
+                return false;
+            }
+            if (line.isInsn()) {
+                last = line;
+            }
+        }
+        return last != null && "j".equals(last.op)
+            && cold.contains(last.target());
+    }
+
+    /**
+     * Move out of UNIT the blocks that jump to a member of COLD (adding
+     * their labels to COLD) and append them to OUT.  A block is moved
+     * only if it starts with a label, contains no other labels and no
+     * control transfer before its final jump, and either cannot be
+     * reached by falling through or is reached by falling through a
+     * conditional branch to the code that follows the block.
+     */
+    private void outlineColdBlocks(AsmUnit unit, Set<String> cold,
+                                   List<String> out) {
+        List<AsmLine> lines = AsmLine.parse(unit.lines);
+        List<AsmLine> moved = new ArrayList<>();
+        for (int start = 0; start < lines.size(); start += 1) {
+            AsmLine label = lines.get(start);
+            if (label.label == null || label.op != null
+                || label.label.equals(unit.name)) {
+                continue;
+            }
+            int end = start + 1;
+            while (end < lines.size() && lines.get(end).label == null
+                   && (lines.get(end).op == null
+                       || (lines.get(end).isInsn()
+                           && !lines.get(end).endsBlock()))) {
+                end += 1;
+            }
+            if (end == lines.size() || !"j".equals(lines.get(end).op)
+                || !cold.contains(lines.get(end).target())) {
+                continue;
+            }
+
+            int prev = previousInsn(lines, start);
+            if (prev < 0) {
+                continue;
+            }
+            AsmLine entry = lines.get(prev);
+            if (entry.isBranch()) {
+                AsmLine next = nextLabel(lines, end);
+                if (next == null || !next.label.equals(entry.target())) {
+                    continue;
+                }
+                String comment = entry.comment();
+                lines.set(prev, entry.inverted(label.label,
+                                               comment == null
+                                               ? "Go to cold path"
+                                               : "Go to cold path; else: "
+                                                 + comment));
+            } else if (!entry.isJump()) {
+                continue;
+            }
+
+            moved.addAll(lines.subList(start, end + 1));
+            lines.subList(start, end + 1).clear();
+            cold.add(label.label);
+            start -= 1;
+        }
+
+        if (!moved.isEmpty()) {
+            out.add("");
+            out.add("# Cold paths of " + unit.name);
+            out.addAll(AsmLine.texts(moved));
+            unit.lines.clear();
+            unit.lines.addAll(AsmLine.texts(lines));
+        }
+    }
+
+    /** Return the index of the last instruction in LINES before index
+     *  END, or -1 if there is none or a label intervenes. */
+    private static int previousInsn(List<AsmLine> lines, int end) {
+        for (int i = end - 1; i >= 0; i -= 1) {
+            AsmLine line = lines.get(i);
+            if (line.label != null || line.isDirective()) {
+                return -1;
+            } else if (line.isInsn()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Return the first line after index START in LINES that defines a
+     *  label, if only comments and blank lines precede it, else null. */
+    private static AsmLine nextLabel(List<AsmLine> lines, int start) {
+        for (int i = start + 1; i < lines.size(); i += 1) {
+            AsmLine line = lines.get(i);
+            if (line.label != null) {
+                return line;
+            } else if (line.op != null) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return UNITS, reordered so that routines that call each other
+     * often are adjacent.  A routine that may fall through into the next
+     * one stays glued to it, and the first routine stays first.
+     */
+    private List<AsmUnit> orderByAffinity(List<AsmUnit> units) {
+        List<List<AsmUnit>> groups = new ArrayList<>();
+        Map<String, Integer> groupOf = new HashMap<>();
+        List<AsmUnit> group = null;
+        for (AsmUnit unit : units) {
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.add(group);
+            }
+            group.add(unit);
+            groupOf.put(unit.name, groups.size() - 1);
+            if (!fallsThrough(unit)) {
+                group = null;
+            }
+        }
+
+        /* The number of sites at which each routine calls or jumps to
+         * each other routine in another group. */
+        Map<String, Map<String, Long>> sites = new HashMap<>();
+        for (AsmUnit unit : units) {
+            for (AsmLine line : AsmLine.parse(unit.lines)) {
+                Integer to = groupOf.get(line.target());
+                if ((line.isCall() || "j".equals(line.op)) && to != null
+                    && to != groupOf.get(unit.name).intValue()) {
+                    sites.computeIfAbsent(unit.name, k -> new HashMap<>())
+                        .merge(line.target(), 1L, Long::sum);
+                }
+            }
+        }
+
+        /* Weights of the edges between groups, indexed by the pair of
+         * group numbers (smaller first). */
+        Map<List<Integer>, Long> weights = new HashMap<>();
+        for (String caller : sites.keySet()) {
+            for (Map.Entry<String, Long> site
+                     : sites.get(caller).entrySet()) {
+                String callee = site.getKey();
+                int from = groupOf.get(caller), to = groupOf.get(callee);
+                long weight = callCounts.getOrDefault(callee,
+                                                      site.getValue());
+                weights.merge(Arrays.asList(Math.min(from, to),
+                                            Math.max(from, to)),
+                              weight, Long::sum);
+            }
+        }
+        List<List<Integer>> edges = new ArrayList<>(weights.keySet());
+        edges.sort((a, b) -> {
+            int byWeight = Long.compare(weights.get(b), weights.get(a));
+            if (byWeight != 0) {
+                return byWeight;
+            }
+            int byFirst = Integer.compare(a.get(0), b.get(0));
+            return byFirst != 0 ? byFirst
+                : Integer.compare(a.get(1), b.get(1));
+        });
+
+        /* Chains of groups, each referenced from all of its members. */
+        List<List<Integer>> chainOf = new ArrayList<>();
+        for (int i = 0; i < groups.size(); i += 1) {
+            List<Integer> chain = new ArrayList<>();
+            chain.add(i);
+            chainOf.add(chain);
+        }
+        for (List<Integer> edge : edges) {
+            int a = edge.get(0), b = edge.get(1);
+            List<Integer> chainA = chainOf.get(a), chainB = chainOf.get(b);
+            if (chainA == chainB) {
+                continue;
+            }
+            List<Integer> merged = new ArrayList<>();
+            boolean aFirst = chainA.contains(0)
+                || (!chainB.contains(0)
+                    && distance(chainA, chainB, a, b)
+                       <= distance(chainB, chainA, b, a));
+            merged.addAll(aFirst ? chainA : chainB);
+            merged.addAll(aFirst ? chainB : chainA);
+            for (int member : merged) {
+                chainOf.set(member, merged);
+            }
+        }
+
+        List<AsmUnit> result = new ArrayList<>();
+        Set<List<Integer>> done = new HashSet<>();
+        for (int i = 0; i < groups.size(); i += 1) {
+            List<Integer> chain = chainOf.get(i);
+            if (done.add(chain)) {
+                for (int member : chain) {
+                    result.addAll(groups.get(member));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Return the distance between X in FIRST and Y in SECOND when
+     *  SECOND is placed right after FIRST. */
+    private static int distance(List<Integer> first, List<Integer> second,
+                                int x, int y) {
+        return first.size() - first.indexOf(x) + second.indexOf(y);
+    }
+
+    /** Return true iff control may fall off the end of UNIT into the
+     *  code that follows it. */
+    private static boolean fallsThrough(AsmUnit unit) {
+        AsmLine last = null, beforeLast = null;
+        for (AsmLine line : AsmLine.parse(unit.lines)) {
+            if (line.label != null) {
+                last = beforeLast = null;
+            }
+            if (line.isInsn()) {
+                beforeLast = last;
+                last = line;
+            }
+        }
+        if (last == null) {
+            return true;
+        } else if (last.isJump()) {
+            return false;
+        }
+        /* An exit system call does not return. */
+        return !("ecall".equals(last.op) && beforeLast != null
+                 && "li".equals(beforeLast.op)
+                 && beforeLast.args.get(0).equals("a0")
+                 && Arrays.asList("10", "17", "@exit", "@exit2")
+                    .contains(beforeLast.args.get(1)));
+    }
+}
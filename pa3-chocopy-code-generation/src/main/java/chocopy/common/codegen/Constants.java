@@ -52,7 +52,7 @@ public class Constants {
      *
      * @return a fresh label
      */
-    public Label generateConstantLabel() {
+    public synchronized Label generateConstantLabel() {
         return new Label(String.format("const_%d", getNextLabelSuffix()));
     }
 
@@ -72,7 +72,7 @@ public class Constants {
      * @param value the integer value
      * @return the label for the integer value
      */
-    public Label getIntConstant(int value) {
+    public synchronized Label getIntConstant(int value) {
         if (intConstants.containsKey(value)) {
             return intConstants.get(value);
         } else {
@@ -88,7 +88,7 @@ public class Constants {
      * @param value the string value
      * @return the label for the string value
      */
-    public Label getStrConstant(String value) {
+    public synchronized Label getStrConstant(String value) {
         if (strConstants.containsKey(value)) {
             return strConstants.get(value);
         } else {
@@ -0,0 +1,352 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A latency-aware list scheduler for straight-line code.
+ *
+ * Code units are divided into basic blocks, which end at label
+ * definitions, directives, branches, jumps and calls.  Within each block,
+ * the instructions are reordered so that the result of a long-latency
+ * instruction (a load, a multiplication or a division) is not used
+ * before it is available, when independent work is available to fill the
+ * gap.  The instruction ending a block always stays last.
+ *
+ * An instruction must stay after every earlier instruction that writes a
+ * register it reads or writes, or reads a register it writes.  Memory
+ * accesses are ordered unless they cannot overlap (see {@link #mayAlias}).
+ * Comments preceding an instruction move with it.
+ */
+public class InstructionScheduler {
+
+    /** The latencies of the target. */
+    private final LatencyTable latencies;
+
+    /** Estimated cycles of all blocks seen, before and after scheduling. */
+    private long cyclesBefore, cyclesAfter;
+
+    /** A scheduler using LATENCIES. */
+    public InstructionScheduler(LatencyTable latencies) {
+        this.latencies = latencies;
+    }
+
+    /** Return the estimated cycles of all blocks scheduled so far, taking
+     *  each block once, in their original order. */
+    public long getCyclesBefore() {
+        return cyclesBefore;
+    }
+
+    /** Return the estimated cycles of all blocks scheduled so far, taking
+     *  each block once, in their scheduled order. */
+    public long getCyclesAfter() {
+        return cyclesAfter;
+    }
+
+    /** Schedule the code units among UNITS in place. */
+    public void schedule(List<AsmUnit> units) {
+        for (AsmUnit unit : units) {
+            if (!unit.data) {
+                List<String> lines = scheduleLines(unit.lines);
+                unit.lines.clear();
+                unit.lines.addAll(lines);
+            }
+        }
+    }
+
+    /** Return LINES of code, with each basic block scheduled. */
+    public List<String> scheduleLines(List<String> lines) {
+        List<AsmLine> result = new ArrayList<>();
+        List<Node> block = new ArrayList<>();
+        List<AsmLine> comments = new ArrayList<>();
+        for (AsmLine line : AsmLine.parse(lines)) {
+            if (line.label == null && line.op == null) {
+                comments.add(line);
+            } else if (line.label == null && line.isInsn()
+                       && !line.endsBlock() && isSchedulable(line)) {
+                block.add(new Node(block.size(), line, comments));
+                comments = new ArrayList<>();
+            } else if (line.label == null && line.isInsn()) {
+                flush(block, new Node(block.size(), line, comments), result);
+                comments = new ArrayList<>();
+            } else {
+                flush(block, null, result);
+                result.addAll(comments);
+                result.add(line);
+                comments = new ArrayList<>();
+            }
+        }
+        flush(block, null, result);
+        result.addAll(comments);
+        return AsmLine.texts(result);
+    }
+
+    /** Return true iff the registers read and written by INSN are known,
+     *  so that it can be moved. */
+    private boolean isSchedulable(AsmLine insn) {
+        return !insn.defs().isEmpty() || insn.isStore();
+    }
+
+    /** Schedule the nodes of BLOCK, followed by TERMINATOR (if not null),
+     *  append their lines to OUT, and clear BLOCK.  The original order
+     *  is kept unless scheduling is estimated to save cycles. */
+    private void flush(List<Node> block, Node terminator, List<AsmLine> out) {
+        List<Node> original = new ArrayList<>(block);
+        List<Node> scheduled = listSchedule(block);
+        if (terminator != null) {
+            original.add(terminator);
+            scheduled.add(terminator);
+        }
+        int before = estimateCycles(instructions(original)),
+            after = estimateCycles(instructions(scheduled));
+        if (after >= before) {
+            scheduled = original;
+            after = before;
+        }
+        for (Node node : scheduled) {
+            out.addAll(node.comments);
+            out.add(node.insn);
+        }
+        cyclesBefore += before;
+        cyclesAfter += after;
+        block.clear();
+    }
+
+    /** Return the instructions of NODES. */
+    private static List<AsmLine> instructions(List<Node> nodes) {
+        List<AsmLine> result = new ArrayList<>();
+        for (Node node : nodes) {
+            result.add(node.insn);
+        }
+        return result;
+    }
+
+    /** Return the nodes of BLOCK in scheduled order. */
+    private List<Node> listSchedule(List<Node> block) {
+        buildDependences(block);
+        for (int i = block.size() - 1; i >= 0; i -= 1) {
+            Node node = block.get(i);
+            node.height = latencies.latency(node.insn);
+            for (Edge edge : node.succs) {
+                node.height =
+                    Math.max(node.height, edge.latency + edge.to.height);
+            }
+        }
+
+        List<Node> ready = new ArrayList<>();
+        for (Node node : block) {
+            if (node.unscheduledPreds == 0) {
+                ready.add(node);
+            }
+        }
+        List<Node> order = new ArrayList<>();
+        int cycle = 0;
+        while (!ready.isEmpty()) {
+            Node best = null;
+            for (Node node : ready) {
+                if (best == null || better(node, best, cycle)) {
+                    best = node;
+                }
+            }
+            ready.remove(best);
+            order.add(best);
+            int issue = Math.max(cycle, best.earliest);
+            cycle = issue + 1;
+            for (Edge edge : best.succs) {
+                Node succ = edge.to;
+                succ.earliest =
+                    Math.max(succ.earliest, issue + edge.latency);
+                succ.unscheduledPreds -= 1;
+                if (succ.unscheduledPreds == 0) {
+                    ready.add(succ);
+                }
+            }
+        }
+        return order;
+    }
+
+    /** Return true iff node A is a better choice than node B to issue at
+     *  cycle CYCLE: it stalls less, then lies on a longer path, then
+     *  comes first in the original order. */
+    private boolean better(Node a, Node b, int cycle) {
+        int stallA = Math.max(0, a.earliest - cycle),
+            stallB = Math.max(0, b.earliest - cycle);
+        if (stallA != stallB) {
+            return stallA < stallB;
+        }
+        if (a.height != b.height) {
+            return a.height > b.height;
+        }
+        return a.index < b.index;
+    }
+
+    /** Add to the nodes of BLOCK the edges of their dependence graph. */
+    private void buildDependences(List<Node> block) {
+        /* The number of times each register has been written so far, used
+         * to tell whether two accesses use the same base address. */
+        Map<String, Integer> versions = new HashMap<>();
+        for (Node node : block) {
+            if (node.insn.isLoad() || node.insn.isStore()) {
+                String base = node.insn.memBase();
+                node.baseVersion = base == null ? 0
+                    : versions.getOrDefault(base, 0);
+            }
+            for (String reg : node.insn.defs()) {
+                versions.merge(reg, 1, Integer::sum);
+            }
+        }
+
+        for (int j = 0; j < block.size(); j += 1) {
+            Node later = block.get(j);
+            Set<String> laterDefs = later.insn.defs(),
+                laterUses = later.insn.uses();
+            for (int i = 0; i < j; i += 1) {
+                Node earlier = block.get(i);
+                Set<String> earlierDefs = earlier.insn.defs();
+                int latency = -1;
+                for (String reg : earlierDefs) {
+                    if (laterUses.contains(reg)) {
+                        latency = Math.max(latency,
+                                           latencies.latency(earlier.insn));
+                    } else if (laterDefs.contains(reg)) {
+                        latency = Math.max(latency, 1);
+                    }
+                }
+                for (String reg : earlier.insn.uses()) {
+                    if (laterDefs.contains(reg)) {
+                        latency = Math.max(latency, 0);
+                    }
+                }
+                if (memoryOrdered(earlier, later)) {
+                    latency = Math.max(latency,
+                                       earlier.insn.isStore() ? 1 : 0);
+                }
+                if (latency >= 0) {
+                    earlier.succs.add(new Edge(later, latency));
+                    later.unscheduledPreds += 1;
+                }
+            }
+        }
+    }
+
+    /** Return true iff memory accesses A and B (in that order) must not be
+     *  reordered. */
+    private boolean memoryOrdered(Node a, Node b) {
+        boolean aMem = a.insn.isLoad() || a.insn.isStore(),
+            bMem = b.insn.isLoad() || b.insn.isStore();
+        if (!aMem || !bMem || (a.insn.isLoad() && b.insn.isLoad())) {
+            return false;
+        }
+        return mayAlias(a, b);
+    }
+
+    /**
+     * Return true iff memory accesses A and B may overlap.
+     *
+     * Accesses to labels overlap only if the labels are the same; they do
+     * not overlap accesses relative to SP or FP, which lie in the stack.
+     * Two accesses relative to the same value of the same register
+     * overlap only if their offsets are numeric and their byte ranges
+     * intersect.  All other pairs may overlap.
+     */
+    private boolean mayAlias(Node a, Node b) {
+        String baseA = a.insn.memBase(), baseB = b.insn.memBase();
+        String offA = a.insn.memOffset(), offB = b.insn.memOffset();
+        if (baseA == null && baseB == null) {
+            return offA.equals(offB);
+        }
+        if (baseA == null || baseB == null) {
+            String base = baseA == null ? baseB : baseA;
+            return !base.equals("sp") && !base.equals("fp");
+        }
+        if (!baseA.equals(baseB) || a.baseVersion != b.baseVersion) {
+            return true;
+        }
+        Integer startA = parseOffset(offA), startB = parseOffset(offB);
+        if (startA == null || startB == null) {
+            return true;
+        }
+        return startA < startB + b.insn.memSize()
+            && startB < startA + a.insn.memSize();
+    }
+
+    /** Return the value of the numeric offset OFFSET (0 if empty), or
+     *  null if it is symbolic. */
+    private static Integer parseOffset(String offset) {
+        if (offset.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(offset);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return an estimate of the number of cycles taken by the
+     * instructions BLOCK, executed in order on a single-issue pipeline
+     * that stalls until the operands of each instruction are available.
+     * The last instruction is counted as finishing when it issues.
+     */
+    public int estimateCycles(List<AsmLine> block) {
+        Map<String, Integer> ready = new HashMap<>();
+        int cycle = 0;
+        for (AsmLine insn : block) {
+            int issue = cycle;
+            for (String reg : insn.uses()) {
+                issue = Math.max(issue, ready.getOrDefault(reg, 0));
+            }
+            for (String reg : insn.defs()) {
+                ready.put(reg, issue + latencies.latency(insn));
+            }
+            cycle = issue + 1;
+        }
+        return cycle;
+    }
+
+    /** An instruction in the dependence graph of a block. */
+    private static class Node {
+        /** The position of the instruction in the original block. */
+        final int index;
+        /** The instruction. */
+        final AsmLine insn;
+        /** The comment lines preceding the instruction. */
+        final List<AsmLine> comments;
+        /** The edges to instructions that must follow this one. */
+        final List<Edge> succs = new ArrayList<>();
+        /** The number of predecessors not yet scheduled. */
+        int unscheduledPreds;
+        /** The length of the longest path from this node to the end of
+         *  the block, in cycles. */
+        int height;
+        /** The earliest cycle at which this node can issue, given the
+         *  predecessors scheduled so far. */
+        int earliest;
+        /** For memory accesses, the number of writes to the base register
+         *  that precede the access in the block. */
+        int baseVersion;
+
+        Node(int index, AsmLine insn, List<AsmLine> comments) {
+            this.index = index;
+            this.insn = insn;
+            this.comments = comments;
+        }
+    }
+
+    /** A dependence between two nodes. */
+    private static class Edge {
+        /** The node that must follow. */
+        final Node to;
+        /** The minimum number of cycles between the two issues. */
+        final int latency;
+
+        Edge(Node to, int latency) {
+            this.to = to;
+            this.latency = latency;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package chocopy.common.codegen;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Instruction latencies of a target pipeline, by instruction class.
+ *
+ * The latency of an instruction is the number of cycles after it issues
+ * before an instruction that uses its result can issue without stalling.
+ * The defaults approximate a simple in-order RV32IM core.
+ */
+public class LatencyTable {
+
+    /** Classes of instructions that share a latency. */
+    public enum InsnClass {
+        /** Integer arithmetic, logic, moves and immediates. */
+        ALU,
+        /** Memory loads. */
+        LOAD,
+        /** Memory stores. */
+        STORE,
+        /** Multiplication. */
+        MUL,
+        /** Division and remainder. */
+        DIV,
+        /** Branches, jumps, calls and system calls. */
+        BRANCH
+    }
+
+    /** Latency of each class, in cycles. */
+    private final Map<InsnClass, Integer> latencies =
+        new EnumMap<>(InsnClass.class);
+
+    /** A table with the default latencies. */
+    public LatencyTable() {
+        latencies.put(InsnClass.ALU, 1);
+        latencies.put(InsnClass.LOAD, 3);
+        latencies.put(InsnClass.STORE, 1);
+        latencies.put(InsnClass.MUL, 3);
+        latencies.put(InsnClass.DIV, 20);
+        latencies.put(InsnClass.BRANCH, 1);
+    }
+
+    /**
+     * Return a table with the default latencies, overridden by those in
+     * SPEC.  SPEC is a comma-separated list of CLASS=CYCLES entries,
+     * where CLASS is a case-insensitive class name, as in
+     * "load=2,div=34".  SPEC may be null or empty.
+     */
+    public static LatencyTable parse(String spec) {
+        LatencyTable table = new LatencyTable();
+        if (spec == null || spec.trim().isEmpty()) {
+            return table;
+        }
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(
+                    "Malformed latency entry: " + entry);
+            }
+            InsnClass cls;
+            int cycles;
+            try {
+                cls = InsnClass.valueOf(parts[0].trim().toUpperCase());
+                cycles = Integer.parseInt(parts[1].trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                    "Malformed latency entry: " + entry);
+            }
+            table.latencies.put(cls, Math.max(1, cycles));
+        }
+        return table;
+    }
+
+    /** Return the class of instruction INSN. */
+    public static InsnClass classOf(AsmLine insn) {
+        if (insn.isLoad()) {
+            return InsnClass.LOAD;
+        } else if (insn.isStore()) {
+            return InsnClass.STORE;
+        } else if (insn.endsBlock()) {
+            return InsnClass.BRANCH;
+        }
+        switch (insn.op) {
+        case "mul": case "mulh": case "mulhu":
+            return InsnClass.MUL;
+        case "div": case "divu": case "rem": case "remu":
+            return InsnClass.DIV;
+        default:
+            return InsnClass.ALU;
+        }
+    }
+
+    /** Return the latency of instruction INSN, in cycles. */
+    public int latency(AsmLine insn) {
+        return latencies.get(classOf(insn));
+    }
+
+    /** Return the latency of instructions of class CLS, in cycles. */
+    public int latency(InsnClass cls) {
+        return latencies.get(cls);
+    }
+}
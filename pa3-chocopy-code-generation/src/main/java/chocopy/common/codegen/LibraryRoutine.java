@@ -0,0 +1,98 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static chocopy.common.Utils.getResourceFileAsString;
+import static chocopy.common.Utils.pad;
+
+/**
+ * A routine of the runtime library, read from its assembly source once
+ * per JVM and kept in preprocessed form.
+ *
+ * The notation STRING["..."] in the source refers to a string constant.
+ * These references are found when the source is first read, so that
+ * emitting the routine in a given program only requires binding each
+ * of them to the label of its constant in that program.  References to
+ * @-symbols are left for the backend to resolve.
+ */
+public class LibraryRoutine {
+
+    /** Pattern matching STRING["..."]. */
+    private static final Pattern STRING_LITERAL_PATN =
+        Pattern.compile("STRING\\[\"(.*?)\"\\]");
+
+    /** Stands for a missing source file in CACHE. */
+    private static final LibraryRoutine MISSING =
+        new LibraryRoutine("");
+
+    /** The routines read so far, by the name of their source file. */
+    private static final Map<String, LibraryRoutine> CACHE =
+        new ConcurrentHashMap<>();
+
+    /** The source of this routine. */
+    private final String source;
+
+    /** The source text between references to string constants: one
+     *  more piece than there are references. */
+    private final List<String> pieces = new ArrayList<>();
+
+    /** The contents of the string constants referenced, in order. */
+    private final List<String> strings = new ArrayList<>();
+
+    /** The width of each reference to a string constant in the source,
+     *  in order. */
+    private final List<Integer> widths = new ArrayList<>();
+
+    /** A routine whose source is SOURCE. */
+    private LibraryRoutine(String source) {
+        this.source = source;
+        Matcher matcher = STRING_LITERAL_PATN.matcher(source);
+        int start = 0;
+        while (matcher.find()) {
+            pieces.add(source.substring(start, matcher.start()));
+            strings.add(matcher.group(1));
+            widths.add(matcher.end() - matcher.start());
+            start = matcher.end();
+        }
+        pieces.add(source.substring(start));
+    }
+
+    /** Return the routine whose source is resource file FILENAME (as for
+     *  Utils.getResourceFileAsString), or null if there is none. */
+    public static LibraryRoutine get(String fileName) {
+        LibraryRoutine routine =
+            CACHE.computeIfAbsent(fileName, LibraryRoutine::read);
+        return routine == MISSING ? null : routine;
+    }
+
+    /** Return the routine read from resource file FILENAME, or MISSING. */
+    private static LibraryRoutine read(String fileName) {
+        String source = getResourceFileAsString(fileName);
+        return source == null ? MISSING : new LibraryRoutine(source);
+    }
+
+    /** Return the source of this routine, as written. */
+    public String getSource() {
+        return source;
+    }
+
+    /** Return the text of this routine with each reference to a string
+     *  constant replaced by LABELS applied to the contents of the
+     *  constant, padded to the width of the reference where possible. */
+    public String bind(Function<String, Label> labels) {
+        StringBuilder result = new StringBuilder(source.length());
+        result.append(pieces.get(0));
+        for (int i = 0; i < strings.size(); i += 1) {
+            result.append(pad(labels.apply(strings.get(i)).toString(), ' ',
+                              widths.get(i), false));
+            result.append(pieces.get(i + 1));
+        }
+        return result.toString();
+    }
+}
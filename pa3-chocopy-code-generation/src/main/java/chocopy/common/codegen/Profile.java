@@ -0,0 +1,159 @@
+package chocopy.common.codegen;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import chocopy.common.astnodes.Node;
+
+/**
+ * Execution counts recorded by a previous run of a program.
+ *
+ * A profile is a text file whose first line is
+ *
+ *     chocopy-profile 1
+ *
+ * (the format name and version), followed by lines of the forms
+ *
+ *     call FUNCNAME COUNT
+ *     branch FUNCNAME LINE:COLUMN TRUECOUNT FALSECOUNT
+ *
+ * where FUNCNAME is a name as returned by FuncInfo.getFuncName() (or
+ * {@link #TOP_LEVEL} for top-level statements), and LINE:COLUMN is the
+ * start of a conditional statement, as returned by Node.getLocation().
+ * A `call` line gives the number of calls to the function; a `branch`
+ * line gives the number of times the condition of the statement was
+ * found to be true and false.  Blank lines and lines starting with '#'
+ * are ignored, as are any lines before the first, so that the output of
+ * a program compiled to write its profile (see
+ * CodeGenBase.setInstrument) may be read as is.
+ */
+public class Profile {
+
+    /** The format name on the first line of a profile. */
+    public static final String FORMAT = "chocopy-profile";
+
+    /** The format version understood. */
+    public static final int VERSION = 1;
+
+    /** The function name that denotes the top level. */
+    public static final String TOP_LEVEL = "<top>";
+
+    /** Call counts, by function name. */
+    private final Map<String, Long> calls = new HashMap<>();
+
+    /** True and false counts of conditions, by the key returned by
+     *  branchKey. */
+    private final Map<String, long[]> branches = new HashMap<>();
+
+    /** Return the profile in the file named PATH. */
+    public static Profile read(String path) {
+        try (Reader reader = new FileReader(path)) {
+            return read(reader);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read profile "
+                                               + path + ": "
+                                               + e.getMessage());
+        }
+    }
+
+    /** Return the profile read from READER. */
+    public static Profile read(Reader reader) throws IOException {
+        Profile profile = new Profile();
+        BufferedReader lines = new BufferedReader(reader);
+        String header;
+        do {
+            header = lines.readLine();
+            if (header == null) {
+                throw new IllegalArgumentException(
+                    "Not a profile: no " + FORMAT + " line");
+            }
+            header = header.trim();
+        } while (!header.startsWith(FORMAT + " "));
+        if (!header.equals(FORMAT + " " + VERSION)) {
+            throw new IllegalArgumentException(
+                "Not a version " + VERSION + " profile: " + header);
+        }
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields[0].equals("call") && fields.length == 3) {
+                    profile.calls.merge(fields[1],
+                                        Long.parseLong(fields[2]),
+                                        Long::sum);
+                    continue;
+                } else if (fields[0].equals("branch") && fields.length == 5) {
+                    long[] counts = profile.branches.computeIfAbsent(
+                        fields[1] + " " + fields[2], k -> new long[2]);
+                    counts[0] += Long.parseLong(fields[3]);
+                    counts[1] += Long.parseLong(fields[4]);
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                /* Reported below. */
+            }
+            throw new IllegalArgumentException("Malformed profile line: "
+                                               + line);
+        }
+        return profile;
+    }
+
+    /** Return the function name under which code in FUNCINFO is recorded,
+     *  where FUNCINFO is null for the top level. */
+    public static String nameOf(FuncInfo funcInfo) {
+        return funcInfo == null ? TOP_LEVEL : funcInfo.getFuncName();
+    }
+
+    /** Return the key of the condition of NODE in function FUNCNAME. */
+    private static String branchKey(String funcName, Node node) {
+        int[] location = node.getLocation();
+        return funcName + " " + location[0] + ":" + location[1];
+    }
+
+    /** Return the start of the line recording the calls to function
+     *  FUNCNAME, up to its count. */
+    public static String callRecord(String funcName) {
+        return "call " + funcName;
+    }
+
+    /** Return the start of the line recording the condition of statement
+     *  NODE in function FUNCNAME, up to its counts. */
+    public static String branchRecord(String funcName, Node node) {
+        return "branch " + branchKey(funcName, node);
+    }
+
+    /** Return the number of calls recorded for function FUNCNAME, or -1
+     *  if none are recorded. */
+    public long getCallCount(String funcName) {
+        return calls.getOrDefault(funcName, -1L);
+    }
+
+    /** Return the numbers of times the condition of statement NODE, in
+     *  function FUNCNAME, was true and false, as a two-element array, or
+     *  null if they were not recorded. */
+    public long[] getBranchCounts(String funcName, Node node) {
+        return branches.get(branchKey(funcName, node));
+    }
+
+    /** Return true iff the condition of statement NODE, in function
+     *  FUNCNAME, was recorded as false more often than true. */
+    public boolean isMostlyFalse(String funcName, Node node) {
+        long[] counts = getBranchCounts(funcName, node);
+        return counts != null && counts[1] > counts[0];
+    }
+
+    /** Return true iff the condition of statement NODE, in function
+     *  FUNCNAME, was recorded as true more often than false. */
+    public boolean isMostlyTrue(String funcName, Node node) {
+        long[] counts = getBranchCounts(funcName, node);
+        return counts != null && counts[0] > counts[1];
+    }
+}
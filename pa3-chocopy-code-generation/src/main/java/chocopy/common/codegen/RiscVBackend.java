@@ -3,7 +3,6 @@ package chocopy.common.codegen;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.HashMap;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /** RISC V assembly-language generation utilities. */
@@ -15,6 +14,11 @@ public class RiscVBackend {
     /** Allows print, println, and printf of assmebly code. */
     private final PrintWriter out = new PrintWriter(asmText);
 
+    /** When non-null for a thread, receives the text emitted by that
+     *  thread in place of asmText.  Several threads may thus emit at
+     *  once, each into a buffer of its own. */
+    private final ThreadLocal<StringWriter> capture = new ThreadLocal<>();
+
     /** The word size in bytes for RISC-V 32-bit. */
     protected static final int WORD_SIZE = 4;
 
@@ -46,60 +50,24 @@ public class RiscVBackend {
 
     }
 
-    /** Matches a reference to an assembler symbol, and possibly a trailing
-     *  +CONST or -CONST. */
-    static final Pattern ASM_SYM_REF_PATN =
-        Pattern.compile("@(.[a-zA-Z_0-9.$]*)(?:\\s*([-+]\\d+))?|(#.*)|(\r?\n)");
     /** Matches a decimal numeral with optional sign. */
     static final Pattern SIGNED_INT_PATN = Pattern.compile("[-+]?\\d+");
 
+    /** True iff comments, blank lines and indentation are omitted and
+     *  @-symbols are replaced by their values as code is emitted. */
+    private boolean lean;
+
     @Override
     public String toString() {
         return asmText.toString();
     }
 
-    /** Return the accumulated assembly code.  It is an error if the
-     *  accumulated code contains any '@' references to undefined symbols. */
-    protected String oldToString() {
-        int deltaSpace;
-        StringBuffer result = new StringBuffer();
-        deltaSpace = 0;
-        Matcher refs = ASM_SYM_REF_PATN.matcher(asmText.toString());
-        while (refs.find()) {
-            if (refs.group(3) != null) {
-                String repl = refs.group(3);
-                refs.appendReplacement(result, "");
-                while (deltaSpace < 0) {
-                    result.append(" ");
-                    deltaSpace += 1;
-                }
-                result.append(repl);
-            } else if (refs.group(4) != null) {
-                deltaSpace = 0;
-                refs.appendReplacement(result, refs.group(4));
-            } else {
-                String repl;
-                repl = defns.get(refs.group(1));
-                if (repl == null) {
-                    throw new IllegalStateException("undefined symbol: @"
-                                                    + refs.group(1));
-                }
-                if (refs.group(2) != null) {
-                    if (SIGNED_INT_PATN.matcher(repl).matches()) {
-                        int val = Integer.parseInt(repl)
-                            + Integer.parseInt(refs.group(2));
-                        repl = Integer.toString(val);
-                    } else {
-                        repl += refs.group(2);
-                    }
-                }
-                refs.appendReplacement(result, repl);
-                deltaSpace += repl.length() - refs.end(0) + refs.start(0);
-            }
-        }
-        refs.appendTail(result);
-
-        return result.toString();
+    /** Emit lean code iff LEAN: omit comments, blank lines and padding,
+     *  and replace references to @-symbols by their values rather than
+     *  defining the symbols with .equiv.  Must be set before any symbol
+     *  is defined. */
+    public void setLean(boolean lean) {
+        this.lean = lean;
     }
 
     /** Define @NAME to have the value VALUE.  Here, NAME is assumed to be
@@ -109,8 +77,10 @@ public class RiscVBackend {
      */
     public void defineSym(String name, String value) {
         if (name.startsWith("@")) {
-            emitInsn(String.format(".equiv %s, %s", name, value), null);
-        } else {
+            name = name.substring(1);
+        }
+        defns.put(name, value);
+        if (!lean) {
             emitInsn(String.format(".equiv @%s, %s", name, value), null);
         }
     }
@@ -138,7 +108,157 @@ public class RiscVBackend {
      * trailing newline.
      */
     protected void emit(String str) {
-        out.println(str);
+        if (lean) {
+            str = leanText(str);
+            if (str.isEmpty()) {
+                return;
+            }
+        }
+        emitLines(str + System.lineSeparator());
+    }
+
+    /** Return TEXT, one or more lines, with comments, blank lines and
+     *  indentation removed and references to @-symbols replaced by their
+     *  values. */
+    private String leanText(String text) {
+        if (text.indexOf('\n') < 0) {
+            return leanLine(text);
+        }
+        StringBuilder result = new StringBuilder();
+        for (String line : text.split("\r?\n")) {
+            line = leanLine(line);
+            if (!line.isEmpty()) {
+                if (result.length() > 0) {
+                    result.append(System.lineSeparator());
+                }
+                result.append(line);
+            }
+        }
+        return result.toString();
+    }
+
+    /** Return LINE without its comment or surrounding blanks, and with
+     *  references to @-symbols replaced by their values. */
+    private String leanLine(String line) {
+        int comment = AsmLine.commentStart(line);
+        if (comment >= 0) {
+            line = line.substring(0, comment);
+        }
+        return resolveSymbols(line.trim());
+    }
+
+    /** Return LINE with each reference to an @-symbol outside string
+     *  literals replaced by the symbol's value.  A +CONST or -CONST
+     *  following the reference is added to a numeric value.  It is an
+     *  error to refer to a symbol that is not yet defined. */
+    private String resolveSymbols(String line) {
+        if (line.indexOf('@') < 0) {
+            return line;
+        }
+        StringBuilder result = new StringBuilder();
+        boolean quoted = false;
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (c == '\\' && quoted && i + 1 < line.length()) {
+                result.append(c).append(line.charAt(i + 1));
+                i += 2;
+                continue;
+            }
+            if (c != '@' || quoted) {
+                quoted ^= c == '"';
+                result.append(c);
+                i += 1;
+                continue;
+            }
+            int end = Math.min(i + 2, line.length());
+            while (end < line.length() && isSymbolChar(line.charAt(end))) {
+                end += 1;
+            }
+            String name = line.substring(i + 1, end);
+            String value = defns.get(name);
+            if (value == null) {
+                throw new IllegalStateException("undefined symbol: @" + name);
+            }
+            value = resolveSymbols(value);
+            int addend = end;
+            while (addend < line.length() && line.charAt(addend) == ' ') {
+                addend += 1;
+            }
+            int addendEnd = addend + 1;
+            while (addendEnd < line.length()
+                   && Character.isDigit(line.charAt(addendEnd))) {
+                addendEnd += 1;
+            }
+            if (addendEnd > addend + 1
+                && (line.charAt(addend) == '+' || line.charAt(addend) == '-')) {
+                String offset = line.substring(addend, addendEnd);
+                if (SIGNED_INT_PATN.matcher(value).matches()) {
+                    value = Integer.toString(Integer.parseInt(value)
+                                             + Integer.parseInt(offset));
+                } else {
+                    value += offset;
+                }
+                end = addendEnd;
+            }
+            result.append(value);
+            i = end;
+        }
+        return result.toString();
+    }
+
+    /** Return true iff C may appear in the name of an @-symbol after its
+     *  first character. */
+    private static boolean isSymbolChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.'
+            || c == '$';
+    }
+
+    /**
+     * Emit TEXT, a sequence of complete lines such as returned by
+     * {@link #capture(Runnable)}, verbatim.
+     */
+    public void emitLines(String text) {
+        StringWriter buffer = capture.get();
+        if (buffer != null) {
+            buffer.write(text);
+        } else {
+            out.print(text);
+        }
+    }
+
+    /**
+     * Divert all text subsequently emitted by the current thread into a
+     * fresh buffer, until the next call to {@link #endCapture()}.
+     */
+    public void startCapture() {
+        capture.set(new StringWriter());
+    }
+
+    /**
+     * Stop diverting text emitted by the current thread and return the
+     * text it emitted since the last call to {@link #startCapture()}.
+     */
+    public String endCapture() {
+        String result = capture.get().toString();
+        capture.remove();
+        return result;
+    }
+
+    /**
+     * Run EMISSION, diverting the text it emits on the current thread
+     * into a fresh buffer, and return that text.  Text emitted before
+     * and after is diverted as it was before.
+     */
+    public String capture(Runnable emission) {
+        StringWriter outer = capture.get();
+        capture.set(new StringWriter());
+        try {
+            emission.run();
+            return capture.get().toString();
+        } finally {
+            capture.set(outer);
+        }
     }
 
     /**
@@ -146,7 +266,7 @@ public class RiscVBackend {
      * comment, if non-null.
      */
     public void emitInsn(String insn, String comment) {
-        if (comment != null) {
+        if (comment != null && !lean) {
             emit(String.format("  %-40s # %s", insn, comment));
         } else {
             emitInsn(insn);
@@ -157,7 +277,7 @@ public class RiscVBackend {
      * Emit instruction or directive INSN without a comment.
      */
     protected void emitInsn(String insn) {
-        emit(String.format("  %s", insn));
+        emit(lean ? insn : String.format("  %s", insn));
     }
 
     /**
@@ -165,10 +285,10 @@ public class RiscVBackend {
      * if missing).  Invoke only once per unique label.
      */
     public void emitLocalLabel(Label label, String comment) {
-        if (comment != null) {
+        if (comment != null && !lean) {
             emit(String.format("%-42s # %s", label + ":", comment));
         } else {
-            emit(String.format("%s:", label + ":"));
+            emit(label + ":");
         }
     }
 
@@ -0,0 +1,889 @@
+package chocopy.common.codegen;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Direct encoding of emitted assembly code as RV32IM machine code.
+ *
+ * This takes the place of a separate assembler.  The final text of a
+ * program, as emitted by RiscVBackend and rewritten by later passes, is
+ * encoded in two passes.  The first lays out the text and data segments,
+ * giving each label its address.  A conditional branch whose target
+ * turns out to be out of range is replaced by an inverted branch around a
+ * jump, and layout repeats until no more branches need replacing.  The
+ * second pass encodes each instruction and datum, resolving labels and
+ * @-symbols (as defined by RiscVBackend#defineSym) to their values.
+ * Pseudo-instructions expand as in Venus, so that, laid out where Venus
+ * lays them out, the segments hold the words Venus assembles (unless a
+ * branch was replaced, which Venus would reject as out of range).
+ *
+ * The result is either a static ELF executable, with its text segment at
+ * TEXT_BASE and its data segment at DATA_BASE, or a flat image holding
+ * the text segment followed by the data segment.  Either starts with a
+ * stub that sets SP and GP to their initial values in Venus, STACK_TOP
+ * and GLOBAL_POINTER, and jumps to `main`.  The stack below STACK_TOP
+ * must be mapped by whatever loads the program.  The program still makes
+ * the environment calls of Venus (see CodeGenBase.EXIT_ECALL and those
+ * following it), so it runs only where those are provided, as in a
+ * simulator.
+ */
+public class RiscVEncoder {
+
+    /** The address of the text segment of an executable.  (Venus places
+     *  its text at 0, which executables leave unmapped.) */
+    public static final int TEXT_BASE = 0x00400000;
+
+    /** The address of the data segment of an executable, and of the
+     *  static data in Venus. */
+    public static final int DATA_BASE = 0x10000000;
+
+    /** The initial value of SP, as in Venus. */
+    public static final int STACK_TOP = 0x7ffffff0;
+
+    /** The initial value of GP, as in Venus. */
+    public static final int GLOBAL_POINTER = 0x10008000;
+
+    /** Segments start on multiples of this size. */
+    private static final int PAGE_SIZE = 0x1000;
+
+    /** Major opcodes. */
+    private static final int
+        LUI = 0x37, AUIPC = 0x17, JAL = 0x6f, JALR = 0x67, BRANCH = 0x63, LOAD = 0x03,
+        STORE = 0x23, OP_IMM = 0x13, OP = 0x33, SYSTEM = 0x73;
+
+    /** The funct7 and funct3 fields of register-register instructions,
+     *  as FUNCT7 << 3 | FUNCT3. */
+    private static final Map<String, Integer> OP_FUNCTS = new HashMap<>();
+
+    /** The funct3 fields of register-immediate instructions (and, for
+     *  shifts, the funct7 field, as for OP_FUNCTS). */
+    private static final Map<String, Integer> OP_IMM_FUNCTS = new HashMap<>();
+
+    /** The funct3 fields of loads, stores and branches. */
+    private static final Map<String, Integer> MEM_FUNCTS = new HashMap<>();
+
+    /** The opposite of each branch of BRANCH_FUNCTS. */
+    private static final Map<String, String> INVERSES = new HashMap<>();
+
+    /** The funct3 fields of conditional branches. */
+    private static final Map<String, Integer> BRANCH_FUNCTS = new HashMap<>();
+
+    /** The numbers of registers, by name. */
+    private static final Map<String, Integer> REGISTERS = new HashMap<>();
+
+    static {
+        String[] ops = {
+            "add", "sll", "slt", "sltu", "xor", "srl", "or", "and"
+        };
+        String[] mulOps = {
+            "mul", "mulh", "mulhsu", "mulhu", "div", "divu", "rem", "remu"
+        };
+        for (int f3 = 0; f3 < 8; f3 += 1) {
+            OP_FUNCTS.put(ops[f3], f3);
+            OP_FUNCTS.put(mulOps[f3], 0x01 << 3 | f3);
+        }
+        OP_FUNCTS.put("sub", 0x20 << 3);
+        OP_FUNCTS.put("sra", 0x20 << 3 | 5);
+
+        OP_IMM_FUNCTS.put("addi", 0);
+        OP_IMM_FUNCTS.put("slli", 1);
+        OP_IMM_FUNCTS.put("slti", 2);
+        OP_IMM_FUNCTS.put("sltiu", 3);
+        OP_IMM_FUNCTS.put("xori", 4);
+        OP_IMM_FUNCTS.put("srli", 5);
+        OP_IMM_FUNCTS.put("srai", 0x20 << 3 | 5);
+        OP_IMM_FUNCTS.put("ori", 6);
+        OP_IMM_FUNCTS.put("andi", 7);
+
+        String[] loads = { "lb", "lh", "lw", null, "lbu", "lhu" };
+        String[] stores = { "sb", "sh", "sw" };
+        for (int f3 = 0; f3 < loads.length; f3 += 1) {
+            if (loads[f3] != null) {
+                MEM_FUNCTS.put(loads[f3], f3);
+            }
+        }
+        for (int f3 = 0; f3 < stores.length; f3 += 1) {
+            MEM_FUNCTS.put(stores[f3], f3);
+        }
+
+        String[] branches = {
+            "beq", "bne", null, null, "blt", "bge", "bltu", "bgeu"
+        };
+        for (int f3 = 0; f3 < branches.length; f3 += 1) {
+            if (branches[f3] != null) {
+                BRANCH_FUNCTS.put(branches[f3], f3);
+                INVERSES.put(branches[f3], branches[f3 ^ 1]);
+            }
+        }
+
+        String[] names = {
+            "zero", "ra", "sp", "gp", "tp", "t0", "t1", "t2",
+            "fp", "s1", "a0", "a1", "a2", "a3", "a4", "a5",
+            "a6", "a7", "s2", "s3", "s4", "s5", "s6", "s7",
+            "s8", "s9", "s10", "s11", "t3", "t4", "t5", "t6"
+        };
+        for (int i = 0; i < names.length; i += 1) {
+            REGISTERS.put(names[i], i);
+            REGISTERS.put("x" + i, i);
+        }
+        REGISTERS.put("s0", 8);
+    }
+
+    /** Matches a memory operand of the form OFFSET(REG). */
+    private static final Pattern MEM_PATN =
+        Pattern.compile("^(.*)\\((\\w+)\\)$");
+
+    /** Matches a numeral. */
+    private static final Pattern NUMERAL_PATN =
+        Pattern.compile("[-+]?(0[xX][0-9a-fA-F]+|\\d+)");
+
+    /** Matches a symbol, possibly followed by +CONST or -CONST. */
+    private static final Pattern SYM_EXPR_PATN =
+        Pattern.compile("([^\\s+-]+)\\s*(?:([-+])\\s*(\\d+))?");
+
+    /** An instruction, directive or label of the program, with its
+     *  place in the current layout. */
+    private static class Item {
+        /** The line holding this item. */
+        final AsmLine line;
+        /** True iff this item is in the data segment. */
+        final boolean data;
+        /** The address of this item. */
+        int address;
+        /** The number of bytes this item occupies. */
+        int size;
+        /** True iff this is a conditional branch that has been replaced
+         *  by an inverted branch around a jump. */
+        boolean far;
+
+        /** The item on LINE, in the data segment iff DATA. */
+        Item(AsmLine line, boolean data) {
+            this.line = line;
+            this.data = data;
+        }
+    }
+
+    /** The lines of the program. */
+    private final List<AsmLine> lines;
+
+    /** The values of @-symbols, as written in their definitions. */
+    private final Map<String, String> symbols = new HashMap<>();
+
+    /** The labels declared global. */
+    private final Set<String> globals = new HashSet<>();
+
+    /** The items of the current layout. */
+    private final List<Item> items = new ArrayList<>();
+
+    /** The items defining each label in the current layout. */
+    private final Map<String, Item> labels = new LinkedHashMap<>();
+
+    /** The addresses of the text and data segments in the current
+     *  layout. */
+    private int textBase, dataBase;
+
+    /** The encoded text and data segments of the current layout. */
+    private byte[] text, data;
+
+    /** An encoder for PROGRAM, the text of an assembly program. */
+    public RiscVEncoder(String program) {
+        lines = AsmLine.parse(Arrays.asList(program.split("\r?\n")));
+        for (AsmLine line : lines) {
+            if (".equiv".equals(line.op) || ".equ".equals(line.op)
+                || ".set".equals(line.op)) {
+                symbols.put(line.args.get(0), line.args.get(1));
+            } else if (".globl".equals(line.op)
+                       || ".global".equals(line.op)) {
+                globals.addAll(line.args);
+            }
+        }
+    }
+
+    /** Return the program as a static ELF executable. */
+    public byte[] toElf() {
+        assemble(TEXT_BASE, DATA_BASE, true);
+
+        List<String> order = new ArrayList<>();
+        for (String name : labels.keySet()) {
+            if (!globals.contains(name)) {
+                order.add(name);
+            }
+        }
+        int firstGlobal = order.size() + 1;
+        for (String name : labels.keySet()) {
+            if (globals.contains(name)) {
+                order.add(name);
+            }
+        }
+        StringTable strtab = new StringTable();
+        ByteBuffer symtab = buffer(16 * (order.size() + 1));
+        symtab.position(16);
+        for (String name : order) {
+            Item item = labels.get(name);
+            symtab.putInt(strtab.add(name));
+            symtab.putInt(item.address);
+            symtab.putInt(0);
+            symtab.put((byte) (globals.contains(name) ? 0x10 : 0x00));
+            symtab.put((byte) 0);
+            symtab.putShort((short) (item.data ? 2 : 1));
+        }
+        StringTable shstrtab = new StringTable();
+        String[] sectionNames = {
+            "", ".text", ".data", ".symtab", ".strtab", ".shstrtab"
+        };
+        int[] nameOffsets = new int[sectionNames.length];
+        for (int i = 0; i < sectionNames.length; i += 1) {
+            nameOffsets[i] = shstrtab.add(sectionNames[i]);
+        }
+
+        int textOffset = PAGE_SIZE;
+        int dataOffset = align(textOffset + text.length, PAGE_SIZE);
+        int symtabOffset = dataOffset + data.length;
+        int strtabOffset = symtabOffset + symtab.capacity();
+        int shstrtabOffset = strtabOffset + strtab.size();
+        int shOffset = align(shstrtabOffset + shstrtab.size(), 4);
+        ByteBuffer elf = buffer(shOffset + 40 * sectionNames.length);
+
+        elf.put(new byte[] { 0x7f, 'E', 'L', 'F', 1, 1, 1, 0 });
+        elf.position(16);
+        elf.putShort((short) 2);
+        elf.putShort((short) 243);
+        elf.putInt(1);
+        elf.putInt(textBase);
+        elf.putInt(52);
+        elf.putInt(shOffset);
+        elf.putInt(0);
+        elf.putShort((short) 52);
+        elf.putShort((short) 32);
+        elf.putShort((short) 2);
+        elf.putShort((short) 40);
+        elf.putShort((short) sectionNames.length);
+        elf.putShort((short) (sectionNames.length - 1));
+
+        putSegment(elf, textOffset, textBase, text.length, 5);
+        putSegment(elf, dataOffset, dataBase, data.length, 6);
+
+        elf.position(textOffset);
+        elf.put(text);
+        elf.position(dataOffset);
+        elf.put(data);
+        elf.put(symtab.array());
+        elf.put(strtab.toBytes());
+        elf.put(shstrtab.toBytes());
+
+        elf.position(shOffset + 40);
+        putSection(elf, nameOffsets[1], 1, 6, textBase, textOffset,
+                   text.length, 0, 0, 4, 0);
+        putSection(elf, nameOffsets[2], 1, 3, dataBase, dataOffset,
+                   data.length, 0, 0, 4, 0);
+        putSection(elf, nameOffsets[3], 2, 0, 0, symtabOffset,
+                   symtab.capacity(), 4, firstGlobal, 4, 16);
+        putSection(elf, nameOffsets[4], 3, 0, 0, strtabOffset,
+                   strtab.size(), 0, 0, 1, 0);
+        putSection(elf, nameOffsets[5], 3, 0, 0, shstrtabOffset,
+                   shstrtab.size(), 0, 0, 1, 0);
+        return elf.array();
+    }
+
+    /** Return the program as a flat image to be loaded at address BASE,
+     *  holding the text segment, starting with the entry stub, and then
+     *  the data segment at the next page boundary. */
+    public byte[] toImage(int base) {
+        assemble(base, -1, true);
+        byte[] image = new byte[dataBase - textBase + data.length];
+        System.arraycopy(text, 0, image, 0, text.length);
+        System.arraycopy(data, 0, image, dataBase - textBase, data.length);
+        return image;
+    }
+
+    /** Return the text and data segments of the program, without the
+     *  entry stub, laid out at TEXTBASE and DATABASE. */
+    byte[][] toSegments(int textBase, int dataBase) {
+        assemble(textBase, dataBase, false);
+        return new byte[][] { text, data };
+    }
+
+    /** Lay out and encode the program, with its text segment at TEXTBASE
+     *  and its data segment at DATABASE, or at the page following the
+     *  text segment if DATABASE is negative.  If STUB, begin the text
+     *  segment with the entry stub. */
+    private void assemble(int textBase, int dataBase, boolean stub) {
+        items.clear();
+        labels.clear();
+        boolean inData = false;
+        if (stub) {
+            String[] entry = {
+                String.format("li sp, 0x%08x", STACK_TOP),
+                String.format("li gp, 0x%08x", GLOBAL_POINTER),
+                "j main"
+            };
+            for (String insn : entry) {
+                items.add(new Item(AsmLine.insnLine(insn, null), false));
+            }
+        }
+        for (AsmLine line : lines) {
+            if (".data".equals(line.op)) {
+                inData = true;
+            } else if (".text".equals(line.op)) {
+                inData = false;
+            }
+            Item item = new Item(line, inData);
+            if (line.label != null && labels.put(line.label, item) != null) {
+                throw new IllegalStateException("duplicate label: "
+                                                + line.label);
+            }
+            items.add(item);
+        }
+
+        this.textBase = textBase;
+        boolean changed;
+        do {
+            int textEnd = place(false, textBase);
+            this.dataBase =
+                dataBase >= 0 ? dataBase : align(textEnd, PAGE_SIZE);
+            place(true, this.dataBase);
+            changed = false;
+            for (Item item : items) {
+                if (item.far || !item.line.isBranch()) {
+                    continue;
+                }
+                String[] branch = branchOperands(item.line);
+                int offset = resolve(branch[3]) - item.address;
+                if (offset < -4096 || offset >= 4096) {
+                    item.far = true;
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        text = new byte[place(false, textBase) - textBase];
+        data = new byte[place(true, this.dataBase) - this.dataBase];
+        for (Item item : items) {
+            if (item.line.op != null) {
+                ByteBuffer out = buffer(item.size);
+                encode(item, out);
+                System.arraycopy(out.array(), 0,
+                                 item.data ? data : text,
+                                 item.address
+                                 - (item.data ? this.dataBase : textBase),
+                                 item.size);
+            }
+        }
+    }
+
+    /** Assign addresses to the items of the data segment if DATA, and
+     *  otherwise of the text segment, starting at BASE.  Return the
+     *  address following the last item. */
+    private int place(boolean data, int base) {
+        int address = base;
+        for (Item item : items) {
+            if (item.data == data) {
+                item.address = address;
+                item.size = sizeOf(item);
+                address += item.size;
+            }
+        }
+        return address;
+    }
+
+    /** Return the number of bytes occupied by ITEM, given its address. */
+    private int sizeOf(Item item) {
+        AsmLine line = item.line;
+        if (line.op == null) {
+            return 0;
+        }
+        switch (line.op) {
+        case ".word":
+            return 4 * line.args.size();
+        case ".half":
+            return 2 * line.args.size();
+        case ".byte":
+            return line.args.size();
+        case ".string":
+        case ".asciiz":
+            return stringBytes(line.args.get(0)).length + 1;
+        case ".space":
+            return constant(line.args.get(0));
+        case ".align":
+            return -item.address & ((1 << constant(line.args.get(0))) - 1);
+        case "la":
+            return 8;
+        case "li":
+            Integer value = evaluate(line.args.get(1), false);
+            return value != null && fitsI(value) ? 4 : 8;
+        case "lb": case "lbu": case "lh": case "lhu": case "lw":
+            return MEM_PATN.matcher(line.args.get(1)).matches() ? 4 : 8;
+        case "sb": case "sh": case "sw":
+            return line.args.size() == 3 ? 8 : 4;
+        default:
+            if (line.isDirective()) {
+                return 0;
+            }
+            return item.far ? 8 : 4;
+        }
+    }
+
+    /** Encode ITEM into OUT. */
+    private void encode(Item item, ByteBuffer out) {
+        AsmLine line = item.line;
+        List<String> args = line.args;
+        String op = line.op;
+        if (line.isDirective()) {
+            encodeDirective(item, out);
+            return;
+        }
+        if (OP_FUNCTS.containsKey(op)) {
+            int functs = OP_FUNCTS.get(op);
+            out.putInt(rType(OP, functs & 7, functs >> 3, reg(args.get(0)),
+                             reg(args.get(1)), reg(args.get(2))));
+            return;
+        }
+        if (OP_IMM_FUNCTS.containsKey(op)) {
+            int functs = OP_IMM_FUNCTS.get(op);
+            int imm = resolve(args.get(2));
+            if (op.equals("slli") || op.equals("srli")
+                || op.equals("srai")) {
+                if (imm < 0 || imm > 31) {
+                    throw new IllegalStateException(
+                        "shift amount out of range: " + line);
+                }
+                imm |= (functs >> 3) << 5;
+            }
+            out.putInt(iType(OP_IMM, functs & 7, reg(args.get(0)),
+                             reg(args.get(1)), imm, line));
+            return;
+        }
+        if (line.isLoad()) {
+            int rd = reg(args.get(0));
+            Matcher m = MEM_PATN.matcher(args.get(1));
+            if (m.matches()) {
+                out.putInt(iType(LOAD, MEM_FUNCTS.get(op), rd,
+                                 reg(m.group(2)), offset(m.group(1)), line));
+            } else {
+                int offset = resolve(args.get(1)) - item.address;
+                out.putInt(uType(AUIPC, rd, hi(offset)));
+                out.putInt(iType(LOAD, MEM_FUNCTS.get(op), rd, rd,
+                                 lo(offset), line));
+            }
+            return;
+        }
+        if (line.isStore()) {
+            int rs2 = reg(args.get(0));
+            if (args.size() == 3) {
+                int tmp = reg(args.get(2));
+                int offset = resolve(args.get(1)) - item.address;
+                out.putInt(uType(AUIPC, tmp, hi(offset)));
+                out.putInt(sType(MEM_FUNCTS.get(op), tmp, rs2, lo(offset),
+                                 line));
+            } else {
+                Matcher m = MEM_PATN.matcher(args.get(1));
+                if (!m.matches()) {
+                    throw new IllegalArgumentException(
+                        "bad memory operand: " + line);
+                }
+                out.putInt(sType(MEM_FUNCTS.get(op), reg(m.group(2)), rs2,
+                                 offset(m.group(1)), line));
+            }
+            return;
+        }
+        if (line.isBranch()) {
+            String[] branch = branchOperands(line);
+            int rs1 = reg(branch[1]), rs2 = reg(branch[2]);
+            int target = resolve(branch[3]);
+            if (item.far) {
+                out.putInt(bType(BRANCH_FUNCTS.get(INVERSES.get(branch[0])),
+                                 rs1, rs2, 8, line));
+                out.putInt(jType(0, target - item.address - 4, line));
+            } else {
+                out.putInt(bType(BRANCH_FUNCTS.get(branch[0]), rs1, rs2,
+                                 target - item.address, line));
+            }
+            return;
+        }
+        switch (op) {
+        case "li": {
+            int rd = reg(args.get(0));
+            int value = resolve(args.get(1));
+            if (item.size == 4) {
+                out.putInt(iType(OP_IMM, 0, rd, 0, value, line));
+            } else {
+                out.putInt(uType(LUI, rd, hi(value)));
+                out.putInt(iType(OP_IMM, 0, rd, rd, lo(value), line));
+            }
+            break;
+        }
+        case "la": {
+            int rd = reg(args.get(0));
+            int offset = resolve(args.get(1)) - item.address;
+            out.putInt(uType(AUIPC, rd, hi(offset)));
+            out.putInt(iType(OP_IMM, 0, rd, rd, lo(offset), line));
+            break;
+        }
+        case "lui":
+            out.putInt(uType(LUI, reg(args.get(0)), resolve(args.get(1))));
+            break;
+        case "mv":
+            out.putInt(iType(OP_IMM, 0, reg(args.get(0)), reg(args.get(1)),
+                             0, line));
+            break;
+        case "not":
+            out.putInt(iType(OP_IMM, 4, reg(args.get(0)), reg(args.get(1)),
+                             -1, line));
+            break;
+        case "neg":
+            out.putInt(rType(OP, 0, 0x20, reg(args.get(0)), 0,
+                             reg(args.get(1))));
+            break;
+        case "seqz":
+            out.putInt(iType(OP_IMM, 3, reg(args.get(0)), reg(args.get(1)),
+                             1, line));
+            break;
+        case "snez":
+            out.putInt(rType(OP, 3, 0, reg(args.get(0)), 0,
+                             reg(args.get(1))));
+            break;
+        case "nop":
+            out.putInt(iType(OP_IMM, 0, 0, 0, 0, line));
+            break;
+        case "j":
+            out.putInt(jType(0, resolve(args.get(0)) - item.address, line));
+            break;
+        case "jal":
+            out.putInt(jType(args.size() == 1 ? 1 : reg(args.get(0)),
+                             resolve(args.get(args.size() - 1))
+                             - item.address, line));
+            break;
+        case "jr":
+            out.putInt(iType(JALR, 0, 0, reg(args.get(0)), 0, line));
+            break;
+        case "ret":
+            out.putInt(iType(JALR, 0, 0, 1, 0, line));
+            break;
+        case "jalr": {
+            if (args.size() == 1) {
+                out.putInt(iType(JALR, 0, 1, reg(args.get(0)), 0, line));
+                break;
+            }
+            Matcher m = MEM_PATN.matcher(args.get(1));
+            if (m.matches()) {
+                out.putInt(iType(JALR, 0, reg(args.get(0)),
+                                 reg(m.group(2)), offset(m.group(1)), line));
+            } else {
+                out.putInt(iType(JALR, 0, reg(args.get(0)), reg(args.get(1)),
+                                 args.size() > 2 ? resolve(args.get(2)) : 0,
+                                 line));
+            }
+            break;
+        }
+        case "ecall":
+            out.putInt(SYSTEM);
+            break;
+        case "ebreak":
+            out.putInt(0x00100000 | SYSTEM);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown instruction: "
+                                               + line);
+        }
+    }
+
+    /** Encode the directive of ITEM into OUT. */
+    private void encodeDirective(Item item, ByteBuffer out) {
+        AsmLine line = item.line;
+        switch (line.op) {
+        case ".word":
+            for (String arg : line.args) {
+                out.putInt(resolve(arg));
+            }
+            break;
+        case ".half":
+            for (String arg : line.args) {
+                out.putShort((short) resolve(arg));
+            }
+            break;
+        case ".byte":
+            for (String arg : line.args) {
+                out.put((byte) resolve(arg));
+            }
+            break;
+        case ".string":
+        case ".asciiz":
+            out.put(stringBytes(line.args.get(0)));
+            break;
+        case ".align":
+            if (!item.data && item.size % 4 == 0) {
+                for (int i = 0; i < item.size; i += 4) {
+                    out.putInt(iType(OP_IMM, 0, 0, 0, 0, line));
+                }
+            }
+            break;
+        case ".text": case ".data": case ".globl": case ".global":
+        case ".equiv": case ".equ": case ".set": case ".space":
+            break;
+        default:
+            throw new IllegalArgumentException("unknown directive: " + line);
+        }
+    }
+
+    /** Return the mnemonic of the branch of RV32I equivalent to
+     *  conditional branch LINE, followed by its two register operands and
+     *  its target. */
+    private static String[] branchOperands(AsmLine line) {
+        List<String> args = line.args;
+        switch (line.op) {
+        case "beqz":
+            return new String[] { "beq", args.get(0), "zero", args.get(1) };
+        case "bnez":
+            return new String[] { "bne", args.get(0), "zero", args.get(1) };
+        case "bltz":
+            return new String[] { "blt", args.get(0), "zero", args.get(1) };
+        case "bgez":
+            return new String[] { "bge", args.get(0), "zero", args.get(1) };
+        case "bgtz":
+            return new String[] { "blt", "zero", args.get(0), args.get(1) };
+        case "blez":
+            return new String[] { "bge", "zero", args.get(0), args.get(1) };
+        default:
+            return new String[] {
+                line.op, args.get(0), args.get(1), args.get(2)
+            };
+        }
+    }
+
+    /** Return the value of EXPR, a numeral, label or @-symbol, possibly
+     *  followed by +CONST or -CONST. */
+    private int resolve(String expr) {
+        return evaluate(expr, true);
+    }
+
+    /** Return the value of EXPR, as for resolve, which must not depend on
+     *  the address of a label. */
+    private int constant(String expr) {
+        Integer value = evaluate(expr, false);
+        if (value == null) {
+            throw new IllegalArgumentException("not a constant: " + expr);
+        }
+        return value;
+    }
+
+    /** Return the value of EXPR, as for resolve, or null if it depends
+     *  on the address of a label and not LABELSKNOWN. */
+    private Integer evaluate(String expr, boolean labelsKnown) {
+        expr = expr.trim();
+        if (NUMERAL_PATN.matcher(expr).matches()) {
+            return (int) (long) Long.decode(expr);
+        }
+        Matcher m = SYM_EXPR_PATN.matcher(expr);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("bad operand: " + expr);
+        }
+        String name = m.group(1);
+        Integer value;
+        if (symbols.containsKey(name)) {
+            value = evaluate(symbols.get(name), labelsKnown);
+        } else if (name.startsWith("@") || !labels.containsKey(name)) {
+            throw new IllegalStateException("undefined symbol: " + name);
+        } else if (labelsKnown) {
+            value = labels.get(name).address;
+        } else {
+            value = null;
+        }
+        if (value == null || m.group(2) == null) {
+            return value;
+        }
+        int addend = Integer.parseInt(m.group(3));
+        return m.group(2).equals("+") ? value + addend : value - addend;
+    }
+
+    /** Return the offset of a memory operand, written as OFFSET. */
+    private int offset(String offset) {
+        return offset.trim().isEmpty() ? 0 : resolve(offset);
+    }
+
+    /** Return the number of register NAME. */
+    private static int reg(String name) {
+        Integer number = REGISTERS.get(name);
+        if (number == null) {
+            throw new IllegalArgumentException("unknown register: " + name);
+        }
+        return number;
+    }
+
+    /** Return the bytes of the string constant LITERAL, a quoted string
+     *  with escapes as written by RiscVBackend#emitString. */
+    private static byte[] stringBytes(String literal) {
+        String body = literal.trim();
+        body = body.substring(1, body.length() - 1);
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < body.length(); i += 1) {
+            char c = body.charAt(i);
+            if (c == '\\' && i + 1 < body.length()) {
+                i += 1;
+                c = body.charAt(i);
+                switch (c) {
+                case 'n': c = '\n'; break;
+                case 't': c = '\t'; break;
+                case 'r': c = '\r'; break;
+                case '0': c = '\0'; break;
+                default: break;
+                }
+            }
+            result.append(c);
+        }
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Return true iff VALUE fits a 12-bit signed immediate. */
+    private static boolean fitsI(int value) {
+        return value >= -2048 && value < 2048;
+    }
+
+    /** Return the upper 20 bits of VALUE, adjusted so that adding the
+     *  sign-extended lo(VALUE) gives VALUE. */
+    private static int hi(int value) {
+        return ((value + 0x800) >>> 12) & 0xfffff;
+    }
+
+    /** Return the lower 12 bits of VALUE, sign-extended. */
+    private static int lo(int value) {
+        return value << 20 >> 20;
+    }
+
+    /** Return an R-type instruction. */
+    private static int rType(int opcode, int funct3, int funct7, int rd,
+                             int rs1, int rs2) {
+        return funct7 << 25 | rs2 << 20 | rs1 << 15 | funct3 << 12
+            | rd << 7 | opcode;
+    }
+
+    /** Return an I-type instruction, where IMM is checked to be in range
+     *  for the instruction on LINE. */
+    private static int iType(int opcode, int funct3, int rd, int rs1,
+                             int imm, AsmLine line) {
+        if (!fitsI(imm)) {
+            throw new IllegalStateException("immediate out of range: "
+                                            + line);
+        }
+        return (imm & 0xfff) << 20 | rs1 << 15 | funct3 << 12 | rd << 7
+            | opcode;
+    }
+
+    /** Return an S-type (store) instruction, as for iType. */
+    private static int sType(int funct3, int rs1, int rs2, int imm,
+                             AsmLine line) {
+        if (!fitsI(imm)) {
+            throw new IllegalStateException("offset out of range: " + line);
+        }
+        return (imm >> 5 & 0x7f) << 25 | rs2 << 20 | rs1 << 15
+            | funct3 << 12 | (imm & 0x1f) << 7 | STORE;
+    }
+
+    /** Return a B-type (branch) instruction with pc-relative OFFSET, as
+     *  for iType. */
+    private static int bType(int funct3, int rs1, int rs2, int offset,
+                             AsmLine line) {
+        if (offset < -4096 || offset >= 4096 || offset % 2 != 0) {
+            throw new IllegalStateException("branch out of range: " + line);
+        }
+        return (offset >> 12 & 1) << 31 | (offset >> 5 & 0x3f) << 25
+            | rs2 << 20 | rs1 << 15 | funct3 << 12 | (offset >> 1 & 0xf) << 8
+            | (offset >> 11 & 1) << 7 | BRANCH;
+    }
+
+    /** Return a U-type instruction with upper immediate IMM. */
+    private static int uType(int opcode, int rd, int imm) {
+        return (imm & 0xfffff) << 12 | rd << 7 | opcode;
+    }
+
+    /** Return a JAL instruction linking RD, with pc-relative OFFSET, as
+     *  for iType. */
+    private static int jType(int rd, int offset, AsmLine line) {
+        if (offset < -(1 << 20) || offset >= (1 << 20) || offset % 2 != 0) {
+            throw new IllegalStateException("jump out of range: " + line);
+        }
+        return (offset >> 20 & 1) << 31 | (offset >> 1 & 0x3ff) << 21
+            | (offset >> 11 & 1) << 20 | (offset >> 12 & 0xff) << 12
+            | rd << 7 | JAL;
+    }
+
+    /** Return VALUE rounded up to a multiple of ALIGNMENT, a power of
+     *  two. */
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) & -alignment;
+    }
+
+    /** Return a little-endian buffer of SIZE bytes. */
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Write to ELF the next program header, for a loadable segment of
+     *  SIZE bytes at file offset OFFSET and address ADDRESS, with
+     *  permissions FLAGS. */
+    private static void putSegment(ByteBuffer elf, int offset, int address,
+                                   int size, int flags) {
+        elf.putInt(1);
+        elf.putInt(offset);
+        elf.putInt(address);
+        elf.putInt(address);
+        elf.putInt(size);
+        elf.putInt(size);
+        elf.putInt(flags);
+        elf.putInt(PAGE_SIZE);
+    }
+
+    /** Write to ELF the next section header, with the given fields. */
+    private static void putSection(ByteBuffer elf, int name, int type,
+                                   int flags, int address, int offset,
+                                   int size, int link, int info,
+                                   int alignment, int entrySize) {
+        elf.putInt(name);
+        elf.putInt(type);
+        elf.putInt(flags);
+        elf.putInt(address);
+        elf.putInt(offset);
+        elf.putInt(size);
+        elf.putInt(link);
+        elf.putInt(info);
+        elf.putInt(alignment);
+        elf.putInt(entrySize);
+    }
+
+    /** An ELF string table. */
+    private static class StringTable {
+        /** The contents of the table. */
+        private final StringBuilder contents = new StringBuilder("\0");
+
+        /** Add NAME to the table, returning its offset. */
+        int add(String name) {
+            if (name.isEmpty()) {
+                return 0;
+            }
+            int offset = size();
+            contents.append(name).append('\0');
+            return offset;
+        }
+
+        /** Return the size of the table in bytes. */
+        int size() {
+            return toBytes().length;
+        }
+
+        /** Return the contents of the table. */
+        byte[] toBytes() {
+            return contents.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
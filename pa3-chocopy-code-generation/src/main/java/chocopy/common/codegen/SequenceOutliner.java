@@ -0,0 +1,201 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Whole-program outlining of repeated instruction sequences, to reduce
+ * code size.
+ *
+ * A sequence of straight-line instructions (no labels, directives,
+ * branches, jumps or calls) that occurs several times in the code units
+ * of the program is moved into a routine of its own, labeled
+ * `outlined.N`, and each occurrence is replaced by a call to it.  The
+ * call links through {@link #LINK} rather than RA, so that the sequence
+ * may itself read or write RA, and the routine returns with `jr t5`.
+ * Nothing is outlined if the program already uses {@link #LINK}.
+ *
+ * Sequences are chosen greedily: the one saving the most instructions is
+ * outlined first, and the search repeats until no sequence saves any.
+ * An occurrence of length L replaced by a call saves L - 1 instructions,
+ * and the routine costs L + 1.
+ */
+public class SequenceOutliner {
+
+    /** The register through which outlined routines are called. */
+    public static final String LINK = "t5";
+
+    /** The longest sequence considered. */
+    private static final int MAX_LENGTH = 32;
+
+    /** Return UNITS, with repeated sequences in their code units outlined
+     *  into new code units, which follow the last code unit. */
+    public static List<AsmUnit> outline(List<AsmUnit> units) {
+        List<AsmUnit> code = new ArrayList<>();
+        int last = -1;
+        for (int i = 0; i < units.size(); i += 1) {
+            AsmUnit unit = units.get(i);
+            if (!unit.data) {
+                if (unit.getReferences().contains(LINK)) {
+                    return units;
+                }
+                code.add(unit);
+                last = i;
+            }
+        }
+
+        List<AsmUnit> outlined = new ArrayList<>();
+        while (true) {
+            Candidate best = null;
+            for (Candidate candidate : findCandidates(code).values()) {
+                if (candidate.savings() > 0
+                    && (best == null
+                        || candidate.savings() > best.savings())) {
+                    best = candidate;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            outlined.add(replace(best, outlined.size() + 1));
+        }
+
+        List<AsmUnit> result = new ArrayList<>(units);
+        result.addAll(last + 1, outlined);
+        return result;
+    }
+
+    /** Return the sequences of eligible instructions in CODE that occur
+     *  at least twice, without overlapping, keyed by their text, in order
+     *  of first occurrence. */
+    private static Map<String, Candidate> findCandidates(List<AsmUnit> code) {
+        Map<String, Candidate> result = new LinkedHashMap<>();
+        for (AsmUnit unit : code) {
+            List<AsmLine> lines = AsmLine.parse(unit.lines);
+            List<Integer> run = new ArrayList<>();
+            for (int i = 0; i <= lines.size(); i += 1) {
+                AsmLine line = i < lines.size() ? lines.get(i) : null;
+                if (line != null && line.label == null && line.op == null) {
+                    continue;
+                }
+                if (line != null && isEligible(line)) {
+                    run.add(i);
+                    continue;
+                }
+                addOccurrences(unit, lines, run, result);
+                run = new ArrayList<>();
+            }
+        }
+        result.values().removeIf(candidate -> candidate.starts.size() < 2);
+        return result;
+    }
+
+    /** Add to CANDIDATES the sequences starting at each instruction of
+     *  RUN, the indices of consecutive eligible instructions among LINES
+     *  of UNIT. */
+    private static void addOccurrences(AsmUnit unit, List<AsmLine> lines,
+                                       List<Integer> run,
+                                       Map<String, Candidate> candidates) {
+        for (int start = 0; start < run.size(); start += 1) {
+            StringBuilder key = new StringBuilder();
+            for (int length = 1;
+                 length <= MAX_LENGTH && start + length <= run.size();
+                 length += 1) {
+                AsmLine insn = lines.get(run.get(start + length - 1));
+                key.append(normalize(insn)).append('\n');
+                if (length < 2) {
+                    continue;
+                }
+                int size = length;
+                Candidate candidate =
+                    candidates.computeIfAbsent(key.toString(),
+                                               k -> new Candidate(size));
+                candidate.add(unit, run.get(start),
+                              run.get(start + length - 1));
+            }
+        }
+    }
+
+    /** Return true iff LINE may be part of an outlined sequence. */
+    private static boolean isEligible(AsmLine line) {
+        return line.label == null && line.isInsn() && !line.endsBlock()
+            && !line.args.contains(LINK)
+            && !line.uses().contains(LINK) && !line.defs().contains(LINK);
+    }
+
+    /** Return the text of instruction INSN without its comment. */
+    private static String normalize(AsmLine insn) {
+        return insn.args.isEmpty() ? insn.op
+            : insn.op + " " + String.join(", ", insn.args);
+    }
+
+    /** Replace the occurrences of CANDIDATE by calls to a new routine
+     *  numbered NUMBER, and return the unit defining it. */
+    private static AsmUnit replace(Candidate candidate, int number) {
+        String name = "outlined." + number;
+        AsmUnit routine = new AsmUnit(name, false);
+        routine.lines.add(".globl " + name);
+        routine.lines.add(name + ":");
+        AsmUnit firstUnit = candidate.units.get(0);
+        for (AsmLine line
+                 : AsmLine.parse(firstUnit.lines.subList(
+                                     candidate.starts.get(0),
+                                     candidate.ends.get(0) + 1))) {
+            if (line.op != null) {
+                routine.lines.add(line.text);
+            }
+        }
+        routine.lines.add(AsmLine.insnLine("jr " + LINK,
+                                           "Return from outlined sequence")
+                          .text);
+        routine.lines.add("");
+
+        /* Replace from last to first, so that earlier indices stay
+         * valid. */
+        for (int i = candidate.starts.size() - 1; i >= 0; i -= 1) {
+            List<String> lines = candidate.units.get(i).lines;
+            int start = candidate.starts.get(i), end = candidate.ends.get(i);
+            lines.subList(start, end + 1).clear();
+            lines.add(start,
+                      AsmLine.insnLine("jal " + LINK + ", " + name,
+                                       "Outlined sequence").text);
+        }
+        return routine;
+    }
+
+    /** The non-overlapping occurrences of a sequence of instructions. */
+    private static class Candidate {
+        /** The number of instructions in the sequence. */
+        final int length;
+        /** The unit of each occurrence. */
+        final List<AsmUnit> units = new ArrayList<>();
+        /** The index of the first and last line of each occurrence in
+         *  its unit. */
+        final List<Integer> starts = new ArrayList<>(),
+            ends = new ArrayList<>();
+
+        Candidate(int length) {
+            this.length = length;
+        }
+
+        /** Record an occurrence from line START to line END of UNIT, unless
+         *  it overlaps the previous occurrence. */
+        void add(AsmUnit unit, int start, int end) {
+            int n = units.size();
+            if (n > 0 && units.get(n - 1) == unit && ends.get(n - 1) >= start) {
+                return;
+            }
+            units.add(unit);
+            starts.add(start);
+            ends.add(end);
+        }
+
+        /** Return the number of instructions saved by outlining this
+         *  sequence. */
+        int savings() {
+            return starts.size() * (length - 1) - (length + 1);
+        }
+    }
+}
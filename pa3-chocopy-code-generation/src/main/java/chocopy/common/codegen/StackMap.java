@@ -0,0 +1,116 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The roots held by a frame while a call that may collect garbage is in
+ * progress (see gc.collect): the slots of the frame and the callee-saved
+ * registers that hold pointers, and the callee-saved registers whose
+ * caller's values the frame's function keeps in its frame.
+ *
+ * Registers S1-S9 are numbered from 1 to 9, and a set of them is a mask
+ * in which bit K stands for SK.  A function saves the caller's value of
+ * SK in the word at FP - 8 - 4*K.
+ *
+ * The code generator places the map of a call site right after the label
+ * following the call, as a `.stackmap` line naming that label, so that
+ * the map stays with its call through the passes that rewrite the
+ * emitted code, and keeps identical code with different maps from being
+ * folded together.  The lines are removed (see {@link #extract}) before
+ * the code is output, and the maps emitted as a table keyed by return
+ * address.
+ */
+public class StackMap {
+
+    /** The pseudo-directive introducing a stack map. */
+    public static final String DIRECTIVE = ".stackmap";
+
+    /** The label following the call. */
+    public final String label;
+
+    /** The registers holding pointers during the call. */
+    public final int pointerRegisters;
+
+    /** The registers whose caller's values the frame holds. */
+    public final int savedRegisters;
+
+    /** The offsets from FP of the frame slots holding pointers during
+     *  the call. */
+    public final List<Integer> pointerSlots;
+
+    /** The map of the call followed by LABEL, where POINTERREGISTERS,
+     *  SAVEDREGISTERS and POINTERSLOTS are as described above. */
+    public StackMap(String label, int pointerRegisters, int savedRegisters,
+                    List<Integer> pointerSlots) {
+        this.label = label;
+        this.pointerRegisters = pointerRegisters;
+        this.savedRegisters = savedRegisters;
+        this.pointerSlots =
+            Collections.unmodifiableList(new ArrayList<>(pointerSlots));
+    }
+
+    /** Return the bit standing for REG, one of S1-S9, in a set of
+     *  registers. */
+    public static int registerBit(RiscVBackend.Register reg) {
+        return 1 << Integer.parseInt(reg.toString().substring(1));
+    }
+
+    /** Return the `.stackmap` line describing this map. */
+    public String toDirective() {
+        StringBuilder result = new StringBuilder(DIRECTIVE);
+        result.append(' ').append(label)
+            .append(", ").append(pointerRegisters)
+            .append(", ").append(savedRegisters);
+        for (int offset : pointerSlots) {
+            result.append(", ").append(offset);
+        }
+        return result.toString();
+    }
+
+    /** Return the words of the record describing this map in the table
+     *  read by gc.collect: the pointer registers, the saved registers,
+     *  the number of pointer slots and their offsets. */
+    public List<Integer> getRecord() {
+        List<Integer> result = new ArrayList<>();
+        result.add(pointerRegisters);
+        result.add(savedRegisters);
+        result.add(pointerSlots.size());
+        result.addAll(pointerSlots);
+        return result;
+    }
+
+    /** Remove the `.stackmap` lines from the code units among UNITS and
+     *  return the maps they describe, in order. */
+    public static List<StackMap> extract(List<AsmUnit> units) {
+        List<StackMap> result = new ArrayList<>();
+        for (AsmUnit unit : units) {
+            if (unit.data) {
+                continue;
+            }
+            Iterator<String> lines = unit.lines.iterator();
+            while (lines.hasNext()) {
+                String text = lines.next();
+                if (!text.contains(DIRECTIVE)) {
+                    continue;
+                }
+                AsmLine line = new AsmLine(text);
+                if (!DIRECTIVE.equals(line.op)) {
+                    continue;
+                }
+                List<Integer> slots = new ArrayList<>();
+                for (String arg : line.args.subList(3, line.args.size())) {
+                    slots.add(Integer.parseInt(arg));
+                }
+                result.add(new StackMap(line.args.get(0),
+                                        Integer.parseInt(line.args.get(1)),
+                                        Integer.parseInt(line.args.get(2)),
+                                        slots));
+                lines.remove();
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,75 @@
+package chocopy.common.codegen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Whole-program removal of unreachable code and data.
+ *
+ * Reachability is computed over the units of the emitted program
+ * (see {@link AsmUnit}), starting from a set of roots.  A unit is
+ * reachable if it is a root or if its label is referenced from a
+ * reachable unit.  Label references cover the call graph (`jal`, `j`),
+ * class instantiations (`la` of a prototype), dispatch tables (a
+ * prototype refers to its table, which refers to its methods), global
+ * variables (`lw`, `sw`) and constants.  Anonymous units, which only
+ * hold segment directives, are always kept.
+ */
+public class TreeShaker {
+
+    /** Return the units of UNITS that are reachable from the units
+     *  labeled ROOTS, in their original order. */
+    public static List<AsmUnit> shake(List<AsmUnit> units,
+                                      Collection<String> roots) {
+        Map<String, AsmUnit> byName = new HashMap<>();
+        for (AsmUnit unit : units) {
+            if (unit.name != null) {
+                byName.put(unit.name, unit);
+            }
+        }
+
+        Set<String> live = new HashSet<>();
+        Deque<String> work = new ArrayDeque<>();
+        for (String root : roots) {
+            if (byName.containsKey(root) && live.add(root)) {
+                work.push(root);
+            }
+        }
+        for (AsmUnit unit : units) {
+            if (unit.name == null) {
+                enqueueReferences(unit, byName, live, work);
+            }
+        }
+        while (!work.isEmpty()) {
+            enqueueReferences(byName.get(work.pop()), byName, live, work);
+        }
+
+        List<AsmUnit> result = new ArrayList<>();
+        for (AsmUnit unit : units) {
+            if (unit.name == null || live.contains(unit.name)) {
+                result.add(unit);
+            }
+        }
+        return result;
+    }
+
+    /** Mark as LIVE and push onto WORK all units in BYNAME referenced
+     *  by UNIT that are not already live. */
+    private static void enqueueReferences(AsmUnit unit,
+                                          Map<String, AsmUnit> byName,
+                                          Set<String> live,
+                                          Deque<String> work) {
+        for (String ref : unit.getReferences()) {
+            if (byName.containsKey(ref) && live.add(ref)) {
+                work.push(ref);
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+# Runtime support function gc.collect (copying garbage collector).
+        # Called through t0 by an allocator whose heap is full, with ra,
+        # sp and fp as at the call to the allocator, which must be
+        # described by a stack map (see gc.stackmaps), and the number of
+        # bytes it needs in a2.
+        # Copies the objects reachable from the global variables in
+        # gc.globals and from the frames on the stack into the semispace
+        # not in use (Cheney's algorithm), which then becomes the heap.
+        # If the heap is then more than half full, counting the bytes
+        # needed, grows it: obtains memory with sbrk right after the two
+        # semispaces, doubling their size as often as needed but without
+        # exceeding gc.maxheap, and copies the objects again into the
+        # upper half of the enlarged memory, leaving the lower half (the
+        # old semispaces) as the next to-space.
+        # Preserves a0, a1, ra, sp, fp and s1-s9, updating those of s1-s9
+        # that hold pointers.
+  addi sp, sp, -92                         # Frame for s1-s9, their locations, t0, ra, a0, a1, a2
+  sw s1, 0(sp)                             # Save s1-s9, which also serve as temporaries
+  sw s2, 4(sp)
+  sw s3, 8(sp)
+  sw s4, 12(sp)
+  sw s5, 16(sp)
+  sw s6, 20(sp)
+  sw s7, 24(sp)
+  sw s8, 28(sp)
+  sw s9, 32(sp)
+  sw t0, 72(sp)                            # Save return address
+  sw ra, 76(sp)                            # Save return address of the allocating call
+  sw a0, 80(sp)                            # Save a0
+  sw a1, 84(sp)                            # Save a1
+  sw a2, 88(sp)                            # Save number of bytes needed
+  mv a5, s10                               # From-space is the next to-space
+  lw a2, gc.tospace                        # Start of to-space
+  bne a2, zero, gc.collect_27              # Go on unless this is the first collection
+  mv a2, s11                               # Initially, to-space follows the heap
+gc.collect_27:                             # Semispace size
+  sub a3, s11, s10                         # Size of a semispace in bytes
+gc.collect_2:                              # Copy into the a3 bytes at a2
+  mv t1, sp                                # Location of s1 as seen from the innermost frame
+  addi t2, sp, 36                          # Word holding the location of s1
+  addi t3, sp, 72                          # Word after that holding the location of s9
+gc.collect_1:                              # Record the locations of s1-s9
+  sw t1, 0(t2)                             # Location of register
+  addi t1, t1, 4                           # Next register
+  addi t2, t2, 4                           # Next location
+  bne t2, t3, gc.collect_1                 # Loop if more registers left
+  mv a4, a2                                # Free pointer: where the next copy goes
+  la s1, gc.globals                        # Table of global variables holding pointers
+  lw s2, 0(s1)                             # Number of global variables left
+gc.collect_3:                              # Global variables
+  beq s2, zero, gc.collect_4               # Go to frames if no variables left
+  addi s1, s1, 4                           # Next table entry
+  lw a0, 0(s1)                             # Address of variable
+  jal gc.collect_20                        # Forward its value
+  addi s2, s2, -1                          # Decrement counter
+  j gc.collect_3                           # Loop
+gc.collect_4:                              # Frames, from the innermost
+  lw s1, 76(sp)                            # Return address into the frame
+  mv s2, fp                                # Frame pointer of the frame
+gc.collect_5:                              # Look up the stack map for the return address in s1
+  la s3, gc.stackmaps                      # Table of stack maps
+  lw t3, 0(s3)                             # Upper bound of search: number of maps
+  addi s3, s3, 4                           # Address of first map
+  li t2, 0                                 # Lower bound of search
+gc.collect_6:                              # Binary search loop header
+  bgeu t2, t3, gc.collect_19               # Abort if no map left
+  add t4, t2, t3                           # Middle of bounds
+  srli t4, t4, 1
+  slli t1, t4, 3                           # Offset of middle map
+  add t1, s3, t1                           # Address of middle map
+  lw t6, 0(t1)                             # Its return address
+  beq t6, s1, gc.collect_8                 # Go to frame if found
+  bltu t6, s1, gc.collect_7                # Go to search above
+  mv t3, t4                                # Search below
+  j gc.collect_6                           # Loop
+gc.collect_7:                              # Search above
+  addi t2, t4, 1                           # New lower bound
+  j gc.collect_6                           # Loop
+gc.collect_8:                              # Forward the pointers in registers
+  lw s3, 4(t1)                             # Stack map record
+  lw s4, 0(s3)                             # Registers holding pointers
+  srli s4, s4, 1                           # Bit 0 stands for s1
+  addi s5, sp, 36                          # Word holding the location of s1
+gc.collect_9:                              # Loop header
+  beq s4, zero, gc.collect_11              # Go to slots if no registers left
+  andi t1, s4, 1                           # Register holds a pointer?
+  beq t1, zero, gc.collect_10              # Skip register if not
+  lw a0, 0(s5)                             # Location of register
+  jal gc.collect_20                        # Forward its value
+gc.collect_10:                             # Next register
+  srli s4, s4, 1                           # Next bit
+  addi s5, s5, 4                           # Next location
+  j gc.collect_9                           # Loop
+gc.collect_11:                             # Forward the pointers in frame slots
+  lw s4, 8(s3)                             # Number of slots left
+  addi s5, s3, 12                          # Address of offset of first slot
+gc.collect_12:                             # Loop header
+  beq s4, zero, gc.collect_13              # Go to saved registers if no slots left
+  lw a0, 0(s5)                             # Offset of slot from fp
+  add a0, s2, a0                           # Address of slot
+  jal gc.collect_20                        # Forward its value
+  addi s5, s5, 4                           # Next slot
+  addi s4, s4, -1                          # Decrement counter
+  j gc.collect_12                          # Loop
+gc.collect_13:                             # Registers saved by the frame hold the caller's values
+  lw s4, 4(s3)                             # Registers saved
+  srli s4, s4, 1                           # Bit 0 stands for s1
+  addi s5, sp, 36                          # Word holding the location of s1
+  addi s6, s2, -12                         # Where the frame saves s1
+gc.collect_14:                             # Loop header
+  beq s4, zero, gc.collect_16              # Go to caller if no registers left
+  andi t1, s4, 1                           # Register saved?
+  beq t1, zero, gc.collect_15              # Skip register if not
+  sw s6, 0(s5)                             # New location of register
+gc.collect_15:                             # Next register
+  srli s4, s4, 1                           # Next bit
+  addi s5, s5, 4                           # Next location
+  addi s6, s6, -4                          # Next save slot
+  j gc.collect_14                          # Loop
+gc.collect_16:                             # Go to the caller's frame
+  lw s1, -4(s2)                            # Return address into caller
+  lw s2, -8(s2)                            # Caller's frame pointer
+  bne s1, zero, gc.collect_5               # Loop unless past the top level
+  mv s1, a2                                # Scan pointer: start of to-space
+gc.collect_17:                             # Forward the pointers in copied objects
+  bgeu s1, a4, gc.collect_23               # Go to flip if all copies scanned
+  lw t1, 0(s1)                             # Type tag of object
+  slli t1, t1, 2                           # Offset of its layout
+  la t2, gc.layouts                        # Table of layouts
+  add t2, t2, t1                           # Address of layout
+  lw s3, 0(t2)                             # Layout record
+  lw s4, 0(s3)                             # Number of pointer attributes
+  lw s6, @.__obj_size__(s1)                # Size of object in words
+  slli s6, s6, 2                           # Size of object in bytes
+  add s6, s1, s6                           # End of object
+  addi s5, s3, 4                           # Address of offset of first attribute
+  bge s4, zero, gc.collect_18              # Go to attributes unless a list of pointers
+  addi s5, s1, @.__elts__                  # Address of first element
+gc.collect_21:                             # Forward each element of a list of pointers
+  bgeu s5, s6, gc.collect_22               # Go to next object if no elements left
+  mv a0, s5                                # Address of element
+  jal gc.collect_20                        # Forward its value
+  addi s5, s5, 4                           # Next element
+  j gc.collect_21                          # Loop
+gc.collect_18:                             # Forward each pointer attribute
+  beq s4, zero, gc.collect_22              # Go to next object if no attributes left
+  lw a0, 0(s5)                             # Offset of attribute
+  add a0, s1, a0                           # Address of attribute
+  jal gc.collect_20                        # Forward its value
+  addi s5, s5, 4                           # Next attribute
+  addi s4, s4, -1                          # Decrement counter
+  j gc.collect_18                          # Loop
+gc.collect_22:                             # Next object
+  mv s1, s6                                # Scan past object
+  j gc.collect_17                          # Loop
+gc.collect_23:                             # Flip: to-space becomes the heap
+  sw a5, gc.tospace, t1                    # Set next to-space
+  mv s10, a2                               # Set beginning of heap
+  add s11, a2, a3                          # Set end of heap
+  mv gp, a4                                # Set next free slot in the heap
+  lw t1, 88(sp)                            # Number of bytes needed
+  sub t2, gp, s10                          # Number of bytes in use
+  add t2, t2, t1                           # Number of bytes in use after allocating
+  slli t2, t2, 1                           # Twice that
+  bgeu a3, t2, gc.collect_32               # Return if at most half full
+  slli t3, a3, 1                           # New semispace size: double
+gc.collect_28:                             # Double until at most half full
+  bgeu t3, t2, gc.collect_29               # Go on if large enough
+  slli t3, t3, 1                           # Double
+  j gc.collect_28                          # Loop
+gc.collect_29:                             # Keep within the maximum
+  lw t4, gc.maxheap                        # Most bytes of heap memory
+  srli t4, t4, 1                           # Largest semispace size
+gc.collect_30:                             # Halve until within the maximum
+  bgeu t4, t3, gc.collect_31               # Go on if small enough
+  srli t3, t3, 1                           # Halve
+  j gc.collect_30                          # Loop
+gc.collect_31:                             # Grow
+  bgeu a3, t3, gc.collect_32               # Return if the heap cannot grow
+  lw t1, gc.tospace                        # Start of the other semispace
+  mv a5, s10                               # Start of the lower semispace...
+  bltu a5, t1, gc.collect_33
+  mv a5, t1
+gc.collect_33:                             # ... is the next to-space
+  slli t1, t3, 1                           # Bytes of memory needed
+  slli t2, a3, 1                           # Bytes of memory at hand
+  sub a1, t1, t2                           # Bytes of memory to obtain
+  li a0, @sbrk                             # Code for ecall: sbrk
+  ecall                                    # Request a1 bytes
+  add a2, a5, t3                           # The upper half is the to-space
+  mv a3, t3                                # Set semispace size
+  j gc.collect_2                           # Copy again
+gc.collect_32:                             # Return
+  lw s1, 0(sp)                             # Restore s1-s9, updated
+  lw s2, 4(sp)
+  lw s3, 8(sp)
+  lw s4, 12(sp)
+  lw s5, 16(sp)
+  lw s6, 20(sp)
+  lw s7, 24(sp)
+  lw s8, 28(sp)
+  lw s9, 32(sp)
+  lw t0, 72(sp)                            # Restore return address
+  lw ra, 76(sp)                            # Restore return address of the allocating call
+  lw a0, 80(sp)                            # Restore a0
+  lw a1, 84(sp)                            # Restore a1
+  addi sp, sp, 92                          # Pop frame
+  jr t0                                    # Return to allocator
+gc.collect_19:                             # No stack map for a return address
+  li a0, @error_oom                        # Exit code for: Out of memory
+  la a1, STRING["Missing stack map"]       # Load error message as str
+  addi a1, a1, @.__str__                   # Load address of attribute __str__
+  j abort                                  # Abort
+gc.collect_20:                             # Forward the pointer in the word at a0
+  lw t1, 0(a0)                             # Load pointer
+  sub t2, t1, s10                          # Offset into from-space
+  sub t3, gp, s10                          # Size of from-space in use
+  bgeu t2, t3, gc.collect_25               # Leave None and pointers outside the heap
+  lw t2, 0(t1)                             # Type tag, or address of copy if copied
+  sub t3, t2, a2                           # Offset into to-space
+  bgeu t3, a3, gc.collect_24               # Go to copy unless copied
+  sw t2, 0(a0)                             # Point to copy
+  jr ra                                    # Return
+gc.collect_24:                             # Copy object to free pointer
+  sw a4, 0(a0)                             # Point to copy
+  mv s7, t1                                # Save address of object
+  lw t1, @.__obj_size__(t1)                # Get size of object in words
+  mv t2, s7                                # Initialize src ptr
+  mv t3, a4                                # Initialize dest ptr
+  jal t0, memcpy                           # Copy the words
+  mv a4, t3                                # Move free pointer past copy
+  lw t2, 0(a0)                             # Address of copy
+  sw t2, 0(s7)                             # Leave it in place of the type tag
+gc.collect_25:                             # Return
+  jr ra                                    # Return to collector
@@ -10,6 +10,10 @@
   beq t0, t1, len_13                       # Go to len(str)
   li t1, -1                                # Load type tag for list objects
   beq t0, t1, len_13                       # Go to len(list)
+  li t1, -2                                # Load type tag for [bool] objects
+  beq t0, t1, len_13                       # Go to len(list)
+  li t1, -3                                # Load type tag for lists of pointers
+  beq t0, t1, len_13                       # Go to len(list)
 len_12:                                    # Invalid argument
   li a0, @error_arg                        # Exit code for: Invalid argument
   la a1, STRING["Invalid argument"]        # Load error message as str
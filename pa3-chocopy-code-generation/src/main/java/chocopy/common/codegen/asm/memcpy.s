@@ -0,0 +1,31 @@
+# Runtime support function memcpy.
+        # Called through t0.
+        # Copies the t1 words at t2 to t3, four at a time while at least
+        # four are left, leaving t2 and t3 past the words copied.
+        # Clobbers t1, t4 and t6.
+  slli t1, t1, 2                           # Number of bytes to copy
+  add t1, t3, t1                           # End of destination
+  addi t4, t3, 16                          # End of first block of four words
+  bltu t1, t4, memcpy_2                    # Go to tail if less than a block
+memcpy_1:                                  # Copy a block of four words
+  lw t4, 0(t2)                             # Load words from src
+  lw t6, 4(t2)
+  sw t4, 0(t3)                             # Store words to dest
+  sw t6, 4(t3)
+  lw t4, 8(t2)
+  lw t6, 12(t2)
+  sw t4, 8(t3)
+  sw t6, 12(t3)
+  addi t2, t2, 16                          # Increment src
+  addi t3, t3, 16                          # Increment dest
+  addi t4, t3, 16                          # End of next block
+  bgeu t1, t4, memcpy_1                    # Loop if another block fits
+memcpy_2:                                  # Copy the remaining words
+  beq t3, t1, memcpy_3                     # Return if no words left
+  lw t4, 0(t2)                             # Load next word from src
+  sw t4, 0(t3)                             # Store next word to dest
+  addi t2, t2, 4                           # Increment src
+  addi t3, t3, 4                           # Increment dest
+  j memcpy_2                               # Loop
+memcpy_3:                                  # Return
+  jr t0                                    # Return to caller
@@ -0,0 +1,24 @@
+# Runtime support function memset.
+        # Called through t0.
+        # Stores t2 in each of the t1 words at t3, four at a time while
+        # at least four are left, leaving t3 past the words stored.
+        # Clobbers t1 and t4.
+  slli t1, t1, 2                           # Number of bytes to set
+  add t1, t3, t1                           # End of destination
+  addi t4, t3, 16                          # End of first block of four words
+  bltu t1, t4, memset_2                    # Go to tail if less than a block
+memset_1:                                  # Set a block of four words
+  sw t2, 0(t3)                             # Store value to dest
+  sw t2, 4(t3)
+  sw t2, 8(t3)
+  sw t2, 12(t3)
+  addi t3, t3, 16                          # Increment dest
+  addi t4, t3, 16                          # End of next block
+  bgeu t1, t4, memset_1                    # Loop if another block fits
+memset_2:                                  # Set the remaining words
+  beq t3, t1, memset_3                     # Return if no words left
+  sw t2, 0(t3)                             # Store value to dest
+  addi t3, t3, 4                           # Increment dest
+  j memset_2                               # Loop
+memset_3:                                  # Return
+  jr t0                                    # Return to caller
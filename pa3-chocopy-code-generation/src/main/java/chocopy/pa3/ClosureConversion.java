@@ -0,0 +1,281 @@
+package chocopy.pa3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import chocopy.common.analysis.SymbolTable;
+import chocopy.common.analysis.TreeWalker;
+import chocopy.common.astnodes.*;
+import chocopy.common.codegen.FuncInfo;
+import chocopy.common.codegen.StackVarInfo;
+import chocopy.common.codegen.SymbolInfo;
+
+/**
+ * Lambda lifting and closure conversion of nested functions.
+ *
+ * A nested function is converted if neither it nor any function nested
+ * within it assigns to a variable of an enclosing function, and every
+ * function declared outside it that it (or a function nested within it)
+ * calls is itself a converted or global function.  A converted function
+ * receives no static link.  Instead, the values of the variables of
+ * enclosing functions that it needs (its captures) are passed to it as
+ * extra arguments, following the declared ones.  A converted function
+ * with no captures has simply been lifted to the top level.
+ *
+ * Since a converted function never assigns to a captured variable, and
+ * every function it may call is either nested within it or converted
+ * itself, no captured variable can change while it is active, so the
+ * copies it receives stay up to date.
+ */
+class ClosureConversion {
+
+    /** The nested functions converted. */
+    private final Set<FuncInfo> converted = new HashSet<>();
+
+    /** The captures of each converted function, in the order in which
+     *  they are passed. */
+    private final Map<FuncInfo, List<StackVarInfo>> captures =
+        new HashMap<>();
+
+    /** The stack variables each function reads. */
+    private final Map<FuncInfo, Set<StackVarInfo>> reads = new HashMap<>();
+
+    /** The stack variables each function assigns to. */
+    private final Map<FuncInfo, Set<StackVarInfo>> writes = new HashMap<>();
+
+    /** The nested functions each function calls. */
+    private final Map<FuncInfo, Set<FuncInfo>> calls = new HashMap<>();
+
+    /** The nested functions among FUNCTIONS, each with the functions
+     *  nested within it, including itself. */
+    private final Map<FuncInfo, List<FuncInfo>> subtrees = new HashMap<>();
+
+    /** A conversion of the nested functions among FUNCTIONS. */
+    ClosureConversion(List<FuncInfo> functions) {
+        for (FuncInfo funcInfo : functions) {
+            collectUses(funcInfo);
+            for (FuncInfo outer = funcInfo; outer != null;
+                 outer = outer.getParentFuncInfo()) {
+                if (outer.getDepth() > 0) {
+                    subtrees.computeIfAbsent(outer, k -> new ArrayList<>())
+                        .add(funcInfo);
+                }
+            }
+        }
+
+        for (FuncInfo funcInfo : subtrees.keySet()) {
+            if (!writesOuter(funcInfo)) {
+                converted.add(funcInfo);
+            }
+        }
+        boolean changed;
+        do {
+            changed = false;
+            for (FuncInfo funcInfo : subtrees.keySet()) {
+                if (converted.contains(funcInfo)
+                    && callsUnconverted(funcInfo)) {
+                    converted.remove(funcInfo);
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        Map<FuncInfo, Set<StackVarInfo>> needed = new HashMap<>();
+        for (FuncInfo funcInfo : converted) {
+            needed.put(funcInfo, new HashSet<>());
+        }
+        do {
+            changed = false;
+            for (FuncInfo funcInfo : converted) {
+                Set<StackVarInfo> vars = needed.get(funcInfo);
+                for (FuncInfo member : subtrees.get(funcInfo)) {
+                    Set<StackVarInfo> used = new HashSet<>(reads.get(member));
+                    for (FuncInfo callee : calls.get(member)) {
+                        if (needed.containsKey(callee)) {
+                            used.addAll(needed.get(callee));
+                        }
+                    }
+                    for (StackVarInfo var : used) {
+                        if (!isWithin(var.getFuncInfo(), funcInfo)
+                            && vars.add(var)) {
+                            changed = true;
+                        }
+                    }
+                }
+            }
+        } while (changed);
+
+        for (FuncInfo funcInfo : converted) {
+            List<StackVarInfo> vars = new ArrayList<>(needed.get(funcInfo));
+            vars.sort(Comparator
+                      .comparingInt((StackVarInfo v) ->
+                                    v.getFuncInfo().getDepth())
+                      .thenComparingInt(v -> v.getFuncInfo()
+                                        .getVarIndex(v.getVarName())));
+            captures.put(funcInfo, vars);
+        }
+    }
+
+    /** Return true iff a call to the function described by CALLEE must
+     *  pass a static link. */
+    boolean needsStaticLink(FuncInfo callee) {
+        return callee.getDepth() > 0 && !converted.contains(callee);
+    }
+
+    /** Return the variables of enclosing functions whose values are
+     *  passed to CALLEE after its declared arguments. */
+    List<StackVarInfo> getCaptures(FuncInfo callee) {
+        List<StackVarInfo> result = captures.get(callee);
+        return result == null ? Collections.emptyList() : result;
+    }
+
+    /** Return true iff VAR must live in the frame of the function
+     *  declaring it, because a nested function reads or assigns it there
+     *  through static links rather than receiving a copy of it. */
+    boolean isFrameResident(StackVarInfo var) {
+        FuncInfo owner = var.getFuncInfo();
+        for (FuncInfo member : reads.keySet()) {
+            if (member == owner || !isWithin(member, owner)) {
+                continue;
+            }
+            if (writes.get(member).contains(var)) {
+                return true;
+            }
+            boolean used = reads.get(member).contains(var);
+            for (FuncInfo callee : calls.get(member)) {
+                used |= getCaptures(callee).contains(var);
+            }
+            if (used && !hasCopy(member, var)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return true iff a function nested within the function declaring
+     *  VAR assigns to VAR. */
+    boolean isAssignedByNested(StackVarInfo var) {
+        for (FuncInfo member : writes.keySet()) {
+            if (member != var.getFuncInfo()
+                && isWithin(member, var.getFuncInfo())
+                && writes.get(member).contains(var)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return true iff FUNCINFO or a function enclosing it, nested within
+     *  the function declaring VAR, receives VAR as a capture. */
+    private boolean hasCopy(FuncInfo funcInfo, StackVarInfo var) {
+        for (FuncInfo f = funcInfo; f != var.getFuncInfo();
+             f = f.getParentFuncInfo()) {
+            if (getCaptures(f).contains(var)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return true iff INNER is OUTER or is nested within it. */
+    private static boolean isWithin(FuncInfo inner, FuncInfo outer) {
+        for (FuncInfo f = inner; f != null; f = f.getParentFuncInfo()) {
+            if (f == outer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return true iff FUNCINFO or a function nested within it assigns
+     *  to a variable of a function enclosing FUNCINFO. */
+    private boolean writesOuter(FuncInfo funcInfo) {
+        for (FuncInfo member : subtrees.get(funcInfo)) {
+            for (StackVarInfo var : writes.get(member)) {
+                if (!isWithin(var.getFuncInfo(), funcInfo)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Return true iff FUNCINFO or a function nested within it calls an
+     *  unconverted function declared outside FUNCINFO, which would
+     *  require a static link to a frame outside FUNCINFO. */
+    private boolean callsUnconverted(FuncInfo funcInfo) {
+        for (FuncInfo member : subtrees.get(funcInfo)) {
+            for (FuncInfo callee : calls.get(member)) {
+                if (!converted.contains(callee)
+                    && !isWithin(callee.getParentFuncInfo(), funcInfo)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Record the stack variables read and assigned and the nested
+     *  functions called by the statements of FUNCINFO. */
+    private void collectUses(FuncInfo funcInfo) {
+        SymbolTable<SymbolInfo> sym = funcInfo.getSymbolTable();
+        Set<StackVarInfo> read = new HashSet<>(), written = new HashSet<>();
+        Set<FuncInfo> called = new HashSet<>();
+        reads.put(funcInfo, read);
+        writes.put(funcInfo, written);
+        calls.put(funcInfo, called);
+        TreeWalker walker = new TreeWalker() {
+            @Override
+            public Void analyze(Identifier node) {
+                SymbolInfo info = sym.get(node.name);
+                if (info instanceof StackVarInfo) {
+                    read.add((StackVarInfo) info);
+                }
+                return null;
+            }
+
+            @Override
+            public Void analyze(AssignStmt node) {
+                for (Expr target : node.targets) {
+                    addWrite(target);
+                }
+                return super.analyze(node);
+            }
+
+            @Override
+            public Void analyze(ForStmt node) {
+                addWrite(node.identifier);
+                return super.analyze(node);
+            }
+
+            @Override
+            public Void analyze(CallExpr node) {
+                SymbolInfo info = sym.get(node.function.name);
+                if (info instanceof FuncInfo
+                    && ((FuncInfo) info).getDepth() > 0) {
+                    called.add((FuncInfo) info);
+                }
+                return super.analyze(node);
+            }
+
+            /** Record TARGET as assigned, if it is a stack variable. */
+            private void addWrite(Expr target) {
+                if (target instanceof Identifier) {
+                    SymbolInfo info = sym.get(((Identifier) target).name);
+                    if (info instanceof StackVarInfo) {
+                        written.add((StackVarInfo) info);
+                    }
+                }
+            }
+        };
+        for (Stmt stmt : funcInfo.getStatements()) {
+            stmt.dispatch(walker);
+        }
+    }
+}
@@ -1,9 +1,21 @@
 package chocopy.pa3;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import chocopy.common.analysis.SymbolTable;
 import chocopy.common.analysis.AbstractNodeAnalyzer;
+import chocopy.common.analysis.TreeWalker;
 import chocopy.common.analysis.types.SymbolType;
 import chocopy.common.analysis.types.ValueType;
 import chocopy.common.astnodes.*;
@@ -36,6 +48,256 @@ public class CodeGenImpl extends CodeGenBase {
     private final Label errorDiv = new Label("error.Div");
     /** Index out of bounds. */
     private final Label errorOob = new Label("error.OOB");
+    /** Out of memory. */
+    private final Label errorOom = new Label("error.OOM");
+
+    /** Shared frame setup, when optimizing for size. */
+    private final Label frameEnter = new Label("frame.enter");
+    /** Shared frame teardown and return, when optimizing for size. */
+    private final Label frameLeave = new Label("frame.leave");
+
+    /** Escape information for parameters, computed once the program
+     *  has been analyzed. */
+    private EscapeAnalysis escapes;
+
+    /** The nested functions passed captured variables rather than a
+     *  static link, computed once the program has been analyzed. */
+    private ClosureConversion closures;
+
+    /** The global variables each function may read or assign, computed
+     *  once the program has been analyzed. */
+    private GlobalAccess globalAccess;
+
+    /** The calls evaluated at compile time. */
+    private ConstantCalls constantCalls;
+
+    /** The calls directed to type-specialized clones of their callees,
+     *  or null when optimizing for size. */
+    private Specialization specialization;
+
+    /** The built-in functions written in assembly. */
+    private List<FuncInfo> builtins;
+
+    /**
+     * The registers in which the first arguments to a user-defined
+     * function or method are passed, in order.  Further arguments are
+     * passed on the stack, above the captures (see ClosureConversion) and
+     * below the static link, if any.  The built-in functions written in
+     * assembly expect all of their arguments on the stack, so calls to
+     * them pass no arguments in registers.
+     *
+     * Calls preserve S1-S9, FP and SP; S10, S11 and GP belong to the
+     * heap allocator, and all other registers may be clobbered.  A
+     * function keeps its Ith register argument in PARAM_REGS[I], saving
+     * the caller's value of that register in the word at FP - 12 - 4*I,
+     * unless a nested function reaches the parameter through a static
+     * link, or the parameter is used too little to repay saving and
+     * restoring the register (see MIN_REGISTER_USES), in which case that
+     * word holds the parameter instead.
+     */
+    private static final RiscVBackend.Register[] ARG_REGS = {
+        A0, A1, A2, A3, A4, A5, A6, A7
+    };
+
+    /** The callee-saved registers holding register arguments. */
+    private static final RiscVBackend.Register[] PARAM_REGS = {
+        S1, S2, S3, S4, S5, S6, S7, S8
+    };
+
+    /**
+     * The registers in which global variables are kept while a loop at
+     * the top level runs (see StmtAnalyzer.promoteGlobals).  No function
+     * uses them at the top level, and calls preserve them.
+     */
+    private static final RiscVBackend.Register[] PROMOTED_REGS = {
+        S1, S2, S3, S4, S5, S6, S7, S8, S9
+    };
+
+    /** The fewest arms of an if/elif chain (see IfChain) for which the
+     *  arm to run is searched for rather than tested for in turn. */
+    private static final int MIN_CHAIN_ARMS = 4;
+
+    /** The fewest arms of a chain for which a jump table is used. */
+    private static final int MIN_TABLE_ARMS = 8;
+
+    /** The most entries of a jump table per arm of its chain. */
+    private static final int MAX_TABLE_SPREAD = 3;
+
+    /** The jump tables of the program, each with the labels of its
+     *  entries, emitted with the constants in order of their labels.
+     *  Function bodies emitted at once may add to it. */
+    private final Map<Label, List<Label>> jumpTables =
+        new ConcurrentSkipListMap<>(Comparator.comparing(Label::toString));
+
+    /** The counters of an instrumented program, by the start of the
+     *  profile line each is written to (see Profile), written in that
+     *  order.  Function bodies emitted at once may add to it. */
+    private final Map<String, Label> profileCounters =
+        new ConcurrentSkipListMap<>();
+
+    /** Routine writing the profile of an instrumented program. */
+    private final Label profileDump = new Label("profile.dump");
+
+    /** The largest immediate operand of ADDI. */
+    private static final int MAX_IMM = 2047;
+
+    /** The fewest elements of a list display copied into the list by
+     *  calling memcpy rather than by loads and stores of their own, when
+     *  optimizing for speed and for size respectively. */
+    private static final int MIN_MEMCPY_WORDS = 8, MIN_MEMCPY_WORDS_SIZE = 3;
+
+    /** The fewest estimated uses per call for which a parameter is kept
+     *  in a register rather than in the frame. */
+    private static final int MIN_REGISTER_USES = 3;
+
+    /** The factor by which a use within a loop is weighed. */
+    private static final int LOOP_WEIGHT = 8;
+
+    /** The estimated number of uses per call of each parameter. */
+    private final Map<StackVarInfo, Integer> paramUses = new HashMap<>();
+
+    @Override
+    protected void analyzeProgram(Program program) {
+        super.analyzeProgram(program);
+        builtins = Arrays.asList(printFunc, lenFunc, inputFunc);
+        constantCalls = new ConstantCalls(functions, builtins, lenFunc,
+                                          program.statements, globalSymbols);
+        if (!optimizeSize) {
+            specialization =
+                new Specialization(functions, builtins, program.statements,
+                                   globalSymbols, this::cloneFunction);
+        }
+        escapes = new EscapeAnalysis(functions, builtins);
+        closures = new ClosureConversion(functions);
+        globalAccess = new GlobalAccess(functions, builtins);
+        for (FuncInfo funcInfo : functions) {
+            countParamUses(funcInfo);
+        }
+    }
+
+    @Override
+    protected void internConstants(FuncInfo funcInfo) {
+        super.internConstants(funcInfo);
+        TreeWalker walker = new TreeWalker() {
+            @Override
+            public Void analyze(CallExpr node) {
+                Object value = constantCalls.getValue(node);
+                if (value instanceof String) {
+                    constants.getStrConstant((String) value);
+                }
+                return super.analyze(node);
+            }
+        };
+        for (Stmt stmt : funcInfo.getStatements()) {
+            stmt.dispatch(walker);
+        }
+    }
+
+    /** Return a new function, added to functions, with the statements
+     *  of the global function ORIGINAL but with parameters of types
+     *  PARAMTYPES. */
+    private FuncInfo cloneFunction(FuncInfo original,
+                                   List<ValueType> paramTypes) {
+        StringBuilder name = new StringBuilder(original.getFuncName());
+        for (ValueType type : paramTypes) {
+            name.append('$').append(type.className());
+        }
+        FuncInfo clone =
+            makeFuncInfo(name.toString(), 0, original.getReturnType(),
+                         globalSymbols, null, this::emitUserDefinedFunction);
+        SymbolTable<SymbolInfo> sym = original.getSymbolTable();
+        List<String> params = original.getParams();
+        for (int i = 0; i < params.size(); i++) {
+            clone.addParam(makeStackVarInfo(params.get(i), paramTypes.get(i),
+                                            null, clone));
+        }
+        for (StackVarInfo local : original.getLocals()) {
+            clone.addLocal(makeStackVarInfo(local.getVarName(),
+                                            local.getVarType(),
+                                            local.getInitialValue(), clone));
+        }
+        for (String varName : sym.getDeclaredSymbols()) {
+            if (sym.get(varName) instanceof GlobalVarInfo) {
+                clone.getSymbolTable().put(varName, sym.get(varName));
+            }
+        }
+        clone.addBody(original.getStatements());
+        functions.add(clone);
+        return clone;
+    }
+
+    /** Add to paramUses the uses of the parameters of FUNCINFO in its
+     *  statements, weighing each by LOOP_WEIGHT for each loop enclosing
+     *  it. */
+    private void countParamUses(FuncInfo funcInfo) {
+        SymbolTable<SymbolInfo> sym = funcInfo.getSymbolTable();
+        TreeWalker walker = new TreeWalker() {
+            private int weight = 1;
+
+            @Override
+            public Void analyze(Identifier node) {
+                SymbolInfo info = sym.get(node.name);
+                if (info instanceof StackVarInfo
+                    && funcInfo.getParams().contains(node.name)) {
+                    paramUses.merge((StackVarInfo) info, weight,
+                                    Integer::sum);
+                }
+                return null;
+            }
+
+            @Override
+            public Void analyze(WhileStmt node) {
+                weight *= LOOP_WEIGHT;
+                super.analyze(node);
+                weight /= LOOP_WEIGHT;
+                return null;
+            }
+
+            @Override
+            public Void analyze(ForStmt node) {
+                weight *= LOOP_WEIGHT;
+                super.analyze(node);
+                weight /= LOOP_WEIGHT;
+                return null;
+            }
+        };
+        for (Stmt stmt : funcInfo.getStatements()) {
+            stmt.dispatch(walker);
+        }
+    }
+
+    /** Return the number of arguments passed in registers to the
+     *  function described by FUNCINFO. */
+    private int registerArgCount(FuncInfo funcInfo) {
+        if (builtins.contains(funcInfo)) {
+            return 0;
+        }
+        return Math.min(funcInfo.getParams().size(), ARG_REGS.length);
+    }
+
+    /** Return the register holding parameter INDEX of the function
+     *  described by FUNCINFO throughout its body, or null if the
+     *  parameter is kept in the frame. */
+    private RiscVBackend.Register paramRegister(FuncInfo funcInfo,
+                                                int index) {
+        if (index >= registerArgCount(funcInfo)) {
+            return null;
+        }
+        SymbolInfo param =
+            funcInfo.getSymbolTable().get(funcInfo.getParams().get(index));
+        if (closures.isFrameResident((StackVarInfo) param)
+            || paramUses.getOrDefault(param, 0) < MIN_REGISTER_USES) {
+            return null;
+        }
+        return PARAM_REGS[index];
+    }
+
+    /** Return the offset from FP of the static link passed to the
+     *  function described by FUNCINFO. */
+    private int staticLinkOffset(FuncInfo funcInfo) {
+        return (funcInfo.getParams().size() - registerArgCount(funcInfo)
+                + closures.getCaptures(funcInfo).size()) * wordSize;
+    }
 
     /**
      * Emits the top level of the program.
@@ -61,6 +323,9 @@ public class CodeGenImpl extends CodeGenBase {
         for (Stmt stmt : statements) {
             stmt.dispatch(stmtAnalyzer);
         }
+        if (instrument) {
+            backend.emitJAL(profileDump, "Write the profile");
+        }
         backend.emitLI(A0, EXIT_ECALL, "Code for ecall: exit");
         backend.emitEcall(null);
     }
@@ -78,12 +343,43 @@ public class CodeGenImpl extends CodeGenBase {
         backend.emitGlobalLabel(funcInfo.getCodeLabel());
         StmtAnalyzer stmtAnalyzer = new StmtAnalyzer(funcInfo);
 
-        backend.emitADDI(SP, SP, -2 * backend.getWordSize(),
-                "Saved FP and saved RA.");
-        backend.emitSW(FP, SP, 0, "Save FP.");
-        backend.emitSW(RA, SP, 4, "Save RA.");
-        backend.emitADDI(FP, SP, 2 * backend.getWordSize(),
-                "Set FP to previous SP.");
+        int regArgs = registerArgCount(funcInfo);
+        int frameWords = 2 + regArgs;
+        if (optimizeSize) {
+            backend.emitInsn(String.format("jal %s, %s", T0, frameEnter),
+                             "Save FP and RA, and set FP.");
+            if (regArgs > 0) {
+                backend.emitADDI(SP, SP, -regArgs * wordSize,
+                                 "Register argument slots.");
+            }
+        } else {
+            backend.emitADDI(SP, SP, -frameWords * backend.getWordSize(),
+                    regArgs == 0 ? "Saved FP and saved RA."
+                    : "Saved FP, saved RA and register argument slots.");
+            backend.emitSW(FP, SP, (frameWords - 2) * wordSize, "Save FP.");
+            backend.emitSW(RA, SP, (frameWords - 1) * wordSize, "Save RA.");
+            backend.emitADDI(FP, SP, frameWords * backend.getWordSize(),
+                    "Set FP to previous SP.");
+        }
+
+        for (int i = 0; i < regArgs; i++) {
+            RiscVBackend.Register reg = paramRegister(funcInfo, i);
+            String paramName = funcInfo.getParams().get(i);
+            if (reg == null) {
+                backend.emitSW(ARG_REGS[i], FP, -(3 + i) * wordSize,
+                               "Store parameter " + paramName);
+            } else {
+                backend.emitSW(reg, FP, -(3 + i) * wordSize,
+                               "Save " + reg);
+                backend.emitMV(reg, ARG_REGS[i],
+                               "Keep parameter " + paramName + " in " + reg);
+            }
+        }
+        if (instrument) {
+            emitCount(profileCounter(
+                          Profile.callRecord(Profile.nameOf(funcInfo))),
+                      false);
+        }
 
         for (StackVarInfo localVar : funcInfo.getLocals()) {
             ValueType type = localVar.getVarType();
@@ -94,6 +390,11 @@ public class CodeGenImpl extends CodeGenBase {
             } else if (type != null && type.equals(SymbolType.BOOL_TYPE)) {
                 backend.emitLI(T0, ((BooleanLiteral) value).value ? 1 : 0,
                         "Load boolean literal" + ((BooleanLiteral) value).value);
+            } else if (constants.fromLiteral(value) == null) {
+                backend.emitMV(T0, ZERO, "Load None");
+            } else {
+                backend.emitLA(T0, constants.fromLiteral(value),
+                               "Load constant");
             }
             backend.emitADDI(SP, SP, -1 * backend.getWordSize(),
                     "Move SP to save local variable.");
@@ -109,6 +410,17 @@ public class CodeGenImpl extends CodeGenBase {
         backend.emitLocalLabel(stmtAnalyzer.epilogue, "Epilogue");
 
         // FIXME: {... reset fp etc. ...}
+        for (int i = 0; i < regArgs; i++) {
+            RiscVBackend.Register reg = paramRegister(funcInfo, i);
+            if (reg != null) {
+                backend.emitLW(reg, FP, -(3 + i) * wordSize,
+                               "Restore " + reg);
+            }
+        }
+        if (optimizeSize) {
+            backend.emitJ(frameLeave, "Reset FP and SP, and return");
+            return;
+        }
         backend.emitLW(RA, FP, -4, "Reset RA.");
         backend.emitMV(SP, FP, "Reset SP.");
         backend.emitLW(FP, SP, -8, "Reset FP.");
@@ -158,6 +470,25 @@ public class CodeGenImpl extends CodeGenBase {
          *  level. */
         private FuncInfo funcInfo;
 
+        /** The loop being emitted whose indexed list (see CountedLoop) is
+         *  addressed by T3, or null (see emitReducedLoop). */
+        private CountedLoop reducedLoop;
+
+        /** The global variables kept in registers while the loop being
+         *  emitted runs, each with its register, or null. */
+        private Map<GlobalVarInfo, RiscVBackend.Register> promoted;
+
+        /** The global variables in promoted that the loop assigns. */
+        private final Set<GlobalVarInfo> promotedWrites =
+            new LinkedHashSet<>();
+
+        /** Whether each word of the frame from FP - 4 down to SP holds a
+         *  pointer (see holdsPointers): the saved RA and FP, the register
+         *  argument slots and the locals, followed by the words pushed
+         *  since, which the code pushing and popping them keeps up to
+         *  date.  See emitStackMap. */
+        private final List<Boolean> frameSlots = new ArrayList<>();
+
         /** An analyzer for the function described by FUNCINFO0, which is null
          *  for the top level. */
         StmtAnalyzer(FuncInfo funcInfo0) {
@@ -168,6 +499,79 @@ public class CodeGenImpl extends CodeGenBase {
                 sym = funcInfo.getSymbolTable();
             }
             epilogue = generateLocalLabel();
+
+            pushed(2, false);
+            if (funcInfo != null) {
+                for (int i = 0; i < registerArgCount(funcInfo); i++) {
+                    pushed(1, paramRegister(funcInfo, i) == null
+                              && holdsPointers(paramType(funcInfo, i)));
+                }
+                for (StackVarInfo local : funcInfo.getLocals()) {
+                    pushed(1, holdsPointers(local.getVarType()));
+                }
+            }
+        }
+
+        /** Record that WORDS words were pushed onto the stack, each
+         *  holding a pointer iff POINTER. */
+        private void pushed(int words, boolean pointer) {
+            for (int i = 0; i < words; i++) {
+                frameSlots.add(pointer);
+            }
+        }
+
+        /** Record that WORDS words were popped off the stack. */
+        private void popped(int words) {
+            frameSlots.subList(frameSlots.size() - words, frameSlots.size())
+                .clear();
+        }
+
+        /** Record that the word at OFFSET from SP holds a pointer iff
+         *  POINTER. */
+        private void setSlot(int offset, boolean pointer) {
+            frameSlots.set(frameSlots.size() - 1 - offset / wordSize,
+                           pointer);
+        }
+
+        /**
+         * Emit a label following the call just emitted, which may collect
+         * garbage, and the stack map (see StackMap) of the frame during
+         * the call: the parameters kept in registers or in the frame, the
+         * locals, the words pushed and, at the top level, the promoted
+         * global variables that hold pointers.
+         */
+        private void emitStackMap() {
+            Label ret = generateLocalLabel();
+            backend.emitLocalLabel(ret, null);
+            int pointerRegisters = 0, savedRegisters = 0;
+            if (funcInfo != null) {
+                for (int i = 0; i < registerArgCount(funcInfo); i++) {
+                    RiscVBackend.Register reg = paramRegister(funcInfo, i);
+                    if (reg == null) {
+                        continue;
+                    }
+                    savedRegisters |= StackMap.registerBit(reg);
+                    if (holdsPointers(paramType(funcInfo, i))) {
+                        pointerRegisters |= StackMap.registerBit(reg);
+                    }
+                }
+            } else if (promoted != null) {
+                for (GlobalVarInfo global : promoted.keySet()) {
+                    if (holdsPointers(global.getVarType())) {
+                        pointerRegisters |=
+                            StackMap.registerBit(promoted.get(global));
+                    }
+                }
+            }
+            List<Integer> pointerSlots = new ArrayList<>();
+            for (int i = 0; i < frameSlots.size(); i++) {
+                if (frameSlots.get(i)) {
+                    pointerSlots.add(-(i + 1) * wordSize);
+                }
+            }
+            backend.emitInsn(new StackMap(ret.toString(), pointerRegisters,
+                                          savedRegisters, pointerSlots)
+                             .toDirective(), null);
         }
 
         // FIXME: Example of statement.
@@ -198,29 +602,37 @@ public class CodeGenImpl extends CodeGenBase {
             assignStmt.value.dispatch(this);
 
             for (Expr tar : assignStmt.targets) {
+                if (tar instanceof IndexExpr) {
+                    emitElementStore((IndexExpr) tar, assignStmt.value);
+                    continue;
+                }
                 String varName = ((Identifier) tar).name;
                 SymbolInfo symbolInfo = sym.get(varName);
+                if (reducedLoop != null
+                    && varName.equals(reducedLoop.counter.name)) {
+                    int shift = getElementShift(
+                        reducedLoop.indexedList.getInferredType());
+                    backend.emitADDI(T3, T3, reducedLoop.step << shift,
+                                     "Step element pointer with counter");
+                }
 
                 // TODO: need box when target is object and value is int/bool
                 if (symbolInfo instanceof StackVarInfo) {
-                    SymbolTable<SymbolInfo> curSym = sym;
-                    FuncInfo curFuncInfo = funcInfo;
-                    backend.emitMV(T0, FP, "Save FP for iteration.");
-                    // Find the variable by recursion
-                    while (!curSym.declares(varName)) {
-                        int paramNum = curFuncInfo.getParams().size();
-                        curSym = curSym.getParent();
-                        curFuncInfo = curFuncInfo.getParentFuncInfo();
-                        backend.emitLW(T0, T0, paramNum * backend.getWordSize(),
-                                "Load parent function scope.");
+                    RiscVBackend.Register reg =
+                        varRegister((StackVarInfo) symbolInfo);
+                    if (reg != null) {
+                        backend.emitMV(reg, A0, "Store param: " + varName);
+                        continue;
                     }
-
-                    int id = curFuncInfo.getVarIndex(varName);
-                    // offset based current FP position (argument n-1, lastest argument)
-                    int offset = curFuncInfo.getParams().size() - 1 - id;
-                    backend.emitSW(A0, T0, offset * backend.getWordSize(),
+                    int offset = emitVarFrame((StackVarInfo) symbolInfo);
+                    backend.emitSW(A0, T0, offset,
                             "Store local var: " + varName);
                 }
+                if (promoted != null && promoted.containsKey(symbolInfo)) {
+                    backend.emitMV(promoted.get(symbolInfo), A0,
+                                   "Store promoted global var: " + varName);
+                    continue;
+                }
                 if (symbolInfo instanceof GlobalVarInfo) {
                     backend.emitSW(A0, ((GlobalVarInfo) symbolInfo).getLabel(), T6,
                             "Store global var: " + varName);
@@ -232,9 +644,111 @@ public class CodeGenImpl extends CodeGenBase {
         @Override
         public Void analyze(CallExpr callExpr) {
             String callName = callExpr.function.name;
+            Object value = constantCalls.getValue(callExpr);
+            if (value instanceof Integer) {
+                backend.emitLI(A0, (Integer) value,
+                               "Value of " + callName + " call, evaluated");
+                return null;
+            } else if (value instanceof Boolean) {
+                backend.emitLI(A0, (Boolean) value ? 1 : 0,
+                               "Value of " + callName + " call, evaluated");
+                return null;
+            } else if (value instanceof String) {
+                backend.emitLA(A0, constants.getStrConstant((String) value),
+                               "Value of " + callName + " call, evaluated");
+                return null;
+            }
             FuncInfo callFuncInfo = (FuncInfo) sym.get(callName);
+            if (specialization != null
+                && specialization.getClonedCallee(callExpr) != null) {
+                callFuncInfo = specialization.getClonedCallee(callExpr);
+                callName = callFuncInfo.getFuncName();
+            }
+            List<Expr> args = callExpr.args;
+            int regArgs = registerArgCount(callFuncInfo);
+            int overflow = args.size() - regArgs;
+            boolean link =
+                funcInfo != null && closures.needsStaticLink(callFuncInfo);
+
+            /* An argument evaluated before another that may call a routine
+             * is saved on the stack until all have been evaluated. */
+            int lastCall = -1;
+            for (int i = 0; i < args.size(); i++) {
+                if (mayCall(args.get(i))
+                    || boxesOnHeap(callFuncInfo, i, args.get(i))) {
+                    lastCall = i;
+                }
+            }
 
-            if (funcInfo != null) {
+            /* The boxes of arguments boxed in the frame are reserved below
+             * the arguments, so that the arguments stay contiguous. */
+            int boxSize = intClass.getAttributes().size() + HEADER_SIZE;
+            int boxes = 0;
+            for (int i = 0; i < args.size(); i++) {
+                if (boxesInFrame(callFuncInfo, i, args.get(i))) {
+                    boxes += 1;
+                }
+            }
+            if (boxes > 0) {
+                backend.emitADDI(SP, SP, -boxes * boxSize * wordSize,
+                                 "Reserve non-escaping boxes in frame");
+                pushed(boxes * boxSize, false);
+            }
+
+            // Words pushed so far, and the word count at which each
+            // argument saved on the stack was pushed (0 if it was not).
+            int depth = boxes * boxSize;
+            int[] saved = new int[args.size()];
+            int box = 0;
+            for (int i = 0; i < args.size(); i++) {
+                args.get(i).dispatch(this);
+                if (boxesInFrame(callFuncInfo, i, args.get(i))) {
+                    box += 1;
+                    emitFrameBox(intClass, "__int__",
+                                 (depth - box * boxSize) * wordSize);
+                } else {
+                    emitArgBox(callFuncInfo, i, args.get(i));
+                }
+                if (i < regArgs && i >= lastCall) {
+                    if (i > 0) {
+                        backend.emitMV(ARG_REGS[i], A0,
+                                       "Pass argument in " + ARG_REGS[i]);
+                    } else if (args.size() > 1) {
+                        backend.emitMV(T2, A0, "Hold first argument.");
+                    }
+                    continue;
+                }
+                backend.emitADDI(SP, SP, -1 * backend.getWordSize(),
+                        "Move SP to save argument.");
+                backend.emitSW(A0, SP, 0, "Load argument to stack");
+                pushed(1, holdsPointers(paramType(callFuncInfo, i)));
+                depth += 1;
+                saved[i] = depth;
+            }
+
+            /* Stack arguments pushed last, in order, are already in place,
+             * unless a static link must go above them. */
+            boolean inPlace = !link || overflow == 0;
+            for (int i = regArgs; i < args.size(); i++) {
+                inPlace &= saved[i] == depth - (args.size() - 1 - i);
+            }
+            if (!inPlace) {
+                int words = overflow + (link ? 1 : 0);
+                backend.emitADDI(SP, SP, -words * wordSize,
+                                 "Reserve space for stack arguments.");
+                pushed(words, false);
+                depth += words;
+                for (int i = regArgs; i < args.size(); i++) {
+                    backend.emitLW(T1, SP, (depth - saved[i]) * wordSize,
+                                   "Load saved argument.");
+                    backend.emitSW(T1, SP, (args.size() - 1 - i) * wordSize,
+                                   "Pass argument on stack.");
+                    setSlot((args.size() - 1 - i) * wordSize,
+                            holdsPointers(paramType(callFuncInfo, i)));
+                }
+            }
+
+            if (link) {
                 // Get static link for call
                 FuncInfo curFuncInfo = funcInfo;
                 int curDepth = funcInfo.getDepth();
@@ -243,40 +757,189 @@ public class CodeGenImpl extends CodeGenBase {
                 backend.emitMV(T0, FP, "Save the current FP.");
                 for (int i = 0; i < hop; i++) {
                     assert curFuncInfo != null : "current function can not be NULL";
-                    int paramNum = curFuncInfo.getParams().size();
-                    backend.emitLW(T0, T0, paramNum * backend.getWordSize(),
+                    backend.emitLW(T0, T0, staticLinkOffset(curFuncInfo),
                             "Load parent function scope.");
                     curFuncInfo = curFuncInfo.getParentFuncInfo();
                 }
 
+                if (inPlace) {
+                    backend.emitADDI(SP, SP, -1 * backend.getWordSize(),
+                            "Move SP to save static link.");
+                    backend.emitSW(T0, SP, 0, "Load static link.");
+                    pushed(1, false);
+                    depth += 1;
+                } else {
+                    backend.emitSW(T0, SP, overflow * wordSize,
+                                   "Load static link.");
+                }
+            }
+
+            for (StackVarInfo captured : closures.getCaptures(callFuncInfo)) {
+                RiscVBackend.Register reg = varRegister(captured);
+                if (reg == null) {
+                    int offset = emitVarFrame(captured);
+                    backend.emitLW(T1, T0, offset,
+                            "Load captured var: " + captured.getVarName());
+                    reg = T1;
+                }
                 backend.emitADDI(SP, SP, -1 * backend.getWordSize(),
-                        "Move SP to save static link.");
-                backend.emitSW(T0, SP, 0, "Load static link.");
+                        "Move SP to save captured var.");
+                backend.emitSW(reg, SP, 0, "Load captured var to stack");
+                pushed(1, holdsPointers(captured.getVarType()));
+                depth += 1;
+            }
+
+            for (int i = 0; i < regArgs; i++) {
+                if (saved[i] > 0) {
+                    backend.emitLW(ARG_REGS[i], SP,
+                                   (depth - saved[i]) * wordSize,
+                                   "Pass argument in " + ARG_REGS[i]);
+                } else if (i == 0 && args.size() > 1) {
+                    backend.emitMV(A0, T2, "Pass argument in " + A0);
+                }
+            }
+
+            for (GlobalVarInfo global : promotedWrites) {
+                if (globalAccess.mayRead(callFuncInfo, global)) {
+                    backend.emitSW(promoted.get(global), global.getLabel(),
+                                   T6, "Write back promoted global var: "
+                                   + global.getVarName());
+                }
+            }
+            backend.emitJAL(callFuncInfo.getCodeLabel(), "Invoke function " + callName);
+            if (!builtins.contains(callFuncInfo)) {
+                emitStackMap();
+            }
+            if (depth > 0) {
+                backend.emitADDI(SP, SP, depth * wordSize,
+                                 "Pop arguments.");
+                popped(depth);
+            }
+            return null;
+        }
 
+        /** Return true iff ARG, passed as argument INDEX to the function
+         *  described by CALLEE, is boxed by calling a routine. */
+        private boolean boxesOnHeap(FuncInfo callee, int index, Expr arg) {
+            if (!paramType(callee, index).equals(SymbolType.OBJECT_TYPE)) {
+                return false;
             }
+            return typeOf(arg).equals(SymbolType.BOOL_TYPE)
+                || (typeOf(arg).equals(SymbolType.INT_TYPE)
+                    && escapes.paramEscapes(callee, index));
+        }
+
+        /** Return true iff ARG, passed as argument INDEX to the function
+         *  described by CALLEE, is boxed in the frame of the caller. */
+        private boolean boxesInFrame(FuncInfo callee, int index, Expr arg) {
+            return paramType(callee, index).equals(SymbolType.OBJECT_TYPE)
+                && typeOf(arg).equals(SymbolType.INT_TYPE)
+                && !escapes.paramEscapes(callee, index);
+        }
 
-            // TODO: delete arguments when finished call function
-            for (int i = 0; i < callExpr.args.size(); i++) {
-                Expr e = callExpr.args.get(i);
-                String paramName = callFuncInfo.getParams().get(i);
-                StackVarInfo paramInfo = (StackVarInfo) callFuncInfo.getSymbolTable().get(paramName);
+        /** Emit code that boxes the value in A0 of ARG, passed as argument
+         *  INDEX to the function described by CALLEE, on the heap if the
+         *  parameter is an object and ARG is not boxed in the frame. */
+        private void emitArgBox(FuncInfo callee, int index, Expr arg) {
+            if (!paramType(callee, index).equals(SymbolType.OBJECT_TYPE)) {
+                return;
+            }
+            if (typeOf(arg).equals(SymbolType.INT_TYPE)) {
+                backend.emitInsn("jal makeint", "Box integer");
+                emitStackMap();
+            }
+            if (typeOf(arg).equals(SymbolType.BOOL_TYPE)) {
+                backend.emitInsn("jal makebool", "Box boolean");
+            }
+        }
 
-                e.dispatch(this);
-                if (e.getInferredType().equals(SymbolType.INT_TYPE)
-                        && paramInfo.getVarType().equals(SymbolType.OBJECT_TYPE)) {
-                    backend.emitInsn("jal makeint", "Box integer");
+        /** Return the type of the value of E: the declared type of the
+         *  variable if E names one, which differs from its inferred type
+         *  for a parameter of a specialized clone (see Specialization),
+         *  and otherwise its inferred type. */
+        private SymbolType typeOf(Expr e) {
+            if (e instanceof Identifier) {
+                SymbolInfo info = sym.get(((Identifier) e).name);
+                if (info instanceof VarInfo) {
+                    return ((VarInfo) info).getVarType();
                 }
-                if (e.getInferredType().equals(SymbolType.BOOL_TYPE)
-                        && paramInfo.getVarType().equals(SymbolType.OBJECT_TYPE)) {
-                    backend.emitInsn("jal makebool", "Box boolean");
+            }
+            return e.getInferredType();
+        }
+
+        /** Return the declared type of parameter INDEX of the function
+         *  described by CALLEE. */
+        private ValueType paramType(FuncInfo callee, int index) {
+            String paramName = callee.getParams().get(index);
+            return ((StackVarInfo) callee.getSymbolTable().get(paramName))
+                .getVarType();
+        }
+
+        /** Return true iff evaluating E may call a routine, which may
+         *  clobber any register not preserved by calls. */
+        private boolean mayCall(Expr e) {
+            if (e instanceof Literal || e instanceof Identifier) {
+                return false;
+            } else if (e instanceof UnaryExpr) {
+                return mayCall(((UnaryExpr) e).operand);
+            } else if (e instanceof BinaryExpr) {
+                BinaryExpr binaryExpr = (BinaryExpr) e;
+                if (binaryExpr.operator.equals("+")
+                    && !SymbolType.INT_TYPE.equals(
+                           binaryExpr.left.getInferredType())) {
+                    return true;
                 }
-                backend.emitADDI(SP, SP, -1 * backend.getWordSize(),
-                        "Move SP to save argument.");
-                backend.emitSW(A0, SP, 0, "Load argument to stack");
+                return mayCall(binaryExpr.left) || mayCall(binaryExpr.right);
             }
+            return true;
+        }
 
-            backend.emitJAL(callFuncInfo.getCodeLabel(), "Invoke function " + callName);
-            return null;
+        /** Return the register holding VAR, if it is a parameter of the
+         *  current function kept in a register, or else null. */
+        private RiscVBackend.Register varRegister(StackVarInfo var) {
+            if (var.getFuncInfo() != funcInfo) {
+                return null;
+            }
+            int index = funcInfo.getParams().indexOf(var.getVarName());
+            return index < 0 ? null : paramRegister(funcInfo, index);
+        }
+
+        /**
+         * Emit code that leaves in T0 the frame pointer of the frame
+         * holding VAR, or a copy of it passed to a converted function
+         * (see ClosureConversion), following static links from the
+         * current frame as needed.  Return the offset of VAR from T0.
+         */
+        private int emitVarFrame(StackVarInfo var) {
+            FuncInfo curFuncInfo = funcInfo;
+            backend.emitMV(T0, FP, "Save FP for iteration.");
+            while (true) {
+                int paramNum = curFuncInfo.getParams().size();
+                List<StackVarInfo> captures =
+                    closures.getCaptures(curFuncInfo);
+                if (var.getFuncInfo() == curFuncInfo) {
+                    int id = curFuncInfo.getVarIndex(var.getVarName());
+                    int regArgs = registerArgCount(curFuncInfo);
+                    // offset based current FP position (argument n-1, lastest argument)
+                    int offset = paramNum - 1 - id;
+                    if (id < regArgs) {
+                        offset = -3 - id;
+                    } else if (id < paramNum) {
+                        offset += captures.size();
+                    } else {
+                        offset -= regArgs;
+                    }
+                    return offset * backend.getWordSize();
+                }
+                int index = captures.indexOf(var);
+                if (index >= 0) {
+                    return (captures.size() - 1 - index)
+                        * backend.getWordSize();
+                }
+                backend.emitLW(T0, T0, staticLinkOffset(curFuncInfo),
+                        "Load parent function scope.");
+                curFuncInfo = curFuncInfo.getParentFuncInfo();
+            }
         }
 
         @Override
@@ -284,22 +947,20 @@ public class CodeGenImpl extends CodeGenBase {
             String varName = node.name;
             SymbolInfo symbolInfo = sym.get(varName);
 
+            if (promoted != null && promoted.containsKey(symbolInfo)) {
+                backend.emitMV(A0, promoted.get(symbolInfo),
+                               "Load promoted global var: " + varName);
+                return null;
+            }
             if (symbolInfo instanceof StackVarInfo) {
-                SymbolTable<SymbolInfo> curSym = sym;
-                FuncInfo curFuncInfo = funcInfo;
-                backend.emitMV(T0, FP, "Save FP for iteration.");
-                //find the variable by recursion
-                while (!curSym.declares(varName)) {
-                    int paramNum = curFuncInfo.getParams().size();
-                    curSym = curSym.getParent();
-                    curFuncInfo = curFuncInfo.getParentFuncInfo();
-                    backend.emitLW(T0, T0, paramNum * backend.getWordSize(),
-                            "Load parent function scope.");
+                RiscVBackend.Register reg =
+                    varRegister((StackVarInfo) symbolInfo);
+                if (reg != null) {
+                    backend.emitMV(A0, reg, "Load param: " + varName);
+                    return null;
                 }
-                int id = curFuncInfo.getVarIndex(varName);
-                // offset based current FP position (argument n-1, lastest argument)
-                int offset = curFuncInfo.getParams().size() - 1 - id;
-                backend.emitLW(A0, T0, offset * backend.getWordSize(),
+                int offset = emitVarFrame((StackVarInfo) symbolInfo);
+                backend.emitLW(A0, T0, offset,
                         "Load local var: " + varName);
             }
             if (symbolInfo instanceof GlobalVarInfo) {
@@ -339,22 +1000,463 @@ public class CodeGenImpl extends CodeGenBase {
             return null;
         }
 
+        @Override
+        public Void analyze(ListExpr node) {
+            List<Expr> elements = node.elements;
+            ValueType elementType = node.getInferredType().elementType();
+            if (SymbolType.BOOL_TYPE.equals(elementType)) {
+                emitBoolList(node);
+                return null;
+            }
+            int size = elements.size();
+            boolean pointers = size > 0 && holdsPointers(elementType);
+            if (size > 0) {
+                backend.emitADDI(SP, SP, -size * wordSize,
+                                 "Reserve list elements");
+                pushed(size, false);
+            }
+            for (int i = 0; i < size; i++) {
+                elements.get(i).dispatch(this);
+                if (SymbolType.OBJECT_TYPE.equals(elementType)) {
+                    emitHeapBox(elements.get(i).getInferredType());
+                }
+                backend.emitSW(A0, SP, i * wordSize,
+                               "Save list element " + i);
+                setSlot(i * wordSize, pointers);
+            }
+            if (pointers) {
+                backend.emitLA(A0, pointerListClass.getPrototypeLabel(),
+                               "Load pointer list prototype");
+            } else {
+                backend.emitLA(A0, listClass.getPrototypeLabel(),
+                               "Load list prototype");
+            }
+            backend.emitLI(A1, HEADER_SIZE + 1 + size, "List object size");
+            backend.emitJAL(objectAllocResizeLabel, "Allocate list");
+            emitStackMap();
+            backend.emitLI(T0, size, "List length");
+            backend.emitSW(T0, A0, getAttrOffset(listClass, "__len__"),
+                           null);
+            if (size >= (optimizeSize ? MIN_MEMCPY_WORDS_SIZE
+                                      : MIN_MEMCPY_WORDS)) {
+                backend.emitLI(T1, size, "Number of elements");
+                backend.emitMV(T2, SP, "Copy elements from the stack");
+                backend.emitADDI(T3, A0, getElementOffset(),
+                                 "Copy elements to the list");
+                backend.emitInsn(String.format("jal %s, %s", T0,
+                                               memcpyLabel),
+                                 "Copy list elements");
+            } else {
+                for (int i = 0; i < size; i++) {
+                    backend.emitLW(T0, SP, i * wordSize,
+                                   "Load list element " + i);
+                    backend.emitSW(T0, A0,
+                                   getElementOffset() + i * wordSize, null);
+                }
+            }
+            if (size > 0) {
+                backend.emitADDI(SP, SP, size * wordSize,
+                                 "Pop list elements");
+                popped(size);
+            }
+            return null;
+        }
+
+        /** Emit NODE, a list display of type [bool], allocating a
+         *  [bool] list of a byte per element. */
+        private void emitBoolList(ListExpr node) {
+            List<Expr> elements = node.elements;
+            int size = elements.size();
+            for (Expr element : elements) {
+                element.dispatch(this);
+                backend.emitADDI(SP, SP, -wordSize, "Push list element");
+                backend.emitSW(A0, SP, 0, null);
+                pushed(1, false);
+            }
+            backend.emitLA(A0, boolListClass.getPrototypeLabel(),
+                           "Load [bool] list prototype");
+            backend.emitLI(A1, HEADER_SIZE + 1
+                               + (size + wordSize - 1) / wordSize,
+                           "List object size");
+            backend.emitJAL(objectAllocResizeLabel, "Allocate list");
+            emitStackMap();
+            backend.emitLI(T0, size, "List length");
+            backend.emitSW(T0, A0, getAttrOffset(boolListClass, "__len__"),
+                           null);
+            for (int i = 0; i < size; i++) {
+                backend.emitLW(T0, SP, (size - 1 - i) * wordSize,
+                               "Load list element " + i);
+                backend.emitSB(T0, A0, getElementOffset() + i, null);
+            }
+            if (size > 0) {
+                backend.emitADDI(SP, SP, size * wordSize,
+                                 "Pop list elements");
+                popped(size);
+            }
+        }
+
+        @Override
+        public Void analyze(IndexExpr node) {
+            if (SymbolType.STR_TYPE.equals(node.list.getInferredType())) {
+                emitStrElement(node);
+                return null;
+            }
+            boolean bytes = getElementShift(node.list.getInferredType()) == 0;
+            if (isReduced(node)) {
+                backend.emitBGEU(T3, T4, errorOob,
+                                 "Go to error if index out of bounds");
+                if (bytes) {
+                    backend.emitLBU(A0, T3, getElementOffset(),
+                                    "Load list element at counter");
+                } else {
+                    backend.emitLW(A0, T3, getElementOffset(),
+                                   "Load list element at counter");
+                }
+                return null;
+            }
+            emitElementAddress(node);
+            if (bytes) {
+                backend.emitLBU(A0, A0, getElementOffset(),
+                                "Load list element");
+            } else {
+                backend.emitLW(A0, A0, getElementOffset(),
+                               "Load list element");
+            }
+            return null;
+        }
+
+        /** Emit NODE, an index into a str, allocating a str of the
+         *  indexed character. */
+        private void emitStrElement(IndexExpr node) {
+            emitElementAddress(node);
+            backend.emitLBU(A0, A0, getAttrOffset(strClass, "__str__"),
+                            "Load character");
+            backend.emitADDI(SP, SP, -wordSize, "Push character");
+            backend.emitSW(A0, SP, 0, null);
+            pushed(1, false);
+            backend.emitLA(A0, strClass.getPrototypeLabel(),
+                           "Load str prototype");
+            backend.emitLI(A1, HEADER_SIZE + 2, "Str object size");
+            backend.emitJAL(objectAllocResizeLabel, "Allocate str");
+            emitStackMap();
+            backend.emitLW(T0, SP, 0, "Pop character");
+            backend.emitADDI(SP, SP, wordSize, null);
+            popped(1);
+            backend.emitLI(T1, 1, "Str length");
+            backend.emitSW(T1, A0, getAttrOffset(strClass, "__len__"), null);
+            backend.emitSW(T0, A0, getAttrOffset(strClass, "__str__"),
+                           "Store character and terminating NUL");
+        }
+
+        /** Return true iff NODE indexes the indexed list of reducedLoop by
+         *  its counter, so that T3 holds the element's address, less
+         *  getElementOffset(). */
+        private boolean isReduced(IndexExpr node) {
+            return reducedLoop != null
+                && node.list instanceof Identifier
+                && node.index instanceof Identifier
+                && ((Identifier) node.list).name
+                       .equals(reducedLoop.indexedList.name)
+                && ((Identifier) node.index).name
+                       .equals(reducedLoop.counter.name);
+        }
+
+        /** Emit code that evaluates the list or str and index of NODE,
+         *  checks that the list is not None and the index is within its
+         *  bounds, and leaves in A0 the address of the indexed element,
+         *  less getElementOffset(). */
+        private void emitElementAddress(IndexExpr node) {
+            if (node.list instanceof Identifier && !mayCall(node.index)) {
+                /* Nothing the index does can change the variable, so it
+                 * may be read second. */
+                node.index.dispatch(this);
+                backend.emitMV(T1, A0, "Move index");
+                node.list.dispatch(this);
+            } else {
+                node.list.dispatch(this);
+                backend.emitADDI(SP, SP, -wordSize, "Push list");
+                backend.emitSW(A0, SP, 0, null);
+                pushed(1, true);
+                node.index.dispatch(this);
+                backend.emitMV(T1, A0, "Move index");
+                backend.emitLW(A0, SP, 0, "Pop list");
+                backend.emitADDI(SP, SP, wordSize, null);
+                popped(1);
+            }
+            backend.emitBEQZ(A0, errorNone, "Go to error if list is None");
+            backend.emitLW(T0, A0, getAttrOffset(listClass, "__len__"),
+                           "Load list length");
+            backend.emitBGEU(T1, T0, errorOob,
+                             "Go to error if index out of bounds");
+            int shift = getElementShift(node.list.getInferredType());
+            if (shift > 0) {
+                backend.emitSLLI(T1, T1, shift, "Offset of element");
+            }
+            backend.emitADD(A0, A0, T1, "Address of element, less header");
+        }
+
+        /** Emit a store of the element in REG at offset getElementOffset()
+         *  from BASE, into a list of type LISTTYPE. */
+        private void emitElementWrite(SymbolType listType,
+                                      RiscVBackend.Register reg,
+                                      RiscVBackend.Register base,
+                                      String comment) {
+            if (getElementShift(listType) == 0) {
+                backend.emitSB(reg, base, getElementOffset(), comment);
+            } else {
+                backend.emitSW(reg, base, getElementOffset(), comment);
+            }
+        }
+
+        /** Emit code that stores the value in A0 of VALUE into the element
+         *  of a list indexed by TARGET, leaving A0 unchanged. */
+        private void emitElementStore(IndexExpr target, Expr value) {
+            ValueType elementType =
+                target.list.getInferredType().elementType();
+            boolean boxed = SymbolType.OBJECT_TYPE.equals(elementType)
+                && (SymbolType.INT_TYPE.equals(value.getInferredType())
+                    || SymbolType.BOOL_TYPE.equals(value.getInferredType()));
+            SymbolType listType = target.list.getInferredType();
+            if (isReduced(target)) {
+                backend.emitBGEU(T3, T4, errorOob,
+                                 "Go to error if index out of bounds");
+                emitElementWrite(listType, A0, T3,
+                                 "Store list element at counter");
+                return;
+            }
+            if (!boxed && target.list instanceof Identifier
+                && !mayCall(target.index)) {
+                backend.emitMV(T2, A0, "Save assigned value");
+                emitElementAddress(target);
+                emitElementWrite(listType, T2, A0, "Store list element");
+                backend.emitMV(A0, T2, "Restore assigned value");
+                return;
+            }
+            backend.emitADDI(SP, SP, -2 * wordSize, "Save assigned value");
+            backend.emitSW(A0, SP, wordSize, null);
+            pushed(1, holdsPointers(typeOf(value)));
+            pushed(1, false);
+            if (boxed) {
+                emitHeapBox(value.getInferredType());
+            }
+            backend.emitSW(A0, SP, 0, "Save stored element");
+            setSlot(0, boxed || holdsPointers(typeOf(value)));
+            emitElementAddress(target);
+            backend.emitLW(T1, SP, 0, "Load stored element");
+            emitElementWrite(listType, T1, A0, "Store list element");
+            backend.emitLW(A0, SP, wordSize, "Restore assigned value");
+            backend.emitADDI(SP, SP, 2 * wordSize, null);
+            popped(2);
+        }
+
+        /** Emit code that boxes the value in A0 on the heap, if its type
+         *  TYPE is int or bool. */
+        private void emitHeapBox(SymbolType type) {
+            if (SymbolType.INT_TYPE.equals(type)) {
+                backend.emitInsn("jal makeint", "Box integer");
+                emitStackMap();
+            } else if (SymbolType.BOOL_TYPE.equals(type)) {
+                backend.emitInsn("jal makebool", "Box boolean");
+            }
+        }
+
+        /** Emit NODE, the concatenation of two lists, allocating a list
+         *  of the type of NODE that holds the elements of both. */
+        private void emitListConcat(BinaryExpr node) {
+            SymbolType type = node.getInferredType();
+            ValueType elementType = type.elementType();
+            int lenOffset = getAttrOffset(listClass, "__len__");
+            node.left.dispatch(this);
+            backend.emitADDI(SP, SP, -wordSize, "Push left list");
+            backend.emitSW(A0, SP, 0, null);
+            pushed(1, true);
+            node.right.dispatch(this);
+            backend.emitADDI(SP, SP, -wordSize, "Push right list");
+            backend.emitSW(A0, SP, 0, null);
+            pushed(1, true);
+            backend.emitLW(T0, SP, wordSize, "Load left list");
+            backend.emitBEQZ(T0, errorNone,
+                             "Go to error if left list is None");
+            backend.emitBEQZ(A0, errorNone,
+                             "Go to error if right list is None");
+            backend.emitLW(T0, T0, lenOffset, "Load left list length");
+            backend.emitLW(T1, A0, lenOffset, "Load right list length");
+            backend.emitADD(T0, T0, T1, "Length of concatenation");
+            backend.emitADDI(SP, SP, -wordSize, "Push length");
+            backend.emitSW(T0, SP, 0, null);
+            pushed(1, false);
+            if (getElementShift(type) == 0) {
+                backend.emitADDI(A1, T0, wordSize - 1, null);
+                backend.emitSRLI(A1, A1,
+                                 31 - Integer.numberOfLeadingZeros(wordSize),
+                                 "Words of elements");
+                backend.emitADDI(A1, A1, HEADER_SIZE + 1, "List object size");
+                backend.emitLA(A0, boolListClass.getPrototypeLabel(),
+                               "Load [bool] list prototype");
+            } else {
+                backend.emitADDI(A1, T0, HEADER_SIZE + 1, "List object size");
+                if (holdsPointers(elementType)) {
+                    backend.emitLA(A0, pointerListClass.getPrototypeLabel(),
+                                   "Load pointer list prototype");
+                } else {
+                    backend.emitLA(A0, listClass.getPrototypeLabel(),
+                                   "Load list prototype");
+                }
+            }
+            backend.emitJAL(objectAllocResizeLabel, "Allocate list");
+            emitStackMap();
+            backend.emitLW(T0, SP, 0, "Load length");
+            backend.emitSW(T0, A0, lenOffset, null);
+            backend.emitSW(A0, SP, 0, "Save concatenation");
+            setSlot(0, true);
+            if (isBoxed(node.left, elementType)
+                || isBoxed(node.right, elementType)) {
+                /* Boxing an element may collect garbage, so the list must
+                 * hold no stale pointers until it is filled. */
+                backend.emitMV(T1, T0, "Number of elements");
+                backend.emitMV(T2, ZERO, "Clear elements");
+                backend.emitADDI(T3, A0, getElementOffset(),
+                                 "Clear elements of the concatenation");
+                backend.emitInsn(String.format("jal %s, %s", T0,
+                                               memsetLabel),
+                                 "Clear list elements");
+            }
+            emitListAppend(node.left, type, 2 * wordSize, false);
+            emitListAppend(node.right, type, wordSize, true);
+            backend.emitLW(A0, SP, 0, "Load concatenation");
+            backend.emitADDI(SP, SP, 3 * wordSize, "Pop lists");
+            popped(3);
+        }
+
+        /** Return true iff an element of the list LIST must be boxed to
+         *  be stored in a list of elements of type ELEMENTTYPE. */
+        private boolean isBoxed(Expr list, ValueType elementType) {
+            return !holdsPointers(list.getInferredType().elementType())
+                && holdsPointers(elementType);
+        }
+
+        /** Emit code that copies the elements of LIST, whose value is at
+         *  SLOT from SP, into the concatenation of type TYPE at SP,
+         *  after the elements of the left operand iff SECOND. */
+        private void emitListAppend(Expr list, SymbolType type, int slot,
+                                    boolean second) {
+            int lenOffset = getAttrOffset(listClass, "__len__");
+            int shift = getElementShift(type);
+            ValueType elementType = list.getInferredType().elementType();
+            if (isBoxed(list, type.elementType())) {
+                Label loop = generateLocalLabel();
+                Label done = generateLocalLabel();
+                int srcShift = getElementShift(list.getInferredType());
+                backend.emitADDI(SP, SP, -wordSize, "Push index");
+                backend.emitSW(ZERO, SP, 0, null);
+                pushed(1, false);
+                backend.emitLocalLabel(loop, "Box next element");
+                backend.emitLW(T1, SP, 0, "Load index");
+                backend.emitLW(T0, SP, slot + wordSize, "Load list");
+                backend.emitLW(T2, T0, lenOffset, "Load list length");
+                backend.emitBGEU(T1, T2, done, "Done if past the end");
+                if (srcShift > 0) {
+                    backend.emitSLLI(T1, T1, srcShift, "Offset of element");
+                }
+                backend.emitADD(T0, T0, T1, "Address of element, less header");
+                if (srcShift == 0) {
+                    backend.emitLBU(A0, T0, getElementOffset(),
+                                    "Load list element");
+                } else {
+                    backend.emitLW(A0, T0, getElementOffset(),
+                                   "Load list element");
+                }
+                emitHeapBox(elementType);
+                backend.emitLW(T1, SP, 0, "Load index");
+                backend.emitADDI(T2, T1, 1, "Increment index");
+                backend.emitSW(T2, SP, 0, null);
+                if (second) {
+                    backend.emitLW(T0, SP, 3 * wordSize, "Load left list");
+                    backend.emitLW(T0, T0, lenOffset,
+                                   "Load left list length");
+                    backend.emitADD(T1, T1, T0, "Index in concatenation");
+                }
+                backend.emitSLLI(T1, T1, shift, "Offset of element");
+                backend.emitLW(T0, SP, wordSize, "Load concatenation");
+                backend.emitADD(T0, T0, T1, "Address of element, less header");
+                backend.emitSW(A0, T0, getElementOffset(),
+                               "Store list element");
+                backend.emitJ(loop, null);
+                backend.emitLocalLabel(done, null);
+                backend.emitADDI(SP, SP, wordSize, "Pop index");
+                popped(1);
+                return;
+            }
+            backend.emitLW(T2, SP, slot, "Load list");
+            backend.emitLW(T1, T2, lenOffset, "Load list length");
+            backend.emitADDI(T2, T2, getElementOffset(), "Copy from list");
+            backend.emitLW(T3, SP, 0, "Load concatenation");
+            if (second) {
+                backend.emitLW(T0, SP, 2 * wordSize, "Load left list");
+                backend.emitLW(T0, T0, lenOffset, "Load left list length");
+                if (shift > 0) {
+                    backend.emitSLLI(T0, T0, shift, "Offset of element");
+                }
+                backend.emitADD(T3, T3, T0, "Address of element, less header");
+            }
+            backend.emitADDI(T3, T3, getElementOffset(),
+                             "Copy to concatenation");
+            if (shift > 0) {
+                backend.emitInsn(String.format("jal %s, %s", T0, memcpyLabel),
+                                 "Copy list elements");
+                return;
+            }
+            Label loop = generateLocalLabel();
+            Label done = generateLocalLabel();
+            backend.emitLocalLabel(loop, "Copy next element");
+            backend.emitBEQZ(T1, done, "Done if no elements left");
+            backend.emitLBU(T0, T2, 0, "Load list element");
+            backend.emitSB(T0, T3, 0, "Store list element");
+            backend.emitADDI(T2, T2, 1, null);
+            backend.emitADDI(T3, T3, 1, null);
+            backend.emitADDI(T1, T1, -1, null);
+            backend.emitJ(loop, null);
+            backend.emitLocalLabel(done, null);
+        }
+
         @Override
         public Void analyze(BinaryExpr binaryExpr) {
+            if (binaryExpr.operator.equals("+")
+                && binaryExpr.left.getInferredType().isListType()) {
+                emitListConcat(binaryExpr);
+                return null;
+            }
             if (!binaryExpr.operator.equals("and")
                     && !binaryExpr.operator.equals("or")) {
                 binaryExpr.left.dispatch(this);
-                backend.emitSW(A0, SP, -1 * backend.getWordSize(),
-                        "Save left expression value.");
+                if (binaryExpr.right instanceof Literal
+                    || binaryExpr.right instanceof Identifier) {
+                    backend.emitSW(A0, SP, -1 * backend.getWordSize(),
+                            "Save left expression value.");
 
-                binaryExpr.right.dispatch(this);
-                backend.emitSW(A0, SP, -2 * backend.getWordSize(),
-                        "Save right expression value.");
+                    binaryExpr.right.dispatch(this);
+                    backend.emitSW(A0, SP, -2 * backend.getWordSize(),
+                            "Save right expression value.");
+
+                    backend.emitLW(T0, SP, -1 * backend.getWordSize(),
+                            "Load left expression value.");
+                    backend.emitLW(T1, SP, -2 * backend.getWordSize(),
+                            "Load right expression value.");
+                } else {
+                    /* The right expression may use the stack below SP,
+                     * so the left value must be pushed. */
+                    backend.emitADDI(SP, SP, -wordSize,
+                            "Push left expression value.");
+                    backend.emitSW(A0, SP, 0, null);
+                    pushed(1, holdsPointers(
+                            binaryExpr.left.getInferredType()));
 
-                backend.emitLW(T0, SP, -1 * backend.getWordSize(),
-                        "Load left expression value.");
-                backend.emitLW(T1, SP, -2 * backend.getWordSize(),
-                        "Load right expression value.");
+                    binaryExpr.right.dispatch(this);
+                    backend.emitMV(T1, A0, "Move right expression value.");
+                    backend.emitLW(T0, SP, 0, "Pop left expression value.");
+                    backend.emitADDI(SP, SP, wordSize, null);
+                    popped(1);
+                }
             }
 
             Label compareBranch = null;
@@ -377,6 +1479,7 @@ public class CodeGenImpl extends CodeGenBase {
                     backend.emitREM(A0, T0, T1, "remainer");
                     break;
 
+                case "is":
                 case "==":
                     compareBranch = generateLocalLabel();
                     compareFinish = generateLocalLabel();
@@ -505,10 +1608,32 @@ public class CodeGenImpl extends CodeGenBase {
 
         @Override
         public Void analyze(IfStmt ifStmt) {
+            /* An instrumented chain tests its arms in turn, so that each
+             * test is counted. */
+            IfChain chain =
+                instrument ? null : IfChain.match(ifStmt, MIN_CHAIN_ARMS);
+            if (chain != null) {
+                emitChain(chain);
+                return null;
+            }
             Label branch = generateLocalLabel();
             Label finish = generateLocalLabel();
 
-            ifStmt.condition.dispatch(this);
+            emitCondition(ifStmt);
+            if (!ifStmt.elseBody.isEmpty() && isMostlyFalse(ifStmt)) {
+                /* Let the more frequent else body fall through. */
+                backend.emitBNEZ(A0, branch, "Jump when condition is true.");
+                for (Stmt stmt : ifStmt.elseBody) {
+                    stmt.dispatch(this);
+                }
+                backend.emitJ(finish, null);
+                backend.emitLocalLabel(branch, "then body begin");
+                for (Stmt stmt : ifStmt.thenBody) {
+                    stmt.dispatch(this);
+                }
+                backend.emitLocalLabel(finish, null);
+                return null;
+            }
             backend.emitBEQZ(A0, branch, "Jump when condition is false.");
             for (Stmt stmt : ifStmt.thenBody) {
                 stmt.dispatch(this);
@@ -522,19 +1647,422 @@ public class CodeGenImpl extends CodeGenBase {
             return null;
         }
 
+        /**
+         * Emit CHAIN, reading its subject once and then jumping to the
+         * arm to run: through a bounds-checked jump table if the chain
+         * has at least MIN_TABLE_ARMS arms whose values are dense enough,
+         * and otherwise by a binary search over the values.
+         */
+        private void emitChain(IfChain chain) {
+            Label otherwise = generateLocalLabel();
+            Label finish = generateLocalLabel();
+            List<Label> arms = new ArrayList<>();
+            for (int i = 0; i < chain.size(); i++) {
+                arms.add(generateLocalLabel());
+            }
+
+            chain.subject.dispatch(this);
+            int min = Collections.min(chain.values);
+            int max = Collections.max(chain.values);
+            long range = (long) max - min + 1;
+            if (chain.size() >= MIN_TABLE_ARMS
+                && range <= (long) MAX_TABLE_SPREAD * chain.size()) {
+                emitJumpTable(chain, arms, otherwise, min, (int) range);
+            } else {
+                List<Integer> order = new ArrayList<>();
+                for (int i = 0; i < chain.size(); i++) {
+                    order.add(i);
+                }
+                order.sort((a, b) -> Integer.compare(chain.values.get(a),
+                                                     chain.values.get(b)));
+                emitDecisionTree(chain, order, 0, order.size() - 1, arms,
+                                 otherwise);
+            }
+
+            for (int i = 0; i < chain.size(); i++) {
+                backend.emitLocalLabel(arms.get(i),
+                                       "Arm for " + chain.subject.name
+                                       + " == " + chain.values.get(i));
+                for (Stmt stmt : chain.bodies.get(i)) {
+                    stmt.dispatch(this);
+                }
+                backend.emitJ(finish, null);
+            }
+            backend.emitLocalLabel(otherwise, "No arm matched");
+            for (Stmt stmt : chain.elseBody) {
+                stmt.dispatch(this);
+            }
+            backend.emitLocalLabel(finish, null);
+        }
+
+        /** Emit a jump through a new jump table to the one of ARMS whose
+         *  value in CHAIN is the subject's value in A0, or to OTHERWISE
+         *  if none is, where the values span RANGE from MIN. */
+        private void emitJumpTable(IfChain chain, List<Label> arms,
+                                   Label otherwise, int min, int range) {
+            Label table = generateLabel("switch");
+            List<Label> entries =
+                new ArrayList<>(Collections.nCopies(range, otherwise));
+            for (int i = 0; i < chain.size(); i++) {
+                entries.set(chain.values.get(i) - min, arms.get(i));
+            }
+            jumpTables.put(table, entries);
+
+            if (min != 0 && Math.abs((long) min) <= MAX_IMM) {
+                backend.emitADDI(A0, A0, -min, "Index into jump table");
+            } else if (min != 0) {
+                backend.emitLI(T0, min, "Lowest value in jump table");
+                backend.emitSUB(A0, A0, T0, "Index into jump table");
+            }
+            backend.emitLI(T0, range, "Jump table size");
+            backend.emitBGEU(A0, T0, otherwise,
+                             "Go to else body if outside jump table");
+            backend.emitSLLI(A0, A0, 2, "Offset of jump table entry");
+            backend.emitLA(T0, table, "Load jump table");
+            backend.emitADD(T0, T0, A0, null);
+            backend.emitLW(T0, T0, 0, "Load arm address");
+            backend.emitJR(T0, "Go to arm");
+        }
+
+        /** Emit a binary search for the subject's value in A0 among the
+         *  values in CHAIN of the arms ORDER[LO..HI], sorted by value,
+         *  jumping to the matching one of ARMS or else to OTHERWISE. */
+        private void emitDecisionTree(IfChain chain, List<Integer> order,
+                                      int lo, int hi, List<Label> arms,
+                                      Label otherwise) {
+            if (hi - lo < 3) {
+                for (int k = lo; k <= hi; k++) {
+                    int arm = order.get(k);
+                    backend.emitLI(T0, chain.values.get(arm), null);
+                    backend.emitBEQ(A0, T0, arms.get(arm),
+                                    "Go to arm if equal");
+                }
+                backend.emitJ(otherwise, "Go to else body");
+                return;
+            }
+            int mid = (lo + hi) / 2;
+            int arm = order.get(mid);
+            Label lower = generateLocalLabel();
+            backend.emitLI(T0, chain.values.get(arm), null);
+            backend.emitBEQ(A0, T0, arms.get(arm), "Go to arm if equal");
+            backend.emitBLT(A0, T0, lower, "Search lower values");
+            emitDecisionTree(chain, order, mid + 1, hi, arms, otherwise);
+            backend.emitLocalLabel(lower, "Values below "
+                                   + chain.values.get(arm));
+            emitDecisionTree(chain, order, lo, mid - 1, arms, otherwise);
+        }
+
         @Override
         public Void analyze(WhileStmt whileStmt) {
+            if (funcInfo != null || promoted != null) {
+                emitWhile(whileStmt);
+                return null;
+            }
+            Map<GlobalVarInfo, RiscVBackend.Register> globals =
+                promoteGlobals(whileStmt);
+            for (GlobalVarInfo global : globals.keySet()) {
+                backend.emitLW(globals.get(global), global.getLabel(),
+                               "Promote global var: " + global.getVarName());
+            }
+            promoted = globals;
+            emitWhile(whileStmt);
+            promoted = null;
+            for (GlobalVarInfo global : promotedWrites) {
+                backend.emitSW(globals.get(global), global.getLabel(), T6,
+                               "Write back promoted global var: "
+                               + global.getVarName());
+            }
+            promotedWrites.clear();
+            return null;
+        }
+
+        /**
+         * Return the global variables used in LOOP, at the top level,
+         * that are kept in registers while it runs, each with its
+         * register, and add those that LOOP assigns to promotedWrites.
+         * They are the variables that no function called in LOOP may
+         * assign, up to one per register in PROMOTED_REGS, most used
+         * first.  A call to a function that may read one of them is
+         * preceded by writing it back if LOOP assigns it.  Nothing is
+         * promoted if LOOP calls a method or a constructor.
+         */
+        private Map<GlobalVarInfo, RiscVBackend.Register> promoteGlobals(
+                WhileStmt loop) {
+            Map<GlobalVarInfo, Integer> uses = new LinkedHashMap<>();
+            Set<GlobalVarInfo> written = new HashSet<>();
+            Set<FuncInfo> callees = new HashSet<>();
+            boolean[] opaque = { false };
+            TreeWalker walker = new TreeWalker() {
+                @Override
+                public Void analyze(Identifier node) {
+                    SymbolInfo info = sym.get(node.name);
+                    if (info instanceof GlobalVarInfo) {
+                        uses.merge((GlobalVarInfo) info, 1, Integer::sum);
+                    }
+                    return null;
+                }
+
+                @Override
+                public Void analyze(AssignStmt node) {
+                    for (Expr target : node.targets) {
+                        addWrite(target);
+                    }
+                    return super.analyze(node);
+                }
+
+                @Override
+                public Void analyze(ForStmt node) {
+                    addWrite(node.identifier);
+                    return super.analyze(node);
+                }
+
+                @Override
+                public Void analyze(CallExpr node) {
+                    SymbolInfo info = sym.get(node.function.name);
+                    if (info instanceof FuncInfo) {
+                        callees.add((FuncInfo) info);
+                    } else {
+                        opaque[0] = true;
+                    }
+                    return super.analyze(node);
+                }
+
+                @Override
+                public Void analyze(MethodCallExpr node) {
+                    opaque[0] = true;
+                    return super.analyze(node);
+                }
+
+                /** Record TARGET as assigned, if it is a global variable. */
+                private void addWrite(Expr target) {
+                    if (target instanceof Identifier) {
+                        SymbolInfo info = sym.get(((Identifier) target).name);
+                        if (info instanceof GlobalVarInfo) {
+                            written.add((GlobalVarInfo) info);
+                        }
+                    }
+                }
+            };
+            loop.dispatch(walker);
+
+            Map<GlobalVarInfo, RiscVBackend.Register> result =
+                new LinkedHashMap<>();
+            if (opaque[0]) {
+                return result;
+            }
+            List<GlobalVarInfo> candidates = new ArrayList<>();
+            for (GlobalVarInfo global : uses.keySet()) {
+                boolean assignedByCallee = false;
+                for (FuncInfo callee : callees) {
+                    assignedByCallee |= globalAccess.mayWrite(callee, global);
+                }
+                if (!assignedByCallee) {
+                    candidates.add(global);
+                }
+            }
+            candidates.sort((a, b) -> uses.get(b) - uses.get(a));
+            for (GlobalVarInfo global : candidates) {
+                if (result.size() == PROMOTED_REGS.length) {
+                    break;
+                }
+                result.put(global, PROMOTED_REGS[result.size()]);
+                if (written.contains(global)) {
+                    promotedWrites.add(global);
+                }
+            }
+            return result;
+        }
+
+        /** Emit WHILESTMT. */
+        private void emitWhile(WhileStmt whileStmt) {
+            if (optimizeSize) {
+                /* Test at the bottom, entering through a jump rather than
+                 * a second copy of the condition. */
+                Label entrance = generateLocalLabel();
+                Label test = generateLocalLabel();
+                backend.emitJ(test, "Go to while loop test");
+                backend.emitLocalLabel(entrance, "Body of while loop.");
+                for (Stmt stmt : whileStmt.body) {
+                    stmt.dispatch(this);
+                }
+                backend.emitLocalLabel(test, "Test of while loop.");
+                emitCondition(whileStmt);
+                backend.emitBNEZ(A0, entrance,
+                                 "Loop again when condition is true.");
+                return;
+            }
+
+            CountedLoop counted = null;
+            if (!instrument && !isMostlyFalse(whileStmt)) {
+                counted = CountedLoop.match(whileStmt, sym, closures);
+            }
+            if (counted != null && counted.indexedList != null
+                && reducedLoop == null
+                && (long) counted.step
+                       << getElementShift(
+                              counted.indexedList.getInferredType())
+                   <= MAX_IMM) {
+                emitReducedLoop(whileStmt, counted);
+            } else {
+                emitLoop(whileStmt, counted);
+            }
+        }
+
+        /**
+         * Emit LOOP, described by COUNTED (if it is not null), with its
+         * indexed list addressed through pointers rather than by index:
+         * T3 holds the address of the element at the counter, stepped
+         * whenever the counter is, and T4 the address just past the
+         * last element, both less getElementOffset(), so that accessing
+         * the element takes a comparison of the two and a load or store.
+         * Since the body neither calls nor allocates, nothing clobbers
+         * them.  If the list is None or the counter is not within its
+         * bounds on entry, a plain copy of the loop runs instead, which
+         * reports any error as usual.
+         */
+        private void emitReducedLoop(WhileStmt loop, CountedLoop counted) {
+            Label plain = generateLocalLabel();
+            Label done = generateLocalLabel();
+            counted.indexedList.dispatch(this);
+            backend.emitBEQZ(A0, plain, "Use plain loop if list is None");
+            backend.emitLW(T1, A0, getAttrOffset(listClass, "__len__"),
+                           "Load list length");
+            backend.emitMV(T3, A0, "Save list");
+            counted.counter.dispatch(this);
+            backend.emitBGEU(A0, T1, plain,
+                             "Use plain loop if counter is out of bounds");
+            int shift =
+                getElementShift(counted.indexedList.getInferredType());
+            if (shift > 0) {
+                backend.emitSLLI(T1, T1, shift, "Offset past last element");
+            }
+            backend.emitADD(T4, T3, T1, "End pointer, less header");
+            if (shift > 0) {
+                backend.emitSLLI(A0, A0, shift,
+                                 "Offset of element at counter");
+            }
+            backend.emitADD(T3, T3, A0, "Element pointer, less header");
+            reducedLoop = counted;
+            emitLoop(loop, counted);
+            reducedLoop = null;
+            backend.emitJ(done, null);
+            backend.emitLocalLabel(plain, "Plain copy of while loop.");
+            emitLoop(loop, counted);
+            backend.emitLocalLabel(done, null);
+        }
+
+        /** Emit LOOP, described by COUNTED if it is a counted loop and
+         *  otherwise null. */
+        private void emitLoop(WhileStmt loop, CountedLoop counted) {
+            if (counted != null && unrollFactor > 1 && !isShortLoop(loop)
+                && (long) (unrollFactor - 1) * counted.step <= MAX_IMM) {
+                emitUnrolledLoop(loop, counted);
+            }
+
+            /* Test once on entry and then at the bottom, so that each
+             * iteration takes a single branch. */
             Label entrance = generateLocalLabel();
             Label quit = generateLocalLabel();
-            backend.emitLocalLabel(entrance, "Entrance for while loop.");
-            whileStmt.condition.dispatch(this);
-            backend.emitBEQZ(A0, quit, "Jump out when condition is false.");
-            for (Stmt stmt : whileStmt.body) {
+            emitCondition(loop);
+            backend.emitBEQZ(A0, quit, "Skip loop when condition is false.");
+            backend.emitLocalLabel(entrance, "Body of while loop.");
+            for (Stmt stmt : loop.body) {
                 stmt.dispatch(this);
             }
-            backend.emitJ(entrance, "Go back to while loop entrance");
+            emitCondition(loop);
+            backend.emitBNEZ(A0, entrance, "Loop again when condition is true.");
             backend.emitLocalLabel(quit, "Finish while loop.");
-            return null;
+        }
+
+        /**
+         * Emit the unrolled part of LOOP, described by COUNTED: as long as
+         * the condition would hold for unrollFactor iterations in a row,
+         * run them without testing it in between.  The loop emitted after
+         * this runs the remaining iterations.
+         */
+        private void emitUnrolledLoop(WhileStmt loop, CountedLoop counted) {
+            Label body = generateLocalLabel();
+            Label rest = generateLocalLabel();
+            int lookahead = (unrollFactor - 1) * counted.step;
+            emitCountedTest(counted, lookahead, rest, false);
+            backend.emitLocalLabel(body, "Unrolled body of while loop.");
+            for (int i = 0; i < unrollFactor; i++) {
+                for (Stmt stmt : loop.body) {
+                    stmt.dispatch(this);
+                }
+            }
+            emitCountedTest(counted, lookahead, body, true);
+            backend.emitLocalLabel(rest, "Remaining iterations of while loop.");
+        }
+
+        /**
+         * Emit a branch to TARGET taken iff the condition of COUNTED, with
+         * its bound moved LOOKAHEAD towards the counter's start, holds (if
+         * WHENTRUE) or fails (otherwise).
+         */
+        private void emitCountedTest(CountedLoop counted, int lookahead,
+                                     Label target, boolean whenTrue) {
+            int offset = counted.isIncreasing() ? -lookahead : lookahead;
+            if (counted.bound instanceof IntegerLiteral) {
+                backend.emitLI(T1,
+                               ((IntegerLiteral) counted.bound).value + offset,
+                               "Load loop bound, less unrolled steps");
+            } else {
+                counted.bound.dispatch(this);
+                backend.emitADDI(T1, A0, offset,
+                                 "Loop bound, less unrolled steps");
+            }
+            counted.counter.dispatch(this);
+
+            /* The condition is LHS < RHS if strict, else LHS <= RHS. */
+            RiscVBackend.Register lhs = counted.isIncreasing() ? A0 : T1;
+            RiscVBackend.Register rhs = counted.isIncreasing() ? T1 : A0;
+            String comment = whenTrue ? "Unroll again if the bound allows."
+                : "Skip unrolled loop if the bound is too near.";
+            if (counted.isStrict() == whenTrue) {
+                if (whenTrue) {
+                    backend.emitBLT(lhs, rhs, target, comment);
+                } else {
+                    backend.emitBLT(rhs, lhs, target, comment);
+                }
+            } else if (whenTrue) {
+                backend.emitBGE(rhs, lhs, target, comment);
+            } else {
+                backend.emitBGE(lhs, rhs, target, comment);
+            }
+        }
+
+        /** Return true iff the profile shows the condition of NODE to
+         *  have been false more often than true. */
+        private boolean isMostlyFalse(Stmt node) {
+            return profile != null
+                && profile.isMostlyFalse(Profile.nameOf(funcInfo), node);
+        }
+
+        /** Return true iff the profile shows LOOP to have run fewer than
+         *  unrollFactor iterations each time it was entered, on average,
+         *  so that unrolling it would not pay. */
+        private boolean isShortLoop(WhileStmt loop) {
+            if (profile == null) {
+                return false;
+            }
+            long[] counts =
+                profile.getBranchCounts(Profile.nameOf(funcInfo), loop);
+            return counts != null && counts[0] < unrollFactor * counts[1];
+        }
+
+        /** Emit the condition of NODE, an if or while statement, into A0,
+         *  counting its outcome if the program is instrumented. */
+        private void emitCondition(Stmt node) {
+            Expr condition = node instanceof IfStmt
+                ? ((IfStmt) node).condition : ((WhileStmt) node).condition;
+            condition.dispatch(this);
+            if (instrument) {
+                emitCount(profileCounter(
+                              Profile.branchRecord(Profile.nameOf(funcInfo),
+                                                   node)),
+                          true);
+            }
         }
     }
 
@@ -564,16 +2092,179 @@ public class CodeGenImpl extends CodeGenBase {
     protected void emitCustomCode() {
         emitMakeInt();
         emitMakeBool();
+        if (optimizeSize) {
+            emitFrameRoutines();
+        }
+
+        emitErrorFunc(errorNone, ERROR_NONE, "Operation on None");
+        emitErrorFunc(errorDiv, ERROR_DIV_ZERO, "Divison by zero");
+        emitErrorFunc(errorOob, ERROR_OOB, "Index out of bounds");
+        emitErrorFunc(errorOom, ERROR_OOM, "Out of memory");
+        if (instrument) {
+            emitProfileDump();
+        }
+    }
+
+    @Override
+    protected void emitConstants() {
+        super.emitConstants();
+        for (Label table : jumpTables.keySet()) {
+            backend.emitGlobalLabel(table);
+            for (Label entry : jumpTables.get(table)) {
+                backend.emitWordAddress(entry, null);
+            }
+        }
+        for (Map.Entry<String, Label> counter : profileCounters.entrySet()) {
+            backend.emitGlobalLabel(counter.getValue());
+            backend.emitWordLiteral(0, counter.getKey());
+            if (isBranchRecord(counter.getKey())) {
+                backend.emitWordLiteral(0, null);
+            }
+        }
+    }
 
-        emitErrorFunc(errorNone, "Operation on None");
-        emitErrorFunc(errorDiv, "Divison by zero");
-        emitErrorFunc(errorOob, "Index out of bounds");
+    /** Return the counter of the profile line starting with RECORD (see
+     *  Profile), creating it if need be.  A call counter is a word; a
+     *  branch counter two, the count of false outcomes followed by that
+     *  of true ones. */
+    private Label profileCounter(String record) {
+        return profileCounters.computeIfAbsent(
+            record, r -> new Label(
+                "$profile." + r.replace(Profile.TOP_LEVEL, "$top")
+                .replace(' ', '.').replace(':', '.')));
     }
 
-    /** Emit an error routine labeled ERRLABEL that aborts with message MSG. */
-    private void emitErrorFunc(Label errLabel, String msg) {
+    /** Return true iff RECORD starts a branch line of a profile. */
+    private static boolean isBranchRecord(String record) {
+        return record.startsWith("branch ");
+    }
+
+    /** Increment COUNTER, or if BYCONDITION, the count it holds of the
+     *  outcome in A0 (see profileCounter).  Only T0 and T1 are
+     *  modified. */
+    private void emitCount(Label counter, boolean byCondition) {
+        backend.emitLA(T0, counter, "Load profile counter");
+        if (byCondition) {
+            backend.emitSLLI(T1, A0, 2, "Offset of count of outcome");
+            backend.emitADD(T0, T0, T1, "Address of count of outcome");
+        }
+        backend.emitLW(T1, T0, 0, "Load count");
+        backend.emitADDI(T1, T1, 1, "Increment count");
+        backend.emitSW(T1, T0, 0, "Store count");
+    }
+
+    /** Emit the routine writing the profile of an instrumented program
+     *  (see Profile) from its counters, in their order. */
+    private void emitProfileDump() {
+        backend.emitGlobalLabel(profileDump);
+        emitPrintStr(Profile.FORMAT + " " + Profile.VERSION);
+        emitPrintChar('\n');
+        for (Map.Entry<String, Label> counter : profileCounters.entrySet()) {
+            emitPrintStr(counter.getKey() + " ");
+            backend.emitLA(T0, counter.getValue(), "Load profile counter");
+            if (isBranchRecord(counter.getKey())) {
+                backend.emitLW(A1, T0, wordSize, "Load true count");
+                backend.emitLI(A0, PRINT_INT_ECALL,
+                               "Code for ecall: print_int");
+                backend.emitEcall(null);
+                emitPrintChar(' ');
+            }
+            backend.emitLW(A1, T0, 0, isBranchRecord(counter.getKey())
+                           ? "Load false count" : "Load call count");
+            backend.emitLI(A0, PRINT_INT_ECALL, "Code for ecall: print_int");
+            backend.emitEcall(null);
+            emitPrintChar('\n');
+        }
+        backend.emitJR(RA, "Return to caller");
+    }
+
+    /** Emit code writing the str constant TEXT. */
+    private void emitPrintStr(String text) {
+        backend.emitLA(A1, constants.getStrConstant(text), "Load str");
+        backend.emitADDI(A1, A1, getAttrOffset(strClass, "__str__"),
+                         "Load address of attribute __str__");
+        backend.emitLI(A0, PRINT_STRING_ECALL, "Code for ecall: print_string");
+        backend.emitEcall(null);
+    }
+
+    /** Emit code writing the character C. */
+    private void emitPrintChar(char c) {
+        backend.emitLI(A1, (int) c, "Load character");
+        backend.emitLI(A0, PRINT_CHAR_ECALL, "Code for ecall: print_char");
+        backend.emitEcall(null);
+    }
+
+    /** Return the offset of the first element of a list from its
+     *  address. */
+    private int getElementOffset() {
+        return getAttrOffset(listClass, "__len__") + wordSize;
+    }
+
+    /** Return the log2 of the size in bytes of the elements of a list of
+     *  type LISTTYPE: a [bool] list (see boolListClass) and a str hold a
+     *  byte per element, and any other list a word. */
+    private int getElementShift(SymbolType listType) {
+        if (SymbolType.STR_TYPE.equals(listType)
+            || SymbolType.BOOL_TYPE.equals(listType.elementType())) {
+            return 0;
+        }
+        return 31 - Integer.numberOfLeadingZeros(wordSize);
+    }
+
+    /**
+     * Emit code that boxes the value in A0 as an object of class
+     * CLASSINFO, whose single attribute is ATTRNAME, in the words
+     * reserved for it at OFFSET from SP, and leaves its address in A0.
+     * The object is in the current frame rather than on the heap, so it
+     * must not outlive the frame.
+     */
+    private void emitFrameBox(ClassInfo classInfo, String attrName,
+                              int offset) {
+        int size = classInfo.getAttributes().size() + HEADER_SIZE;
+        backend.emitSW(A0, SP, offset + getAttrOffset(classInfo, attrName),
+                       "Set attribute: " + attrName);
+        backend.emitLI(A0, classInfo.getTypeTag(),
+                       "Type tag for class: " + classInfo.getClassName());
+        backend.emitSW(A0, SP, offset + getTypeTagOffset(), null);
+        backend.emitLI(A0, size, "Object size");
+        backend.emitSW(A0, SP, offset + getObjectSizeOffset(), null);
+        backend.emitLA(A0, classInfo.getDispatchTableLabel(),
+                       "Pointer to dispatch table");
+        backend.emitSW(A0, SP, offset + getDispatchTableOffset(), null);
+        if (offset == 0) {
+            backend.emitMV(A0, SP, "Address of boxed value");
+        } else {
+            backend.emitADDI(A0, SP, offset, "Address of boxed value");
+        }
+    }
+
+    /**
+     * Emit the routines shared by all functions when optimizing for size.
+     * `frame.enter` is called through T0 on entry to a function, and
+     * saves FP and RA and sets FP as the inline prologue would.
+     * `frame.leave` is jumped to at the end of a function, and restores
+     * RA, SP and FP and returns to the function's caller.
+     */
+    private void emitFrameRoutines() {
+        backend.emitGlobalLabel(frameEnter);
+        backend.emitADDI(SP, SP, -2 * wordSize, "Saved FP and saved RA.");
+        backend.emitSW(FP, SP, 0, "Save FP.");
+        backend.emitSW(RA, SP, 4, "Save RA.");
+        backend.emitADDI(FP, SP, 2 * wordSize, "Set FP to previous SP.");
+        backend.emitJR(T0, "Return to function");
+
+        backend.emitGlobalLabel(frameLeave);
+        backend.emitLW(RA, FP, -4, "Reset RA.");
+        backend.emitMV(SP, FP, "Reset SP.");
+        backend.emitLW(FP, SP, -8, "Reset FP.");
+        backend.emitJR(RA, "Return to caller");
+    }
+
+    /** Emit an error routine labeled ERRLABEL that aborts with exit code
+     *  CODE and message MSG. */
+    private void emitErrorFunc(Label errLabel, int code, String msg) {
         backend.emitGlobalLabel(errLabel);
-        backend.emitLI(A0, ERROR_NONE, "Exit code for: " + msg);
+        backend.emitLI(A0, code, "Exit code for: " + msg);
         backend.emitLA(A1, constants.getStrConstant(msg),
                        "Load error message as str");
         backend.emitADDI(A1, A1, getAttrOffset(strClass, "__str__"),
@@ -581,20 +2272,67 @@ public class CodeGenImpl extends CodeGenBase {
         backend.emitJ(abortLabel, "Abort");
     }
 
+    /**
+     * Emit `makeint`, which boxes the int in A0 and leaves its address in
+     * A0.  An int from intCacheLow to intCacheHigh is boxed as its
+     * preallocated object at intCacheLabel, and any other as a new
+     * object on the heap.  `makeint` allocates the object itself
+     * rather than calling `alloc`, and collects garbage (see gc.collect)
+     * if the heap is full, so that it needs no frame: the stack map of
+     * the call to `makeint` describes the stack during a collection.
+     */
     private void emitMakeInt() {
         Label label = new Label("makeint");
+        Label allocate = generateLocalLabel();
+        Label collect = generateLocalLabel();
+        int size = intClass.getAttributes().size() + HEADER_SIZE;
         backend.emitGlobalLabel(label);
-        backend.emitADDI(SP, SP, -8, null);
-        backend.emitSW(RA, SP, 4, null);
-        backend.emitSW(A0, SP, 0, null);
-        ClassInfo intClass = (ClassInfo) globalSymbols.get("int");
-        backend.emitLA(A0, intClass.getPrototypeLabel(), null);
-        backend.emitJAL(new Label("alloc"), null);
-        backend.emitLW(T0, SP, 0, null);
-        backend.emitSW(T0, A0, getAttrOffset(intClass, "__int__"), null);
-        backend.emitLW(RA, SP, 4, null);
-        backend.emitADDI(SP, SP, 8, null);
+        if (intCacheLow <= intCacheHigh) {
+            Label uncached = generateLocalLabel();
+            if (intCacheLow >= -MAX_IMM && intCacheLow <= MAX_IMM + 1) {
+                backend.emitADDI(A1, A0, -intCacheLow,
+                                 "Index of value in the int cache");
+            } else {
+                backend.emitLI(A1, intCacheLow, "Lowest cached int");
+                backend.emitSUB(A1, A0, A1,
+                                "Index of value in the int cache");
+            }
+            backend.emitLI(A2, intCacheHigh - intCacheLow + 1,
+                           "Number of cached ints");
+            backend.emitBGEU(A1, A2, uncached,
+                             "Go to allocate unless cached");
+            // Int objects take a power of two of bytes.
+            backend.emitSLLI(A1, A1,
+                             Integer.numberOfTrailingZeros(size * wordSize),
+                             "Offset of cached box");
+            backend.emitLA(A2, intCacheLabel, "Start of the int cache");
+            backend.emitADD(A0, A2, A1, "Address of cached box");
+            backend.emitJR(RA, null);
+            backend.emitLocalLabel(uncached, "Allocate a new box");
+        }
+        backend.emitADDI(A1, GP, size * wordSize, "End of new object");
+        backend.emitBGEU(A1, S11, collect, "Go to collector if too large");
+        backend.emitLocalLabel(allocate, null);
+        backend.emitSW(A0, GP, getAttrOffset(intClass, "__int__"),
+                       "Set attribute: __int__");
+        backend.emitLI(A0, intClass.getTypeTag(), "Type tag for class: int");
+        backend.emitSW(A0, GP, getTypeTagOffset(), null);
+        backend.emitLI(A0, size, "Object size");
+        backend.emitSW(A0, GP, getObjectSizeOffset(), null);
+        backend.emitLA(A0, intClass.getDispatchTableLabel(),
+                       "Pointer to dispatch table");
+        backend.emitSW(A0, GP, getDispatchTableOffset(), null);
+        backend.emitMV(A0, GP, "Address of boxed value");
+        backend.emitMV(GP, A1, "Set next free slot in the heap");
         backend.emitJR(RA, null);
+
+        backend.emitLocalLabel(collect, "Heap full");
+        backend.emitSUB(A2, A1, GP, "Number of bytes needed");
+        backend.emitInsn(String.format("jal %s, %s", T0, gcCollectLabel),
+                         "Collect garbage");
+        backend.emitADDI(A1, GP, size * wordSize, "End of new object");
+        backend.emitBLTU(A1, S11, allocate, "Allocate if there is room now");
+        backend.emitJ(errorOom, "Go to out-of-memory error and abort");
     }
 
     private void emitMakeBool() {
@@ -0,0 +1,478 @@
+package chocopy.pa3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import chocopy.common.analysis.SymbolTable;
+import chocopy.common.analysis.TreeWalker;
+import chocopy.common.analysis.types.SymbolType;
+import chocopy.common.astnodes.*;
+import chocopy.common.codegen.FuncInfo;
+import chocopy.common.codegen.GlobalVarInfo;
+import chocopy.common.codegen.StackVarInfo;
+import chocopy.common.codegen.SymbolInfo;
+
+/**
+ * Compile-time evaluation of calls to pure functions on constant
+ * arguments.
+ *
+ * A function is pure if it neither reads nor assigns global variables,
+ * performs no input or output, touches no list, string element or
+ * object, and calls only `len` and pure functions.  A function nested
+ * within a pure function may still assign the variables of the functions
+ * enclosing it, since those live only as long as the call.  A call to a
+ * pure function returning an int, a bool or a str, whose arguments are
+ * literals, operations on them, or such calls themselves, is evaluated
+ * by interpreting the typed AST, and its result replaces the call.
+ *
+ * The interpreter gives up, leaving the call to run, if evaluation takes
+ * more than MAX_STEPS statements and calls, nests calls more than
+ * MAX_DEPTH deep, or reaches an operation whose result might differ from
+ * that of the generated code, such as a division involving a negative
+ * or zero operand or a comparison of strings.
+ */
+class ConstantCalls {
+
+    /** The most statements and calls executed to evaluate a call. */
+    static final int MAX_STEPS = 100000;
+
+    /** The deepest nesting of calls while evaluating a call. */
+    private static final int MAX_DEPTH = 100;
+
+    /** The value of None. */
+    private static final Object NONE = new Object();
+
+    /** The value of an expression that cannot be evaluated at compile
+     *  time. */
+    private static final Object UNFOLDABLE = new Object();
+
+    /** The result of statements that cannot be executed at compile
+     *  time. */
+    private static final Returned UNFOLDED = new Returned(UNFOLDABLE);
+
+    /** The pure functions. */
+    private final Set<FuncInfo> pure = new HashSet<>();
+
+    /** The `len` function. */
+    private final FuncInfo lenFunc;
+
+    /** The value of each call evaluated. */
+    private final Map<CallExpr, Object> values = new IdentityHashMap<>();
+
+    /** The statements and calls executed for the current evaluation. */
+    private int steps;
+
+    /** The depth of calls in the current evaluation. */
+    private int depth;
+
+    /** An evaluation of the calls in FUNCTIONS and in the top-level
+     *  statements STATEMENTS, whose symbol table is GLOBALS, where the
+     *  functions in BUILTINS are implemented in assembly, and LENFUNC is
+     *  `len`. */
+    ConstantCalls(List<FuncInfo> functions, List<FuncInfo> builtins,
+                  FuncInfo lenFunc, List<Stmt> statements,
+                  SymbolTable<SymbolInfo> globals) {
+        this.lenFunc = lenFunc;
+        Map<FuncInfo, Set<FuncInfo>> calls = new HashMap<>();
+        for (FuncInfo funcInfo : functions) {
+            if (!builtins.contains(funcInfo)) {
+                Set<FuncInfo> called = new HashSet<>();
+                if (isSimple(funcInfo, called)) {
+                    pure.add(funcInfo);
+                    calls.put(funcInfo, called);
+                }
+            }
+        }
+        boolean changed;
+        do {
+            changed = false;
+            for (FuncInfo funcInfo : calls.keySet()) {
+                if (!pure.contains(funcInfo)) {
+                    continue;
+                }
+                for (FuncInfo callee : calls.get(funcInfo)) {
+                    if (callee != lenFunc && !pure.contains(callee)) {
+                        pure.remove(funcInfo);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        } while (changed);
+
+        foldCalls(statements, globals);
+        for (FuncInfo funcInfo : functions) {
+            if (!builtins.contains(funcInfo)) {
+                foldCalls(funcInfo.getStatements(),
+                          funcInfo.getSymbolTable());
+            }
+        }
+    }
+
+    /** Return the value of CALL, an Integer, a Boolean or a String, or
+     *  null if it is not evaluated at compile time. */
+    Object getValue(CallExpr call) {
+        return values.get(call);
+    }
+
+    /** Return true iff the statements of FUNCINFO themselves do nothing
+     *  impure, adding the functions they call to CALLED. */
+    private boolean isSimple(FuncInfo funcInfo, Set<FuncInfo> called) {
+        SymbolTable<SymbolInfo> sym = funcInfo.getSymbolTable();
+        boolean[] simple = { true };
+        TreeWalker walker = new TreeWalker() {
+            @Override
+            public Void analyze(Identifier node) {
+                if (sym.get(node.name) instanceof GlobalVarInfo) {
+                    simple[0] = false;
+                }
+                return null;
+            }
+
+            @Override
+            public Void analyze(CallExpr node) {
+                SymbolInfo info = sym.get(node.function.name);
+                if (info instanceof FuncInfo) {
+                    called.add((FuncInfo) info);
+                } else {
+                    simple[0] = false;
+                }
+                return super.analyze(node);
+            }
+
+            @Override
+            public Void analyze(MethodCallExpr node) {
+                simple[0] = false;
+                return null;
+            }
+
+            @Override
+            public Void analyze(MemberExpr node) {
+                simple[0] = false;
+                return null;
+            }
+
+            @Override
+            public Void analyze(IndexExpr node) {
+                simple[0] = false;
+                return null;
+            }
+
+            @Override
+            public Void analyze(ListExpr node) {
+                simple[0] = false;
+                return null;
+            }
+
+            @Override
+            public Void analyze(ForStmt node) {
+                simple[0] = false;
+                return null;
+            }
+        };
+        for (Stmt stmt : funcInfo.getStatements()) {
+            stmt.dispatch(walker);
+        }
+        return simple[0];
+    }
+
+    /** Evaluate the calls in STATEMENTS, whose symbol table is SYM, that
+     *  can be evaluated at compile time. */
+    private void foldCalls(List<Stmt> statements,
+                           SymbolTable<SymbolInfo> sym) {
+        TreeWalker walker = new TreeWalker() {
+            @Override
+            public Void analyze(CallExpr node) {
+                SymbolType type = node.getInferredType();
+                SymbolInfo info = sym.get(node.function.name);
+                if (pure.contains(info)
+                    && (SymbolType.INT_TYPE.equals(type)
+                        || SymbolType.BOOL_TYPE.equals(type)
+                        || SymbolType.STR_TYPE.equals(type))) {
+                    steps = 0;
+                    depth = 0;
+                    Object value = evaluate(node, sym, null);
+                    if (value != NONE && value != UNFOLDABLE) {
+                        values.put(node, value);
+                        return null;
+                    }
+                }
+                return super.analyze(node);
+            }
+        };
+        for (Stmt stmt : statements) {
+            stmt.dispatch(walker);
+        }
+    }
+
+    /** Return the value of E, or UNFOLDABLE if it cannot be evaluated at
+     *  compile time, where SYM is the symbol table of the scope
+     *  containing it and ACTIVATION is the call of the function whose
+     *  body contains it (null at the top level). */
+    private Object evaluate(Expr e, SymbolTable<SymbolInfo> sym,
+                            Activation activation) {
+        if (e instanceof IntegerLiteral) {
+            return ((IntegerLiteral) e).value;
+        } else if (e instanceof BooleanLiteral) {
+            return ((BooleanLiteral) e).value;
+        } else if (e instanceof StringLiteral) {
+            return ((StringLiteral) e).value;
+        } else if (e instanceof NoneLiteral) {
+            return NONE;
+        } else if (e instanceof Identifier) {
+            SymbolInfo info = sym.get(((Identifier) e).name);
+            if (!(info instanceof StackVarInfo)) {
+                return UNFOLDABLE;
+            }
+            Map<String, Object> frame =
+                frameOf((StackVarInfo) info, activation);
+            if (frame == null) {
+                return UNFOLDABLE;
+            }
+            return frame.get(((Identifier) e).name);
+        } else if (e instanceof UnaryExpr) {
+            UnaryExpr unary = (UnaryExpr) e;
+            Object operand = evaluate(unary.operand, sym, activation);
+            if (unary.operator.equals("-") && operand instanceof Integer) {
+                return -(Integer) operand;
+            } else if (unary.operator.equals("not")
+                       && operand instanceof Boolean) {
+                return !(Boolean) operand;
+            }
+        } else if (e instanceof BinaryExpr) {
+            return evaluateBinary((BinaryExpr) e, sym, activation);
+        } else if (e instanceof IfExpr) {
+            IfExpr ifExpr = (IfExpr) e;
+            Object condition = evaluate(ifExpr.condition, sym, activation);
+            if (condition == UNFOLDABLE) {
+                return UNFOLDABLE;
+            }
+            return evaluate((Boolean) condition ? ifExpr.thenExpr
+                            : ifExpr.elseExpr, sym, activation);
+        } else if (e instanceof CallExpr) {
+            CallExpr call = (CallExpr) e;
+            SymbolInfo info = sym.get(call.function.name);
+            List<Object> args = new ArrayList<>();
+            for (Expr arg : call.args) {
+                Object value = evaluate(arg, sym, activation);
+                if (value == UNFOLDABLE) {
+                    return UNFOLDABLE;
+                }
+                args.add(value);
+            }
+            if (info == lenFunc && args.get(0) instanceof String) {
+                return ((String) args.get(0)).length();
+            }
+            if (!pure.contains(info)) {
+                return UNFOLDABLE;
+            }
+            return invoke((FuncInfo) info, args, activation);
+        }
+        return UNFOLDABLE;
+    }
+
+    /** Return the value of E, where SYM and ACTIVATION are as for
+     *  evaluate. */
+    private Object evaluateBinary(BinaryExpr e, SymbolTable<SymbolInfo> sym,
+                                  Activation activation) {
+        Object left = evaluate(e.left, sym, activation);
+        if (left == UNFOLDABLE) {
+            return UNFOLDABLE;
+        }
+        if (e.operator.equals("and") || e.operator.equals("or")) {
+            if ((Boolean) left == e.operator.equals("or")) {
+                return left;
+            }
+            return evaluate(e.right, sym, activation);
+        }
+        Object right = evaluate(e.right, sym, activation);
+        if (left instanceof Boolean && right instanceof Boolean) {
+            switch (e.operator) {
+            case "==":
+                return left.equals(right);
+            case "!=":
+                return !left.equals(right);
+            default:
+                return UNFOLDABLE;
+            }
+        }
+        if (!(left instanceof Integer) || !(right instanceof Integer)) {
+            return UNFOLDABLE;
+        }
+        int x = (Integer) left, y = (Integer) right;
+        switch (e.operator) {
+        case "+":
+            return x + y;
+        case "-":
+            return x - y;
+        case "*":
+            return x * y;
+        case "//":
+        case "%":
+            /* The generated code truncates and does not check for zero,
+             * which agrees with ChocoPy only for these operands. */
+            if (x < 0 || y <= 0) {
+                return UNFOLDABLE;
+            }
+            return e.operator.equals("//") ? x / y : x % y;
+        case "==":
+            return x == y;
+        case "!=":
+            return x != y;
+        case "<":
+            return x < y;
+        case "<=":
+            return x <= y;
+        case ">":
+            return x > y;
+        case ">=":
+            return x >= y;
+        default:
+            return UNFOLDABLE;
+        }
+    }
+
+    /** Return the result of calling the pure function FUNCINFO with
+     *  arguments ARGS from ACTIVATION (null at the top level), or
+     *  UNFOLDABLE if it cannot be evaluated at compile time. */
+    private Object invoke(FuncInfo funcInfo, List<Object> args,
+                          Activation activation) {
+        steps += 1;
+        depth += 1;
+        if (steps > MAX_STEPS || depth > MAX_DEPTH) {
+            return UNFOLDABLE;
+        }
+        Activation link = null;
+        if (funcInfo.getDepth() > 0) {
+            link = activation;
+            while (link != null
+                   && link.funcInfo != funcInfo.getParentFuncInfo()) {
+                link = link.link;
+            }
+            if (link == null) {
+                return UNFOLDABLE;
+            }
+        }
+        Activation callee = new Activation(funcInfo, link);
+        for (int i = 0; i < args.size(); i++) {
+            callee.values.put(funcInfo.getParams().get(i), args.get(i));
+        }
+        for (StackVarInfo local : funcInfo.getLocals()) {
+            callee.values.put(local.getVarName(),
+                              evaluate(local.getInitialValue(), null, null));
+        }
+        Object result = execute(funcInfo.getStatements(), callee);
+        depth -= 1;
+        return result == null ? NONE : ((Returned) result).value;
+    }
+
+    /** Execute STATEMENTS in ACTIVATION, returning the Returned value if
+     *  one of them returns, UNFOLDED if they cannot be executed at
+     *  compile time, or else null. */
+    private Returned execute(List<Stmt> statements, Activation activation) {
+        SymbolTable<SymbolInfo> sym = activation.funcInfo.getSymbolTable();
+        for (Stmt stmt : statements) {
+            steps += 1;
+            if (steps > MAX_STEPS) {
+                return UNFOLDED;
+            }
+            Returned result = null;
+            if (stmt instanceof ExprStmt) {
+                if (evaluate(((ExprStmt) stmt).expr, sym, activation)
+                    == UNFOLDABLE) {
+                    return UNFOLDED;
+                }
+            } else if (stmt instanceof AssignStmt) {
+                AssignStmt assign = (AssignStmt) stmt;
+                Object value = evaluate(assign.value, sym, activation);
+                if (value == UNFOLDABLE) {
+                    return UNFOLDED;
+                }
+                for (Expr target : assign.targets) {
+                    String name = ((Identifier) target).name;
+                    Map<String, Object> frame =
+                        frameOf((StackVarInfo) sym.get(name), activation);
+                    if (frame == null) {
+                        return UNFOLDED;
+                    }
+                    frame.put(name, value);
+                }
+            } else if (stmt instanceof ReturnStmt) {
+                Expr value = ((ReturnStmt) stmt).value;
+                return new Returned(value == null ? NONE
+                                    : evaluate(value, sym, activation));
+            } else if (stmt instanceof IfStmt) {
+                IfStmt ifStmt = (IfStmt) stmt;
+                Object condition =
+                    evaluate(ifStmt.condition, sym, activation);
+                if (condition == UNFOLDABLE) {
+                    return UNFOLDED;
+                }
+                result = execute((Boolean) condition ? ifStmt.thenBody
+                                 : ifStmt.elseBody, activation);
+            } else if (stmt instanceof WhileStmt) {
+                WhileStmt loop = (WhileStmt) stmt;
+                while (result == null) {
+                    Object condition =
+                        evaluate(loop.condition, sym, activation);
+                    if (condition == UNFOLDABLE) {
+                        return UNFOLDED;
+                    }
+                    if (!(Boolean) condition) {
+                        break;
+                    }
+                    result = execute(loop.body, activation);
+                }
+            } else {
+                return UNFOLDED;
+            }
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /** Return the values of the variables of the call, among ACTIVATION
+     *  and the calls it is nested within, that declares VAR, or null if
+     *  there is none. */
+    private static Map<String, Object> frameOf(StackVarInfo var,
+                                               Activation activation) {
+        for (Activation a = activation; a != null; a = a.link) {
+            if (a.funcInfo == var.getFuncInfo()) {
+                return a.values;
+            }
+        }
+        return null;
+    }
+
+    /** A call being evaluated. */
+    private static class Activation {
+        /** The function called. */
+        final FuncInfo funcInfo;
+        /** The call of the function enclosing it, or null. */
+        final Activation link;
+        /** The values of its parameters and local variables. */
+        final Map<String, Object> values = new HashMap<>();
+
+        Activation(FuncInfo funcInfo, Activation link) {
+            this.funcInfo = funcInfo;
+            this.link = link;
+        }
+    }
+
+    /** The value returned by a return statement. */
+    private static class Returned {
+        /** The value. */
+        final Object value;
+
+        Returned(Object value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package chocopy.pa3;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import chocopy.common.analysis.SymbolTable;
+import chocopy.common.analysis.TreeWalker;
+import chocopy.common.analysis.types.SymbolType;
+import chocopy.common.analysis.types.ValueType;
+import chocopy.common.astnodes.*;
+import chocopy.common.codegen.GlobalVarInfo;
+import chocopy.common.codegen.StackVarInfo;
+import chocopy.common.codegen.SymbolInfo;
+
+/**
+ * A while loop that steps a variable (the counter) by a constant towards
+ * a loop-invariant bound, such as
+ *
+ *     while i < n:
+ *         ...
+ *         i = i + 1
+ *
+ * The condition compares the counter with the bound by `<` or `<=` (and
+ * the counter is increased) or by `>` or `>=` (and it is decreased).  The
+ * bound is an integer literal or a variable.  The last statement of the
+ * body steps the counter, and no other statement of the body assigns to
+ * the counter or the bound.  If the body makes calls, the counter and the
+ * bound must be local variables that no nested function assigns, so that
+ * only the body can change them.  The body must contain no other loops
+ * and at most MAX_BODY statements, so that copying it is worthwhile.
+ *
+ * The iterations of such a loop can be unrolled: as long as the counter
+ * stays on the same side of the bound, offset by the steps of all
+ * iterations but the last, several iterations can run without testing
+ * the condition between them.
+ *
+ * If the counter is increased, and the body indexes a list of integers or
+ * booleans held in a variable by the counter, assigns nothing to that
+ * variable, and neither calls nor allocates, the list is its indexed
+ * list: the address of its element at the counter can be kept in a
+ * pointer stepped along with the counter.
+ */
+class CountedLoop {
+
+    /** The most statements in the body of a loop worth unrolling. */
+    static final int MAX_BODY = 12;
+
+    /** The counter. */
+    final Identifier counter;
+
+    /** The bound: an Identifier or an IntegerLiteral. */
+    final Expr bound;
+
+    /** The comparison of the counter with the bound. */
+    final String operator;
+
+    /** The amount by which the counter moves towards the bound at each
+     *  iteration (positive). */
+    final int step;
+
+    /** The indexed list, or null. */
+    final Identifier indexedList;
+
+    /** A loop comparing COUNTER with BOUND by OPERATOR and stepping
+     *  COUNTER by STEP, whose indexed list is INDEXEDLIST. */
+    private CountedLoop(Identifier counter, Expr bound, String operator,
+                        int step, Identifier indexedList) {
+        this.counter = counter;
+        this.bound = bound;
+        this.operator = operator;
+        this.step = step;
+        this.indexedList = indexedList;
+    }
+
+    /** Return true iff the counter is increased. */
+    boolean isIncreasing() {
+        return operator.startsWith("<");
+    }
+
+    /** Return true iff the condition excludes equality with the bound. */
+    boolean isStrict() {
+        return operator.length() == 1;
+    }
+
+    /** Return the description of LOOP as a counted loop, or null if it is
+     *  not one, where SYM is the symbol table of the scope containing it
+     *  and CLOSURES describes the nested functions of the program. */
+    static CountedLoop match(WhileStmt loop, SymbolTable<SymbolInfo> sym,
+                             ClosureConversion closures) {
+        if (!(loop.condition instanceof BinaryExpr) || loop.body.isEmpty()) {
+            return null;
+        }
+        BinaryExpr condition = (BinaryExpr) loop.condition;
+        String operator = condition.operator;
+        if (!(operator.equals("<") || operator.equals("<=")
+              || operator.equals(">") || operator.equals(">="))
+            || !(condition.left instanceof Identifier)
+            || !isVariable(condition.left, sym)) {
+            return null;
+        }
+        Identifier counter = (Identifier) condition.left;
+        Expr bound = condition.right;
+        if (!(bound instanceof IntegerLiteral)
+            && !(isVariable(bound, sym)
+                 && !((Identifier) bound).name.equals(counter.name))) {
+            return null;
+        }
+
+        Stmt last = loop.body.get(loop.body.size() - 1);
+        int step = stepOf(last, counter.name, operator.startsWith("<"));
+        if (step <= 0) {
+            return null;
+        }
+
+        BodyScan scan = new BodyScan(counter.name, bound);
+        for (Stmt stmt : loop.body) {
+            stmt.dispatch(scan);
+        }
+        if (scan.counterAssignments != 1 || scan.boundAssigned
+            || scan.hasLoop || scan.statements > MAX_BODY) {
+            return null;
+        }
+        if (scan.hasCall
+            && (!isPrivate(counter, sym, closures)
+                || (bound instanceof Identifier
+                    && !isPrivate((Identifier) bound, sym, closures)))) {
+            return null;
+        }
+        Identifier indexedList = scan.indexedList;
+        if (scan.hasCall || scan.allocates || !operator.startsWith("<")
+            || (indexedList != null
+                && scan.assigned.contains(indexedList.name))) {
+            indexedList = null;
+        }
+        return new CountedLoop(counter, bound, operator, step, indexedList);
+    }
+
+    /** Return true iff E is an identifier denoting a variable in SYM. */
+    private static boolean isVariable(Expr e, SymbolTable<SymbolInfo> sym) {
+        if (!(e instanceof Identifier)) {
+            return false;
+        }
+        SymbolInfo info = sym.get(((Identifier) e).name);
+        return info instanceof StackVarInfo || info instanceof GlobalVarInfo;
+    }
+
+    /** Return true iff variable ID can be assigned only by the function
+     *  declaring it, which is the function whose symbol table is SYM. */
+    private static boolean isPrivate(Identifier id,
+                                     SymbolTable<SymbolInfo> sym,
+                                     ClosureConversion closures) {
+        SymbolInfo info = sym.get(id.name);
+        return info instanceof StackVarInfo
+            && ((StackVarInfo) info).getFuncInfo().getSymbolTable() == sym
+            && !closures.isAssignedByNested((StackVarInfo) info);
+    }
+
+    /** Return the step of STMT if it is `COUNTER = COUNTER + STEP` (when
+     *  INCREASING) or `COUNTER = COUNTER - STEP` (otherwise), for a
+     *  literal STEP, or else 0. */
+    private static int stepOf(Stmt stmt, String counter,
+                              boolean increasing) {
+        if (!(stmt instanceof AssignStmt)) {
+            return 0;
+        }
+        AssignStmt assign = (AssignStmt) stmt;
+        if (assign.targets.size() != 1
+            || !(assign.targets.get(0) instanceof Identifier)
+            || !((Identifier) assign.targets.get(0)).name.equals(counter)
+            || !(assign.value instanceof BinaryExpr)) {
+            return 0;
+        }
+        BinaryExpr value = (BinaryExpr) assign.value;
+        if (!value.operator.equals(increasing ? "+" : "-")
+            || !(value.left instanceof Identifier)
+            || !((Identifier) value.left).name.equals(counter)
+            || !(value.right instanceof IntegerLiteral)) {
+            return 0;
+        }
+        return ((IntegerLiteral) value.right).value;
+    }
+
+    /** A walk over the body of a loop, recording what unrolling it
+     *  depends on. */
+    private static class BodyScan extends TreeWalker {
+        /** The name of the counter. */
+        private final String counter;
+        /** The bound. */
+        private final Expr bound;
+        /** The number of statements assigning to the counter. */
+        int counterAssignments;
+        /** True iff a statement assigns to the bound. */
+        boolean boundAssigned;
+        /** The names of the variables assigned. */
+        final Set<String> assigned = new HashSet<>();
+        /** True iff the body contains a call. */
+        boolean hasCall;
+        /** True iff the body allocates an object. */
+        boolean allocates;
+        /** The first list of integers or booleans in a variable indexed
+         *  by the counter, or null. */
+        Identifier indexedList;
+        /** True iff the body contains a loop. */
+        boolean hasLoop;
+        /** The number of statements in the body. */
+        int statements;
+
+        BodyScan(String counter, Expr bound) {
+            this.counter = counter;
+            this.bound = bound;
+        }
+
+        /** Record an assignment to TARGET. */
+        private void assigned(Expr target) {
+            if (target instanceof Identifier) {
+                String name = ((Identifier) target).name;
+                assigned.add(name);
+                if (name.equals(counter)) {
+                    counterAssignments += 1;
+                }
+                if (bound instanceof Identifier
+                    && name.equals(((Identifier) bound).name)) {
+                    boundAssigned = true;
+                }
+            }
+        }
+
+        @Override
+        public Void analyze(AssignStmt node) {
+            statements += 1;
+            for (Expr target : node.targets) {
+                assigned(target);
+                if (target instanceof IndexExpr
+                    && isBoxed(((IndexExpr) target).list, node.value)) {
+                    allocates = true;
+                }
+            }
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(ExprStmt node) {
+            statements += 1;
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(IfStmt node) {
+            statements += 1;
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(ReturnStmt node) {
+            statements += 1;
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(WhileStmt node) {
+            hasLoop = true;
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(ForStmt node) {
+            hasLoop = true;
+            assigned(node.identifier);
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(CallExpr node) {
+            hasCall = true;
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(MethodCallExpr node) {
+            hasCall = true;
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(ListExpr node) {
+            allocates = true;
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(BinaryExpr node) {
+            if (node.operator.equals("+")
+                && !SymbolType.INT_TYPE.equals(node.left.getInferredType())) {
+                allocates = true;
+            }
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(IndexExpr node) {
+            if (indexedList == null && node.list instanceof Identifier
+                && node.index instanceof Identifier
+                && ((Identifier) node.index).name.equals(counter)) {
+                ValueType elementType =
+                    node.list.getInferredType().elementType();
+                if (SymbolType.INT_TYPE.equals(elementType)
+                    || SymbolType.BOOL_TYPE.equals(elementType)) {
+                    indexedList = (Identifier) node.list;
+                }
+            }
+            return super.analyze(node);
+        }
+
+        /** Return true iff storing VALUE into an element of LIST boxes
+         *  it. */
+        private static boolean isBoxed(Expr list, Expr value) {
+            return SymbolType.OBJECT_TYPE.equals(
+                       list.getInferredType().elementType())
+                && (SymbolType.INT_TYPE.equals(value.getInferredType())
+                    || SymbolType.BOOL_TYPE.equals(value.getInferredType()));
+        }
+    }
+}
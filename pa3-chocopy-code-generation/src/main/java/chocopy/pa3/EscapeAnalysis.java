@@ -0,0 +1,256 @@
+package chocopy.pa3;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import chocopy.common.analysis.SymbolTable;
+import chocopy.common.analysis.TreeWalker;
+import chocopy.common.astnodes.*;
+import chocopy.common.codegen.FuncInfo;
+import chocopy.common.codegen.StackVarInfo;
+import chocopy.common.codegen.SymbolInfo;
+
+/**
+ * An interprocedural escape analysis for function parameters.
+ *
+ * A parameter escapes if the object it refers to may outlive the call:
+ * that is, if the parameter (or a local variable it was copied into) is
+ * stored into a global, a nonlocal, an attribute or a list element, is
+ * returned, is placed in a list display, is used as the receiver of a
+ * method call, is captured by a nested function, or is passed to a
+ * parameter that itself escapes.  Arguments passed to non-escaping
+ * parameters can therefore be allocated in the caller's frame.
+ *
+ * The analysis is flow-insensitive.  It starts by assuming that no
+ * parameter escapes and iterates to a fixed point, so that recursive
+ * functions are handled.  Methods and constructors are reached through
+ * dynamic dispatch, and everything passed to them is assumed to escape.
+ */
+class EscapeAnalysis {
+
+    /** The functions analyzed. */
+    private final List<FuncInfo> functions;
+
+    /** The parameters found to escape. */
+    private final Set<StackVarInfo> escaping = new HashSet<>();
+
+    /** Built-in functions whose parameters never escape. */
+    private final Set<FuncInfo> builtins = new HashSet<>();
+
+    /** True iff the last iteration marked a new parameter as escaping. */
+    private boolean changed;
+
+    /** An analysis of FUNCTIONS, of which the functions in BUILTINS are
+     *  implemented in assembly and do not retain their arguments. */
+    EscapeAnalysis(List<FuncInfo> functions, List<FuncInfo> builtins) {
+        this.functions = functions;
+        this.builtins.addAll(builtins);
+        do {
+            changed = false;
+            for (FuncInfo funcInfo : functions) {
+                if (!this.builtins.contains(funcInfo)) {
+                    analyzeFunction(funcInfo);
+                }
+            }
+        } while (changed);
+    }
+
+    /** Return true iff the object passed as the INDEX'th argument to the
+     *  function described by CALLEE may outlive the call. */
+    boolean paramEscapes(FuncInfo callee, int index) {
+        if (builtins.contains(callee)) {
+            return false;
+        }
+        if (!functions.contains(callee) || isMethod(callee)) {
+            return true;
+        }
+        String name = callee.getParams().get(index);
+        return escaping.contains(callee.getSymbolTable().get(name));
+    }
+
+    /** Return true iff FUNCINFO describes a method, which may be invoked
+     *  through a dispatch table. */
+    private boolean isMethod(FuncInfo funcInfo) {
+        return funcInfo.getParentFuncInfo() == null
+            && !funcInfo.getFuncName().equals(funcInfo.getBaseName());
+    }
+
+    /** Mark PARAMS as escaping. */
+    private void escape(Set<StackVarInfo> params) {
+        for (StackVarInfo param : params) {
+            if (escaping.add(param)) {
+                changed = true;
+            }
+        }
+    }
+
+    /** Analyze the body of FUNCINFO, marking escaping parameters. */
+    private void analyzeFunction(FuncInfo funcInfo) {
+        /* For each local variable or parameter of FUNCINFO, the
+         * parameters whose value it may hold. */
+        Map<StackVarInfo, Set<StackVarInfo>> aliases = new HashMap<>();
+        for (String name : funcInfo.getParams()) {
+            StackVarInfo param =
+                (StackVarInfo) funcInfo.getSymbolTable().get(name);
+            Set<StackVarInfo> self = new HashSet<>();
+            self.add(param);
+            aliases.put(param, self);
+        }
+
+        BodyAnalyzer body = new BodyAnalyzer(funcInfo, aliases);
+        do {
+            body.grown = false;
+            for (Stmt stmt : funcInfo.getStatements()) {
+                stmt.dispatch(body);
+            }
+        } while (body.grown);
+
+        for (FuncInfo nested : functions) {
+            if (nested.getParentFuncInfo() == funcInfo) {
+                escape(capturedParams(nested, aliases));
+            }
+        }
+    }
+
+    /** Return the parameters in ALIASES that the nested function NESTED,
+     *  or any function nested within it, may refer to. */
+    private Set<StackVarInfo> capturedParams(FuncInfo nested,
+                                             Map<StackVarInfo,
+                                                 Set<StackVarInfo>> aliases) {
+        Set<StackVarInfo> result = new HashSet<>();
+        for (FuncInfo funcInfo : functions) {
+            FuncInfo outer = funcInfo;
+            while (outer != null && outer != nested) {
+                outer = outer.getParentFuncInfo();
+            }
+            if (outer == null) {
+                continue;
+            }
+            SymbolTable<SymbolInfo> sym = funcInfo.getSymbolTable();
+            for (Stmt stmt : funcInfo.getStatements()) {
+                stmt.dispatch(new TreeWalker() {
+                    @Override
+                    public Void analyze(Identifier node) {
+                        Set<StackVarInfo> held =
+                            aliases.get(sym.get(node.name));
+                        if (held != null) {
+                            result.addAll(held);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+        return result;
+    }
+
+    /** Analyzer for the statements of one function, which accumulates
+     *  aliases and marks escaping parameters. */
+    private class BodyAnalyzer extends TreeWalker {
+
+        /** The symbol table of the function analyzed. */
+        private final SymbolTable<SymbolInfo> sym;
+
+        /** The parameters each local may hold (see analyzeFunction). */
+        private final Map<StackVarInfo, Set<StackVarInfo>> aliases;
+
+        /** True iff the last walk added to ALIASES. */
+        private boolean grown;
+
+        /** An analyzer for FUNCINFO accumulating into ALIASES. */
+        BodyAnalyzer(FuncInfo funcInfo,
+                     Map<StackVarInfo, Set<StackVarInfo>> aliases) {
+            this.sym = funcInfo.getSymbolTable();
+            this.aliases = aliases;
+        }
+
+        /** Return the parameters whose objects EXPR may evaluate to. */
+        private Set<StackVarInfo> valueOf(Expr expr) {
+            if (expr instanceof Identifier) {
+                Set<StackVarInfo> held =
+                    aliases.get(sym.get(((Identifier) expr).name));
+                return held == null ? Collections.emptySet() : held;
+            } else if (expr instanceof IfExpr) {
+                Set<StackVarInfo> result =
+                    new HashSet<>(valueOf(((IfExpr) expr).thenExpr));
+                result.addAll(valueOf(((IfExpr) expr).elseExpr));
+                return result;
+            }
+            return Collections.emptySet();
+        }
+
+        /** Return the local variable of the analyzed function that TARGET
+         *  denotes, or null if TARGET is anything else. */
+        private StackVarInfo localTarget(Expr target) {
+            if (!(target instanceof Identifier)) {
+                return null;
+            }
+            String name = ((Identifier) target).name;
+            if (!sym.declares(name)) {
+                return null;
+            }
+            SymbolInfo info = sym.get(name);
+            return info instanceof StackVarInfo ? (StackVarInfo) info : null;
+        }
+
+        @Override
+        public Void analyze(AssignStmt node) {
+            Set<StackVarInfo> value = valueOf(node.value);
+            for (Expr target : node.targets) {
+                StackVarInfo local = localTarget(target);
+                if (local == null) {
+                    escape(value);
+                } else if (!value.isEmpty()) {
+                    Set<StackVarInfo> held =
+                        aliases.computeIfAbsent(local, k -> new HashSet<>());
+                    if (held.addAll(value)) {
+                        grown = true;
+                    }
+                }
+            }
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(ReturnStmt node) {
+            if (node.value != null) {
+                escape(valueOf(node.value));
+            }
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(ListExpr node) {
+            for (Expr element : node.elements) {
+                escape(valueOf(element));
+            }
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(CallExpr node) {
+            SymbolInfo callee = sym.get(node.function.name);
+            for (int i = 0; i < node.args.size(); i++) {
+                Expr arg = node.args.get(i);
+                if (!(callee instanceof FuncInfo)
+                    || paramEscapes((FuncInfo) callee, i)) {
+                    escape(valueOf(arg));
+                }
+            }
+            return super.analyze(node);
+        }
+
+        @Override
+        public Void analyze(MethodCallExpr node) {
+            escape(valueOf(node.method.object));
+            for (Expr arg : node.args) {
+                escape(valueOf(arg));
+            }
+            return super.analyze(node);
+        }
+    }
+}
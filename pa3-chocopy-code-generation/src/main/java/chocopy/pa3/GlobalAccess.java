@@ -0,0 +1,157 @@
+package chocopy.pa3;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import chocopy.common.analysis.SymbolTable;
+import chocopy.common.analysis.TreeWalker;
+import chocopy.common.astnodes.*;
+import chocopy.common.codegen.FuncInfo;
+import chocopy.common.codegen.GlobalVarInfo;
+import chocopy.common.codegen.SymbolInfo;
+
+/**
+ * The global variables each function may read or assign, either itself
+ * or through the functions it calls.
+ *
+ * A function that calls a method or a constructor, or calls a function
+ * that does, may reach code through dynamic dispatch, and is assumed to
+ * read and assign every global variable.  The built-in functions touch
+ * no global variables of the program.
+ */
+class GlobalAccess {
+
+    /** The global variables each function reads. */
+    private final Map<FuncInfo, Set<GlobalVarInfo>> reads = new HashMap<>();
+
+    /** The global variables each function assigns to. */
+    private final Map<FuncInfo, Set<GlobalVarInfo>> writes = new HashMap<>();
+
+    /** The functions each function calls. */
+    private final Map<FuncInfo, Set<FuncInfo>> calls = new HashMap<>();
+
+    /** The functions assumed to read and assign every global variable. */
+    private final Set<FuncInfo> opaque = new HashSet<>();
+
+    /** Built-in functions, which touch no global variables. */
+    private final Set<FuncInfo> builtins = new HashSet<>();
+
+    /** An analysis of FUNCTIONS, of which the functions in BUILTINS are
+     *  implemented in assembly. */
+    GlobalAccess(List<FuncInfo> functions, List<FuncInfo> builtins) {
+        this.builtins.addAll(builtins);
+        for (FuncInfo funcInfo : functions) {
+            if (!this.builtins.contains(funcInfo)) {
+                collectUses(funcInfo);
+            }
+        }
+
+        boolean changed;
+        do {
+            changed = false;
+            for (FuncInfo funcInfo : calls.keySet()) {
+                for (FuncInfo callee : calls.get(funcInfo)) {
+                    if (this.builtins.contains(callee)) {
+                        continue;
+                    }
+                    if (!calls.containsKey(callee)
+                        || opaque.contains(callee)) {
+                        changed |= opaque.add(funcInfo);
+                        continue;
+                    }
+                    changed |= reads.get(funcInfo).addAll(reads.get(callee));
+                    changed |=
+                        writes.get(funcInfo).addAll(writes.get(callee));
+                }
+            }
+        } while (changed);
+    }
+
+    /** Return true iff a call to the function described by CALLEE may
+     *  read VAR. */
+    boolean mayRead(FuncInfo callee, GlobalVarInfo var) {
+        if (builtins.contains(callee)) {
+            return false;
+        }
+        return !reads.containsKey(callee) || opaque.contains(callee)
+            || reads.get(callee).contains(var);
+    }
+
+    /** Return true iff a call to the function described by CALLEE may
+     *  assign to VAR. */
+    boolean mayWrite(FuncInfo callee, GlobalVarInfo var) {
+        if (builtins.contains(callee)) {
+            return false;
+        }
+        return !writes.containsKey(callee) || opaque.contains(callee)
+            || writes.get(callee).contains(var);
+    }
+
+    /** Record the global variables read and assigned and the functions
+     *  called by the statements of FUNCINFO. */
+    private void collectUses(FuncInfo funcInfo) {
+        SymbolTable<SymbolInfo> sym = funcInfo.getSymbolTable();
+        Set<GlobalVarInfo> read = new HashSet<>(), written = new HashSet<>();
+        Set<FuncInfo> called = new HashSet<>();
+        reads.put(funcInfo, read);
+        writes.put(funcInfo, written);
+        calls.put(funcInfo, called);
+        TreeWalker walker = new TreeWalker() {
+            @Override
+            public Void analyze(Identifier node) {
+                SymbolInfo info = sym.get(node.name);
+                if (info instanceof GlobalVarInfo) {
+                    read.add((GlobalVarInfo) info);
+                }
+                return null;
+            }
+
+            @Override
+            public Void analyze(AssignStmt node) {
+                for (Expr target : node.targets) {
+                    addWrite(target);
+                }
+                return super.analyze(node);
+            }
+
+            @Override
+            public Void analyze(ForStmt node) {
+                addWrite(node.identifier);
+                return super.analyze(node);
+            }
+
+            @Override
+            public Void analyze(CallExpr node) {
+                SymbolInfo info = sym.get(node.function.name);
+                if (info instanceof FuncInfo) {
+                    called.add((FuncInfo) info);
+                } else {
+                    opaque.add(funcInfo);
+                }
+                return super.analyze(node);
+            }
+
+            @Override
+            public Void analyze(MethodCallExpr node) {
+                opaque.add(funcInfo);
+                return super.analyze(node);
+            }
+
+            /** Record TARGET as assigned, if it is a global variable. */
+            private void addWrite(Expr target) {
+                if (target instanceof Identifier) {
+                    SymbolInfo info = sym.get(((Identifier) target).name);
+                    if (info instanceof GlobalVarInfo) {
+                        written.add((GlobalVarInfo) info);
+                    }
+                }
+            }
+        };
+        for (Stmt stmt : funcInfo.getStatements()) {
+            stmt.dispatch(walker);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package chocopy.pa3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import chocopy.common.analysis.types.SymbolType;
+import chocopy.common.astnodes.*;
+
+/**
+ * A chain of if and elif tests comparing the same int variable (the
+ * subject) with distinct integer literals, such as
+ *
+ *     if op == 0:
+ *         ...
+ *     elif op == 1:
+ *         ...
+ *     else:
+ *         ...
+ *
+ * Since reading a variable has no effect, the subject can be read once
+ * and the arm to run chosen by a jump table or a search, rather than by
+ * testing each arm in turn.  The chain ends at the first test that does
+ * not fit, which becomes part of its else body.
+ */
+class IfChain {
+
+    /** The subject. */
+    final Identifier subject;
+
+    /** The literal compared with the subject in each arm, in order. */
+    final List<Integer> values = new ArrayList<>();
+
+    /** The body of each arm, in order. */
+    final List<List<Stmt>> bodies = new ArrayList<>();
+
+    /** The statements run when no arm matches. */
+    List<Stmt> elseBody;
+
+    /** A chain comparing SUBJECT. */
+    private IfChain(Identifier subject) {
+        this.subject = subject;
+    }
+
+    /** Return the number of arms. */
+    int size() {
+        return values.size();
+    }
+
+    /** Return the chain starting at STMT, or null if it is not one or
+     *  has fewer than MINARMS arms. */
+    static IfChain match(IfStmt stmt, int minArms) {
+        Identifier subject = subjectOf(stmt.condition);
+        if (subject == null) {
+            return null;
+        }
+        IfChain chain = new IfChain(subject);
+        Set<Integer> seen = new HashSet<>();
+        IfStmt arm = stmt;
+        while (true) {
+            Identifier armSubject = subjectOf(arm.condition);
+            if (armSubject == null || !armSubject.name.equals(subject.name)
+                || !seen.add(valueOf(arm.condition))) {
+                chain.elseBody = new ArrayList<>();
+                chain.elseBody.add(arm);
+                break;
+            }
+            chain.values.add(valueOf(arm.condition));
+            chain.bodies.add(arm.thenBody);
+            if (arm.elseBody.size() != 1
+                || !(arm.elseBody.get(0) instanceof IfStmt)) {
+                chain.elseBody = arm.elseBody;
+                break;
+            }
+            arm = (IfStmt) arm.elseBody.get(0);
+        }
+        return chain.size() >= minArms ? chain : null;
+    }
+
+    /** Return the int variable compared for equality with an integer
+     *  literal by CONDITION, or null if it is not such a comparison. */
+    private static Identifier subjectOf(Expr condition) {
+        if (!(condition instanceof BinaryExpr)
+            || !((BinaryExpr) condition).operator.equals("==")) {
+            return null;
+        }
+        BinaryExpr test = (BinaryExpr) condition;
+        Expr other;
+        if (test.left instanceof IntegerLiteral) {
+            other = test.right;
+        } else if (test.right instanceof IntegerLiteral) {
+            other = test.left;
+        } else {
+            return null;
+        }
+        if (!(other instanceof Identifier)
+            || !SymbolType.INT_TYPE.equals(other.getInferredType())) {
+            return null;
+        }
+        return (Identifier) other;
+    }
+
+    /** Return the literal in CONDITION, a comparison for which subjectOf
+     *  returns non-null. */
+    private static Integer valueOf(Expr condition) {
+        BinaryExpr test = (BinaryExpr) condition;
+        Expr literal =
+            test.left instanceof IntegerLiteral ? test.left : test.right;
+        return ((IntegerLiteral) literal).value;
+    }
+}
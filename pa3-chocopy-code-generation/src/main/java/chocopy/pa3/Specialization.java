@@ -0,0 +1,238 @@
+package chocopy.pa3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+import chocopy.common.analysis.SymbolTable;
+import chocopy.common.analysis.TreeWalker;
+import chocopy.common.analysis.types.SymbolType;
+import chocopy.common.analysis.types.ValueType;
+import chocopy.common.astnodes.*;
+import chocopy.common.codegen.FuncInfo;
+import chocopy.common.codegen.StackVarInfo;
+import chocopy.common.codegen.SymbolInfo;
+
+/**
+ * Specialization of functions with object parameters for the types of
+ * the arguments passed to them.
+ *
+ * A call passing an int or a bool to an object parameter boxes it.  If
+ * the function does nothing with such a parameter but pass it on to
+ * other calls, and does so at most MAX_USES times (a use within a loop
+ * counting LOOP_WEIGHT times), a clone of the function taking it as an
+ * int or a bool receives it unboxed, and boxes it only when it passes it
+ * on, if it does at all.  Only global functions containing no nested
+ * functions are cloned, and a clone is made for each combination of
+ * argument types met, up to MAX_CLONES in all, in the order in which the
+ * calls occur in the program.
+ *
+ * The clones share the statements of the functions they copy.  Within
+ * a clone, the type of a specialized parameter is the declared type of
+ * its descriptor, not the inferred type of the identifiers denoting it.
+ */
+class Specialization {
+
+    /** The most clones made. */
+    static final int MAX_CLONES = 8;
+
+    /** The most weighted uses of a parameter for which it is worth
+     *  specializing. */
+    private static final int MAX_USES = 2;
+
+    /** The factor by which a use within a loop is weighed. */
+    private static final int LOOP_WEIGHT = 8;
+
+    /** The clone called by each specialized call. */
+    private final Map<CallExpr, FuncInfo> clonedCallees =
+        new IdentityHashMap<>();
+
+    /** The clones of each function, keyed by their parameter types. */
+    private final Map<FuncInfo, Map<List<ValueType>, FuncInfo>> clones =
+        new HashMap<>();
+
+    /** The parameters of each function worth specializing, by index. */
+    private final Map<FuncInfo, Set<Integer>> specializable = new HashMap<>();
+
+    /** The number of clones made. */
+    private int count;
+
+    /** Creates the clone of a function for given parameter types. */
+    private final BiFunction<FuncInfo, List<ValueType>, FuncInfo> cloner;
+
+    /** A specialization of the calls in FUNCTIONS and in the top-level
+     *  statements STATEMENTS, whose symbol table is GLOBALS, where the
+     *  functions in BUILTINS are implemented in assembly.  CLONER returns
+     *  a new clone of a function with the given parameter types. */
+    Specialization(List<FuncInfo> functions, List<FuncInfo> builtins,
+                   List<Stmt> statements, SymbolTable<SymbolInfo> globals,
+                   BiFunction<FuncInfo, List<ValueType>, FuncInfo> cloner) {
+        this.cloner = cloner;
+        List<FuncInfo> originals = new ArrayList<>(functions);
+        Set<FuncInfo> enclosing = new HashSet<>();
+        for (FuncInfo funcInfo : originals) {
+            if (funcInfo.getParentFuncInfo() != null) {
+                enclosing.add(funcInfo.getParentFuncInfo());
+            }
+        }
+        for (FuncInfo funcInfo : originals) {
+            if (funcInfo.getDepth() == 0 && !builtins.contains(funcInfo)
+                && !enclosing.contains(funcInfo)
+                && funcInfo.getFuncName().equals(funcInfo.getBaseName())) {
+                specializable.put(funcInfo, findParams(funcInfo));
+            }
+        }
+
+        specializeCalls(statements, globals);
+        for (FuncInfo funcInfo : originals) {
+            if (!builtins.contains(funcInfo)) {
+                specializeCalls(funcInfo.getStatements(),
+                                funcInfo.getSymbolTable());
+            }
+        }
+    }
+
+    /** Return the clone called by CALL, or null if it calls the function
+     *  it names. */
+    FuncInfo getClonedCallee(CallExpr call) {
+        return clonedCallees.get(call);
+    }
+
+    /** Return the indices of the object parameters of FUNCINFO worth
+     *  specializing. */
+    private Set<Integer> findParams(FuncInfo funcInfo) {
+        SymbolTable<SymbolInfo> sym = funcInfo.getSymbolTable();
+        Map<StackVarInfo, Integer> uses = new HashMap<>();
+        Set<StackVarInfo> passed = new HashSet<>();
+        Set<StackVarInfo> other = new HashSet<>();
+        TreeWalker walker = new TreeWalker() {
+            /** The number of loops enclosing the node visited. */
+            private int loops;
+
+            @Override
+            public Void analyze(Identifier node) {
+                SymbolInfo info = sym.get(node.name);
+                if (info instanceof StackVarInfo) {
+                    StackVarInfo var = (StackVarInfo) info;
+                    int weight = 1;
+                    for (int i = 0; i < loops; i++) {
+                        weight *= LOOP_WEIGHT;
+                    }
+                    uses.merge(var, weight, Integer::sum);
+                    if (!passed.remove(var)) {
+                        other.add(var);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public Void analyze(CallExpr node) {
+                for (Expr arg : node.args) {
+                    if (arg instanceof Identifier
+                        && sym.get(((Identifier) arg).name)
+                           instanceof StackVarInfo) {
+                        /* Marks the visit of ARG below as a use as an
+                         * argument. */
+                        passed.add((StackVarInfo)
+                                   sym.get(((Identifier) arg).name));
+                    }
+                    arg.dispatch(this);
+                }
+                return null;
+            }
+
+            @Override
+            public Void analyze(WhileStmt node) {
+                loops += 1;
+                super.analyze(node);
+                loops -= 1;
+                return null;
+            }
+
+            @Override
+            public Void analyze(ForStmt node) {
+                loops += 1;
+                super.analyze(node);
+                loops -= 1;
+                return null;
+            }
+        };
+        for (Stmt stmt : funcInfo.getStatements()) {
+            stmt.dispatch(walker);
+        }
+
+        Set<Integer> result = new HashSet<>();
+        List<String> params = funcInfo.getParams();
+        for (int i = 0; i < params.size(); i++) {
+            StackVarInfo param = (StackVarInfo) sym.get(params.get(i));
+            if (SymbolType.OBJECT_TYPE.equals(param.getVarType())
+                && !other.contains(param)
+                && uses.getOrDefault(param, 0) <= MAX_USES) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    /** Direct the calls in STATEMENTS, whose symbol table is SYM, to
+     *  clones of their callees where worthwhile. */
+    private void specializeCalls(List<Stmt> statements,
+                                 SymbolTable<SymbolInfo> sym) {
+        TreeWalker walker = new TreeWalker() {
+            @Override
+            public Void analyze(CallExpr node) {
+                SymbolInfo info = sym.get(node.function.name);
+                if (info instanceof FuncInfo
+                    && specializable.containsKey(info)) {
+                    specialize(node, (FuncInfo) info);
+                }
+                return super.analyze(node);
+            }
+        };
+        for (Stmt stmt : statements) {
+            stmt.dispatch(walker);
+        }
+    }
+
+    /** Direct CALL of CALLEE to the clone of CALLEE for the types of its
+     *  arguments, if any parameter is specialized, making the clone if
+     *  needed and the budget allows. */
+    private void specialize(CallExpr call, FuncInfo callee) {
+        List<ValueType> types = new ArrayList<>();
+        boolean specialized = false;
+        for (int i = 0; i < call.args.size(); i++) {
+            StackVarInfo param = (StackVarInfo)
+                callee.getSymbolTable().get(callee.getParams().get(i));
+            ValueType type = param.getVarType();
+            SymbolType argType = call.args.get(i).getInferredType();
+            if (specializable.get(callee).contains(i)
+                && (SymbolType.INT_TYPE.equals(argType)
+                    || SymbolType.BOOL_TYPE.equals(argType))) {
+                type = (ValueType) argType;
+                specialized = true;
+            }
+            types.add(type);
+        }
+        if (!specialized) {
+            return;
+        }
+        Map<List<ValueType>, FuncInfo> known =
+            clones.computeIfAbsent(callee, k -> new HashMap<>());
+        FuncInfo clone = known.get(types);
+        if (clone == null) {
+            if (count == MAX_CLONES) {
+                return;
+            }
+            count += 1;
+            clone = cloner.apply(callee, types);
+            known.put(types, clone);
+        }
+        clonedCallees.put(call, clone);
+    }
+}
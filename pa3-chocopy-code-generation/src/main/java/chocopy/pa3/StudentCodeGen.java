@@ -1,27 +1,81 @@
 package chocopy.pa3;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
 import chocopy.common.astnodes.Program;
 import chocopy.common.codegen.CodeGenBase;
+import chocopy.common.codegen.InstructionScheduler;
+import chocopy.common.codegen.LatencyTable;
+import chocopy.common.codegen.Profile;
 import chocopy.common.codegen.RiscVBackend;
+import chocopy.common.codegen.RiscVEncoder;
 
-/** Interface to code generator. */
+/** Interface to code generator.
+ *
+ *  Options not known to the driver are taken from system properties:
+ *    chocopy.latencies   instruction latencies by which to schedule
+ *                        code, as in "load=3,mul=3,div=20" (see
+ *                        LatencyTable), "default" for the default
+ *                        latencies, or "none" (the default) to leave
+ *                        code unscheduled.
+ *    chocopy.layout      "hotcold" to move cold paths last and order
+ *                        routines by call affinity (see CodeLayout), or
+ *                        "none" (the default) to leave them in the
+ *                        order emitted.
+ *    chocopy.profile     path of a profile of a previous run, used to
+ *                        guide branches and, with chocopy.layout, the
+ *                        layout (see Profile).
+ *    chocopy.instrument  "profile" to have programs count their calls
+ *                        and the outcomes of their conditions, writing
+ *                        them after their output as a profile that
+ *                        chocopy.profile reads, or "none" (the default).
+ *    chocopy.optimize    "size" to minimize code size (the equivalent of
+ *                        -Os), or "speed" (the default).
+ *    chocopy.unroll      the factor by which counted loops are unrolled
+ *                        (default 1, which disables unrolling).
+ *    chocopy.heap        the initial size of the heap in bytes, a
+ *                        multiple of 8192 (default 1MB).
+ *    chocopy.maxheap     the size in bytes to which programs may grow
+ *                        the heap before running out of memory
+ *                        (default and limit 1GB).
+ *    chocopy.intcache    the range of ints whose boxes are preallocated
+ *                        and shared, as in "-128..1023", or "none" (the
+ *                        default).  Two equal ints in the range are then
+ *                        `is` each other even when boxed separately,
+ *                        which they otherwise are not.
+ *    chocopy.threads     the most function bodies emitted at once
+ *                        (default 1, which emits them one at a time
+ *                        on the calling thread).
+ *    chocopy.elf         path of a file to which to write the program,
+ *                        also encoded as a static RV32IM ELF executable
+ *                        (see RiscVEncoder).
+ *    chocopy.image       path of a file to which to write the program,
+ *                        also encoded as a flat image to be loaded at
+ *                        RiscVEncoder.TEXT_BASE.
+ *    chocopy.style       "lean" to omit comments, blank lines and
+ *                        padding from the assembly code, replacing
+ *                        @-symbols by their values, or "annotated" (the
+ *                        default).
+ *    chocopy.output      path of a file to which to write the assembly
+ *                        code, which is also returned.
+ */
 public class StudentCodeGen {
 
     /**
      * Perform code generation from PROGRAM, assumed to be well-typed,
-     * to RISC-V, returning the assembly code.  DEBUG iff --debug was on the
-     * command line.
+     * to RISC-V, returning the assembly code.  DEBUG iff --debug was on
+     * the command line.
      */
     public static String process(Program program, boolean debug) {
-        /* Emit code into a ByteOutputStream, and convert to a string.
-         * If you need instructions not provided by RiscVBackend, simply
-         * use an extension of it. */
         try {
             RiscVBackend backend = new RiscVBackend();
-            CodeGenBase cgen = new CodeGenImpl(backend);
-            cgen.generate(program);
-
-            return backend.toString();
+            generate(program, backend);
+            String asm = backend.toString();
+            writeOutputs(asm);
+            return asm;
         } catch (IllegalStateException | IllegalArgumentException e) {
             System.err.println("Error performing code generation. "
                                + "Re-run with --debug to see stack trace.");
@@ -31,4 +85,115 @@ public class StudentCodeGen {
             return null;
         }
     }
+
+    /** Emit code for PROGRAM using BACKEND, with the options given as
+     *  system properties. */
+    private static void generate(Program program, RiscVBackend backend) {
+        /* If you need instructions not provided by RiscVBackend, simply
+         * use an extension of it. */
+        String style = System.getProperty("chocopy.style", "annotated");
+        if (!style.equals("lean") && !style.equals("annotated")) {
+            throw new IllegalArgumentException(
+                "chocopy.style must be lean or annotated: " + style);
+        }
+        backend.setLean(style.equals("lean"));
+        CodeGenBase cgen = new CodeGenImpl(backend);
+        configure(cgen);
+        cgen.generate(program);
+    }
+
+    /** Apply to CGEN the options given as system properties. */
+    private static void configure(CodeGenBase cgen) {
+        String latencies = System.getProperty("chocopy.latencies", "none");
+        if (latencies.equals("default")) {
+            cgen.setScheduler(new InstructionScheduler(new LatencyTable()));
+        } else if (!latencies.equals("none")) {
+            cgen.setScheduler(
+                new InstructionScheduler(LatencyTable.parse(latencies)));
+        }
+        String layout = System.getProperty("chocopy.layout", "none");
+        if (!layout.equals("hotcold") && !layout.equals("none")) {
+            throw new IllegalArgumentException(
+                "chocopy.layout must be hotcold or none: " + layout);
+        }
+        cgen.setLayout(layout.equals("hotcold"));
+        String profile = System.getProperty("chocopy.profile");
+        if (profile != null) {
+            cgen.setProfile(Profile.read(profile));
+        }
+        String instrument = System.getProperty("chocopy.instrument", "none");
+        if (!instrument.equals("profile") && !instrument.equals("none")) {
+            throw new IllegalArgumentException(
+                "chocopy.instrument must be profile or none: " + instrument);
+        }
+        cgen.setInstrument(instrument.equals("profile"));
+        String optimize = System.getProperty("chocopy.optimize", "speed");
+        if (!optimize.equals("size") && !optimize.equals("speed")) {
+            throw new IllegalArgumentException(
+                "chocopy.optimize must be size or speed: " + optimize);
+        }
+        cgen.setOptimizeSize(optimize.equals("size"));
+        String unroll = System.getProperty("chocopy.unroll");
+        if (unroll != null) {
+            cgen.setUnrollFactor(Integer.parseInt(unroll));
+        }
+        String heap = System.getProperty("chocopy.heap");
+        String maxHeap = System.getProperty("chocopy.maxheap");
+        if (heap != null || maxHeap != null) {
+            cgen.setHeapSize(
+                heap == null ? CodeGenBase.DEFAULT_HEAP_SIZE_BYTES
+                : Integer.parseInt(heap),
+                maxHeap == null ? CodeGenBase.DEFAULT_MAX_HEAP_SIZE_BYTES
+                : Integer.parseInt(maxHeap));
+        }
+        String intCache = System.getProperty("chocopy.intcache");
+        if ("none".equals(intCache)) {
+            cgen.setIntCache(0, -1);
+        } else if (intCache != null) {
+            int dots = intCache.indexOf("..", 1);
+            if (dots < 0) {
+                throw new IllegalArgumentException(
+                    "chocopy.intcache must be LOW..HIGH or none: "
+                    + intCache);
+            }
+            cgen.setIntCache(Integer.parseInt(intCache.substring(0, dots)),
+                             Integer.parseInt(intCache.substring(dots + 2)));
+        }
+        String threads = System.getProperty("chocopy.threads");
+        if (threads != null) {
+            cgen.setThreads(Integer.parseInt(threads));
+        }
+    }
+
+    /** Write ASM to the file named by the chocopy.output property, and
+     *  ASM encoded as machine code to the files named by the chocopy.elf
+     *  and chocopy.image properties, if set. */
+    private static void writeOutputs(String asm) {
+        String output = System.getProperty("chocopy.output");
+        if (output != null) {
+            write(output, asm.getBytes(StandardCharsets.UTF_8));
+        }
+        String elf = System.getProperty("chocopy.elf");
+        String image = System.getProperty("chocopy.image");
+        if (elf == null && image == null) {
+            return;
+        }
+        RiscVEncoder encoder = new RiscVEncoder(asm);
+        if (elf != null) {
+            write(elf, encoder.toElf());
+        }
+        if (image != null) {
+            write(image, encoder.toImage(RiscVEncoder.TEXT_BASE));
+        }
+    }
+
+    /** Write CONTENTS to the file named PATH. */
+    private static void write(String path, byte[] contents) {
+        try {
+            Files.write(Paths.get(path), contents);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot write " + path
+                                               + ": " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,11 @@
+def greet(name:str, times:int) -> int:
+    i:int = 0
+    while i < times:
+        print(name)
+        i = i + 1
+    return i
+
+xs:[int] = None
+xs = [10, 20, 30]
+print(greet("binary", 2) + xs[1])
+print(not True)
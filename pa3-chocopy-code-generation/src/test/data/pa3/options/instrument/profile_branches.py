@@ -0,0 +1,12 @@
+def classify(n:int) -> int:
+    if n % 7 == 0:
+        return 1
+    return 0
+
+i:int = 0
+sevens:int = 0
+while i < 50:
+    if classify(i) == 1:
+        sevens = sevens + 1
+    i = i + 1
+print(sevens)
@@ -0,0 +1,8 @@
+a:[object] = None
+b:[object] = None
+a = [1, True, 1, 5000, 5000]
+b = [1] + [False]
+print(a[0] is a[2])
+print(a[3] is a[4])
+print(a[0] is b[0])
+print(a[1] is a[1])
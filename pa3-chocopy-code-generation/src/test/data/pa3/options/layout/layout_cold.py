@@ -0,0 +1,19 @@
+def check(n:int, limit:int) -> int:
+    if n > limit:
+        print("over the limit")
+        return limit
+    return n
+
+def sum3(n:int) -> int:
+    s:int = 0
+    s = check(n, 10)
+    s = check(n + 1, 10) + s
+    return check(n + 2, 10) + s
+
+k:int = 0
+t:int = 0
+while k < 10:
+    t = sum3(k) + t
+    k = k + 1
+print(t)
+print(None)
@@ -0,0 +1,13 @@
+def label(n:int) -> str:
+    if n > 0:
+        return "positive"
+    elif n < 0:
+        return "negative"
+    return "zero"
+
+xs:[int] = None
+xs = [-3, 0, 8]
+print(label(xs[0]))
+print(label(xs[1]))
+print(label(xs[2]))
+print(len(label(1)))
@@ -0,0 +1,13 @@
+def total(xs:[int]) -> int:
+    i:int = 0
+    s:int = 0
+    while i < len(xs):
+        s = s + xs[i]
+        i = i + 1
+    return s
+
+ys:[int] = None
+ys = [4, 8, 15, 16, 23, 42]
+print(total(ys))
+print(ys[5] // ys[0])
+print("written")
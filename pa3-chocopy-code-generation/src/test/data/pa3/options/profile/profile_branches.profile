@@ -0,0 +1,6 @@
+8
+chocopy-profile 1
+branch <top> 8:1 50 1
+branch <top> 9:5 8 42
+branch classify 2:5 8 42
+call classify 50
@@ -0,0 +1,35 @@
+def poly(x:int) -> int:
+    y:int = 0
+    z:int = 0
+    y = x * x * 3
+    z = x // 2
+    y = y + z
+    z = x % 5
+    return y - z
+
+def mix(a:int, b:int, c:int) -> int:
+    p:int = 0
+    q:int = 0
+    r:int = 0
+    p = a * b
+    q = c + 1
+    r = b * c
+    p = p // q
+    q = a + 1
+    r = r % q
+    p = p + r
+    r = a * c
+    return p - r
+
+i:int = 1
+s:int = 0
+t:int = 0
+while i < 10:
+    t = poly(i) * i
+    s = s + t
+    t = mix(i, s % 7, i + 2)
+    s = s - t
+    i = i + 1
+print(s)
+print(poly(s % 1000))
+print(mix(s, 3, 4))
@@ -0,0 +1,21 @@
+def f(a:int, b:int) -> int:
+    x:int = 0
+    x = b * 3
+    return a * 2 + x
+
+def g(a:int, b:int) -> int:
+    x:int = 0
+    x = b * 3
+    return a * 2 + x + 1
+
+def h(a:int, b:int, c:int) -> int:
+    x:int = 0
+    y:int = 0
+    x = f(a, b) * 2
+    y = g(b, c) * 3
+    return x + y
+
+print(f(1, 2))
+print(g(3, 4))
+print(h(5, 6, 7))
+print(h(f(1, 1), g(1, 1), 0))
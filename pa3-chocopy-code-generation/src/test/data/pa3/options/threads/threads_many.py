@@ -0,0 +1,27 @@
+def a(n:int) -> int:
+    return n + 1
+
+def b(n:int) -> int:
+    return a(n) * 2
+
+def c(n:int) -> int:
+    x:int = 0
+    x = a(n)
+    return b(n) - x
+
+def d(n:int) -> int:
+    def e(m:int) -> int:
+        return m + n
+    return e(c(n))
+
+def f(s:str) -> int:
+    x:int = 0
+    x = len(s)
+    return d(x) + x
+
+x:int = 3
+print(a(x))
+print(b(x))
+print(c(x))
+print(d(x))
+print(f("four"))
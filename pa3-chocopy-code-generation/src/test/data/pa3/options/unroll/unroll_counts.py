@@ -0,0 +1,13 @@
+def run(n:int) -> int:
+    i:int = 0
+    s:int = 0
+    while i < n:
+        s = i * i + s
+        i = i + 1
+    print(i)
+    return s
+
+k:int = 0
+while k < 8:
+    print(run(k))
+    k = k + 1
@@ -0,0 +1,14 @@
+def f(a:int, b:int, c:int, d:int, e:int, g:int, h:int, i:int, j:int, k:int) -> int:
+    x:int = 0
+    x = k * 2
+    return a - b + c - d + e - g + h - i + j - x
+
+def pick(x:bool, s:str, n:int) -> str:
+    if x:
+        return s
+    return "no"
+
+print(f(1, 2, 3, 4, 5, 6, 7, 8, 9, 10))
+print(f(f(1, 1, 1, 1, 1, 1, 1, 1, 1, 1), 2, 3, 4, 5, 6, 7, 8, 9, 10))
+print(pick(True, "yes", 3))
+print(pick(False, "yes", 3))
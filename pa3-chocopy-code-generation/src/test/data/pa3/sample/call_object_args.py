@@ -0,0 +1,11 @@
+def show(x:object, y:object) -> object:
+    print(x)
+    print(y)
+    return y
+
+def add(a:int, b:int) -> int:
+    return a + b
+
+show(1, True)
+show(add(2, 3), False)
+print(show("str", 7))
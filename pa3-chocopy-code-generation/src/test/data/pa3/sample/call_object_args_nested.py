@@ -0,0 +1,10 @@
+def show(x:object, y:object) -> object:
+    print(x)
+    print(y)
+    return y
+
+def add(a:int, b:int) -> int:
+    return a + b
+
+show(add(2, 3), show(False, 4))
+show(show(1, 2), show(True, show(3, "s")))
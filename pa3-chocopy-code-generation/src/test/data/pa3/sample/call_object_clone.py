@@ -0,0 +1,12 @@
+def describe(x:object, n:int) -> int:
+    print(x)
+    return n + 1
+
+def same(x:object) -> object:
+    return x
+
+print(describe(5, 1))
+print(describe(True, 2))
+print(describe("s", 3))
+print(same(9))
+print(same(False))
@@ -0,0 +1,16 @@
+def fact(n:int) -> int:
+    if n <= 1:
+        return 1
+    return n * fact(n - 1)
+
+def half(n:int) -> int:
+    return n // 2
+
+def noisy(n:int) -> int:
+    print("called")
+    return n
+
+print(fact(10))
+print(half(fact(5)))
+print(fact(13))
+print(noisy(3) + fact(4))
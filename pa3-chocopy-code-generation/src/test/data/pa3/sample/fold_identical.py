@@ -0,0 +1,14 @@
+x:int = 1
+
+def inc(n:int) -> int:
+    return n + 1
+
+def succ(n:int) -> int:
+    return n + 1
+
+def dec(n:int) -> int:
+    return n - 1
+
+print(inc(x))
+print(succ(x + 1))
+print(dec(x + 2))
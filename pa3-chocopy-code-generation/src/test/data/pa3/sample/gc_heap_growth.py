@@ -0,0 +1,8 @@
+def deep(n:int, xs:[int]) -> int:
+    ys:[int] = None
+    if n == 0:
+        return xs[0]
+    ys = [n, n, n, n, n, n, n, n]
+    return deep(n - 1, ys) + ys[7] + xs[0]
+
+print(deep(20000, [1]))
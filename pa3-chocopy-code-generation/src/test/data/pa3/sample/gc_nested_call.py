@@ -0,0 +1,19 @@
+def make(n:int) -> [int]:
+    return [n, n + 1, n + 2]
+
+def churn(k:int) -> int:
+    i:int = 0
+    t:int = 0
+    xs:[int] = None
+    while i < k:
+        xs = make(i)
+        t = t + xs[2]
+        i = i + 1
+    return t
+
+def outer(keep:[int]) -> int:
+    mine:[int] = None
+    mine = [keep[0], 7]
+    return churn(30000) + mine[1] + keep[1]
+
+print(outer([5, 6]))
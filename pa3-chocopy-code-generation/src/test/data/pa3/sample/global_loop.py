@@ -0,0 +1,18 @@
+total:int = 0
+i:int = 0
+flag:bool = False
+
+def bump() -> int:
+    global total
+    total = total + 100
+    return total
+
+while i < 10:
+    total = total + i
+    if i == 5:
+        bump()
+        flag = not flag
+    i = i + 1
+print(total)
+print(i)
+print(flag)
@@ -0,0 +1,28 @@
+def make(n:int) -> [int]:
+    xs:[int] = None
+    i:int = 0
+    xs = []
+    while i < n:
+        xs = xs + [i]
+        i = i + 1
+    return xs
+
+def total(xs:[int]) -> int:
+    t:int = 0
+    i:int = 0
+    while i < len(xs):
+        t = t + xs[i]
+        i = i + 1
+    return t
+
+n:int = 0
+ys:[int] = None
+zs:[object] = None
+while n < 10:
+    ys = make(n) + make(n + 3)
+    print(len(ys))
+    print(total(ys))
+    zs = make(n) + [n > 4]
+    print(len(zs))
+    print(zs[n])
+    n = n + 1
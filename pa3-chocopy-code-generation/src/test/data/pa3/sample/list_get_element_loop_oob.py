@@ -0,0 +1,18 @@
+xs:[int] = None
+i:int = 0
+s:int = 0
+xs = [1, 2, 3, 4, 5]
+while i < 5:
+    xs[i] = xs[i] * 2
+    i = i + 1
+i = 0
+while i < 5:
+    s = s + xs[i]
+    i = i + 1
+print(s)
+i = 0
+s = 0
+while i < 6:
+    s = s + xs[i]
+    i = i + 1
+print(s)
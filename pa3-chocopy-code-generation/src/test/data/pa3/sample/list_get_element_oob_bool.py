@@ -0,0 +1,6 @@
+bs:[bool] = None
+bs = [True, False, True]
+print(bs[0])
+print(bs[1])
+print(bs[2])
+print(bs[3])
@@ -0,0 +1,23 @@
+def outer(n:int) -> int:
+    total:int = 0
+
+    def add(k:int) -> int:
+        nonlocal total
+        total = total + k
+        return total
+
+    def twice(k:int) -> int:
+        add(k)
+        return add(k)
+
+    def count(k:int) -> int:
+        if k == 0:
+            return 0
+        return count(k - 1) + 1
+
+    twice(n)
+    print(total)
+    return count(n) + total
+
+print(outer(3))
+print(outer(5))
@@ -0,0 +1,9 @@
+s:str = "hello"
+xs:[int] = None
+xs = [1, 2, 3]
+print(len(s))
+print(s)
+print(len(xs))
+print(xs[2])
+print(True)
+print(-7)
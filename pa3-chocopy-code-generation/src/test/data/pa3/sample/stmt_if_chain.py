@@ -0,0 +1,57 @@
+def dense(x:int) -> str:
+    if x == 3:
+        return "three"
+    elif x == 0:
+        return "zero"
+    elif x == 1:
+        return "one"
+    elif x == 2:
+        return "two"
+    elif x == 5:
+        return "five"
+    elif x == 4:
+        return "four"
+    elif x == 7:
+        return "seven"
+    elif x == 6:
+        return "six"
+    elif x == 9:
+        return "nine"
+    elif x == 0:
+        return "unreachable"
+    else:
+        return "other"
+
+def sparse(x:int) -> int:
+    if x == 1000000:
+        return 1
+    elif x == 7:
+        return 2
+    elif x == 2147483647:
+        return 3
+    elif x == 0:
+        return 4
+    elif 40 == x:
+        return 5
+    return 0
+
+i:int = 0
+while i < 11:
+    print(dense(i))
+    i = i + 1
+i = 0 - 1
+print(dense(i))
+i = 1000000
+print(sparse(i))
+i = 7
+print(sparse(i))
+i = 2147483647
+print(sparse(i))
+i = 0
+print(sparse(i))
+i = 40
+print(sparse(i))
+i = 8
+print(sparse(i))
+i = 0 - 2147483647
+print(sparse(i))
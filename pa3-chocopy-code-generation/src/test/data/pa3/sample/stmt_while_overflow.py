@@ -0,0 +1,21 @@
+i:int = 2147483640
+n:int = 0
+while i > 0:
+    n = n + 1
+    i = i + 3
+print(n)
+print(i)
+i = 2147483600
+n = 0
+while i < 2147483647:
+    n = n + 1
+    i = i + 1
+print(n)
+print(i)
+i = 0 - 2147483640
+n = 0
+while i < 0:
+    n = n + 1
+    i = i - 5
+print(n)
+print(i)
@@ -0,0 +1,13 @@
+unused_str:str = "never printed"
+used_str:str = "used"
+n:int = 41
+
+def unused(k:int) -> int:
+    print("unused function")
+    return k * 2
+
+def used(k:int) -> int:
+    return k + 1
+
+print(used(n))
+print(used_str)
@@ -0,0 +1,128 @@
+package chocopy.common.codegen;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import chocopy.common.astnodes.Node;
+import chocopy.common.astnodes.NoneLiteral;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of the reading of profiles (see Profile). */
+public class ProfileTest {
+
+    /** A profile written by an instrumented run of a sample. */
+    private static final String SAMPLE =
+        "src/test/data/pa3/options/profile/profile_branches.profile";
+
+    /** Return the profile whose text is TEXT. */
+    private static Profile parse(String text) throws IOException {
+        return Profile.read(new StringReader(text));
+    }
+
+    /** Return a node located at LINE:COLUMN. */
+    private static Node nodeAt(int line, int column) {
+        Node node = new NoneLiteral(null, null);
+        node.setLocation(new int[] { line, column, line, column + 3 });
+        return node;
+    }
+
+    @Test
+    public void readsCallsAndBranches() throws IOException {
+        Profile profile = parse("chocopy-profile 1\n"
+                                + "# counts of a test run\n"
+                                + "\n"
+                                + "call f 3\n"
+                                + "call f 4\n"
+                                + "branch f 2:5 1 9\n"
+                                + "branch <top> 7:1 6 2\n");
+        assertEquals(7, profile.getCallCount("f"));
+        assertEquals(-1, profile.getCallCount("g"));
+        assertArrayEquals(new long[] { 1, 9 },
+                          profile.getBranchCounts("f", nodeAt(2, 5)));
+        assertTrue(profile.isMostlyFalse("f", nodeAt(2, 5)));
+        assertTrue(profile.isMostlyTrue(Profile.TOP_LEVEL, nodeAt(7, 1)));
+        assertNull(profile.getBranchCounts("f", nodeAt(7, 1)));
+        assertFalse(profile.isMostlyFalse("g", nodeAt(2, 5)));
+    }
+
+    @Test
+    public void mergesRepeatedBranches() throws IOException {
+        Profile profile = parse("chocopy-profile 1\n"
+                                + "branch f 2:5 4 1\n"
+                                + "branch f 2:5 0 5\n");
+        assertArrayEquals(new long[] { 4, 6 },
+                          profile.getBranchCounts("f", nodeAt(2, 5)));
+        assertTrue(profile.isMostlyFalse("f", nodeAt(2, 5)));
+    }
+
+    @Test
+    public void skipsProgramOutput() throws IOException {
+        Profile profile = parse("8\n"
+                                + "call f 2\n"
+                                + "chocopy-profile 1\n"
+                                + "call f 3\n");
+        assertEquals(3, profile.getCallCount("f"));
+    }
+
+    @Test
+    public void readsInstrumentedRun() {
+        /* The output of profile_branches.py compiled with
+         * -Dchocopy.instrument=profile. */
+        Profile profile = Profile.read(SAMPLE);
+        assertEquals(50, profile.getCallCount("classify"));
+        assertArrayEquals(new long[] { 8, 42 },
+                          profile.getBranchCounts("classify", nodeAt(2, 5)));
+        assertArrayEquals(new long[] { 50, 1 },
+                          profile.getBranchCounts(Profile.TOP_LEVEL,
+                                                  nodeAt(8, 1)));
+    }
+
+    @Test
+    public void recordsStartProfileLines() {
+        assertEquals("call f", Profile.callRecord("f"));
+        assertEquals("branch <top> 7:1",
+                     Profile.branchRecord(Profile.TOP_LEVEL, nodeAt(7, 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyInput() throws IOException {
+        parse("");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOutputWithoutProfile() throws IOException {
+        parse("8\ncall f 1\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherVersions() throws IOException {
+        parse("chocopy-profile 2\ncall f 1\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownRecords() throws IOException {
+        parse("chocopy-profile 1\nloop f 2:5 3\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingFields() throws IOException {
+        parse("chocopy-profile 1\nbranch f 2:5 3\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBadCounts() throws IOException {
+        parse("chocopy-profile 1\ncall f many\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingFiles() {
+        Profile.read("/nonexistent/chocopy.profile");
+    }
+}
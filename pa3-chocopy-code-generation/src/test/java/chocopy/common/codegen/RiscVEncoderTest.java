@@ -0,0 +1,161 @@
+package chocopy.common.codegen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import chocopy.common.astnodes.Node;
+import chocopy.common.astnodes.Program;
+import chocopy.pa3.StudentCodeGen;
+import venus.assembler.Assembler;
+import venus.assembler.AssemblerOutput;
+import venus.linker.LinkedProgram;
+import venus.linker.Linker;
+import venus.simulator.Simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of the encoding of assembly code (see RiscVEncoder), against
+ *  the code assembled by Venus. */
+public class RiscVEncoderTest {
+
+    /** The address of the text segment in Venus. */
+    private static final int VENUS_TEXT_BASE = 0;
+
+    /** The directory holding the sample programs. */
+    private static final String SAMPLES = "src/test/data/pa3/sample";
+
+    /** A program using each kind of pseudo-instruction we emit. */
+    private static final String PSEUDOS =
+        "  .equiv @n, 5000\n"
+        + "  .text\n"
+        + "  .globl main\n"
+        + "main:\n"
+        + "  li a0, 7\n"
+        + "  li a1, -2048\n"
+        + "  li a2, 4096\n"
+        + "  li a3, @n\n"
+        + "  la a4, msg\n"
+        + "  lw a5, count\n"
+        + "  sw a5, count, t0\n"
+        + "  beqz a0, done\n"
+        + "  bgtz a0, done\n"
+        + "  blez a0, done\n"
+        + "  mv t1, a0\n"
+        + "  not t1, t1\n"
+        + "  neg t1, t1\n"
+        + "  seqz t2, t1\n"
+        + "  snez t2, t1\n"
+        + "  jal helper\n"
+        + "  j done\n"
+        + "helper:\n"
+        + "  jr ra\n"
+        + "done:\n"
+        + "  li a0, 10\n"
+        + "  ecall\n"
+        + "  .data\n"
+        + "  .align 2\n"
+        + "count:\n"
+        + "  .word 3\n"
+        + "ptr:\n"
+        + "  .word msg\n"
+        + "msg:\n"
+        + "  .string \"hi\\n\"\n";
+
+    /** Return the little-endian word at OFFSET in BYTES, where bytes past
+     *  the end read as 0. */
+    private static int word(byte[] bytes, int offset) {
+        byte[] padded = Arrays.copyOfRange(bytes, offset, offset + 4);
+        return ByteBuffer.wrap(padded).order(ByteOrder.LITTLE_ENDIAN)
+            .getInt();
+    }
+
+    /** Check that PROGRAM, the text of an assembly program named NAME,
+     *  is encoded as Venus assembles it. */
+    private static void assertEncodedAsInVenus(String name, String program) {
+        AssemblerOutput assembled = Assembler.INSTANCE.assemble(program);
+        assertTrue(name + ": " + assembled.getErrors(),
+                   assembled.getErrors().isEmpty());
+        LinkedProgram linked = Linker.INSTANCE.link(
+            Collections.singletonList(assembled.getProg()));
+        Simulator venus = new Simulator(linked);
+
+        byte[][] segments = new RiscVEncoder(program)
+            .toSegments(VENUS_TEXT_BASE, RiscVEncoder.DATA_BASE);
+        int[] bases = { VENUS_TEXT_BASE, RiscVEncoder.DATA_BASE };
+        for (int s = 0; s < segments.length; s += 1) {
+            for (int i = 0; i < segments[s].length; i += 4) {
+                assertEquals(String.format("%s: word at 0x%08x", name,
+                                           bases[s] + i),
+                             venus.loadWord(bases[s] + i),
+                             word(segments[s], i));
+            }
+        }
+    }
+
+    @Test
+    public void expandsPseudoInstructionsAsVenusDoes() {
+        assertEncodedAsInVenus("pseudos", PSEUDOS);
+    }
+
+    @Test
+    public void encodesSamplesAsVenusDoes() throws IOException {
+        File[] inputs = new File(SAMPLES).listFiles(
+            (dir, file) -> file.endsWith(".py.ast.typed"));
+        assertTrue(SAMPLES, inputs != null && inputs.length > 0);
+        Arrays.sort(inputs);
+        int encoded = 0;
+        for (File input : inputs) {
+            String json = new String(Files.readAllBytes(input.toPath()),
+                                     StandardCharsets.UTF_8);
+            String program;
+            try {
+                program = StudentCodeGen.process(
+                    (Program) Node.fromJSON(json), false);
+            } catch (RuntimeException e) {
+                /* Not yet supported by this code generator. */
+                continue;
+            }
+            if (program != null) {
+                assertEncodedAsInVenus(input.getName(), program);
+                encoded += 1;
+            }
+        }
+        assertTrue("no sample compiled", encoded > 0);
+    }
+
+    @Test
+    public void startsWithEntryStub() {
+        String program = "  .text\n"
+            + "  .globl main\n"
+            + "main:\n"
+            + "  li a0, 10\n"
+            + "  ecall\n";
+        byte[] image = new RiscVEncoder(program)
+            .toImage(RiscVEncoder.TEXT_BASE);
+        List<Integer> expected = Arrays.asList(
+            0x80000137,   /* lui sp, 0x80000 */
+            0xff010113,   /* addi sp, sp, -16 */
+            0x100081b7,   /* lui gp, 0x10008 */
+            0x00018193,   /* addi gp, gp, 0 */
+            0x0040006f,   /* j main */
+            0x00a00513,   /* li a0, 10 */
+            0x00000073);  /* ecall */
+        for (int i = 0; i < expected.size(); i += 1) {
+            assertEquals("word " + i, (long) expected.get(i),
+                         word(image, 4 * i));
+        }
+
+        byte[] elf = new RiscVEncoder(program).toElf();
+        assertEquals("entry point", RiscVEncoder.TEXT_BASE, word(elf, 24));
+    }
+}